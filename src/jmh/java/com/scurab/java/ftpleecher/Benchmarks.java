@@ -0,0 +1,49 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shared helpers of benchmarks
+ */
+final class Benchmarks {
+
+    /**
+     * Folder for benchmark files, tmpfs is preferred to measure code instead of disk,
+     * it can be changed by system property "benchmark.dir"
+     */
+    static final File DIR;
+
+    static {
+        String dir = System.getProperty("benchmark.dir");
+        if (dir == null) {
+            dir = new File("/dev/shm").isDirectory() ? "/dev/shm" : System.getProperty("java.io.tmpdir");
+        }
+        DIR = new File(dir);
+    }
+
+    private Benchmarks() {
+    }
+
+    static File createTempFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, DIR);
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create folder:" + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteAll(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,185 @@
+package com.scurab.java.ftpleecher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy loop of {@link FTPDownloadThread#downloadImpl()}, socket to part file<br/>
+ * Data come from local socket, so it's network stack and file system without any server.
+ * Heap variant runs {@link FTPDownloadThread#copy(InputStream, PartOutput, long)} of real thread, so every chunk
+ * goes through claim, statistics, limiter, tracer and checksums of {@link #checks}.
+ * Direct variant is only reference, it reads channel into direct buffer and writes it by {@link FileChannel}.
+ * One operation is one piece of {@link #PIECE_LENGTH}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyLoopBenchmark {
+
+    static final int PIECE_LENGTH = 64 * 1024 * 1024;
+
+    @Param({"8192", "65536", "262144", "1048576"})
+    public int bufferSize;
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    /**
+     * Checksums of heap variant, "none" or "all" for CRC32C content hash and block checksums
+     */
+    @Param({"none", "all"})
+    public String checks;
+
+    private DataServer mServer;
+
+    private File mFile;
+
+    private FTPContext mContext;
+
+    private ByteBuffer mDirect;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new DataServer(PIECE_LENGTH);
+        mFile = Benchmarks.createTempFile("copy", ".part");
+        mDirect = ByteBuffer.allocateDirect(bufferSize);
+        mContext = new FTPContext();
+        mContext.server = "127.0.0.1";
+        mContext.username = "benchmark";
+        mContext.outputDirectory = mFile.getParent();
+        mContext.fileName = mFile.getName();
+        mContext.currentPieceLength = PIECE_LENGTH;
+        mContext.fileSize = PIECE_LENGTH;
+        mContext.bufferSize = bufferSize;
+        if ("all".equals(checks)) {
+            mContext.contentHash = HashAlgorithm.CRC32C;
+            mContext.blockChecksums = true;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mServer.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long copy() throws Exception {
+        return "direct".equals(buffer) ? copyDirect() : copyHeap();
+    }
+
+    private long copyHeap() throws Exception {
+        //new thread for every piece, like new part
+        FTPDownloadThread thread = new FTPDownloadThread(mContext.clone());
+        thread.onPreInit(mFile, false);
+        Socket socket = new Socket();
+        socket.connect(mServer.getAddress());
+        PartFileOutput output = new PartFileOutput(mFile, false);
+        try {
+            thread.copy(socket.getInputStream(), output, System.nanoTime());
+            return thread.getDownloaded();
+        } finally {
+            output.close();
+            socket.close();
+            thread.deleteBlockChecksums();
+        }
+    }
+
+    private long copyDirect() throws IOException {
+        SocketChannel socket = SocketChannel.open(mServer.getAddress());
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel output = raf.getChannel();
+            long downloaded = 0;
+            while (socket.read(mDirect) != -1) {
+                mDirect.flip();
+                while (mDirect.hasRemaining()) {
+                    downloaded += output.write(mDirect);
+                }
+                mDirect.clear();
+            }
+            return downloaded;
+        } finally {
+            raf.close();
+            socket.close();
+        }
+    }
+
+    /**
+     * Local server sending fixed amount of data to every connection
+     */
+    static class DataServer implements Runnable {
+
+        private final ServerSocketChannel mChannel;
+
+        private final long mLength;
+
+        private final Thread mThread;
+
+        DataServer(long length) throws IOException {
+            mLength = length;
+            mChannel = ServerSocketChannel.open();
+            mChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            mThread = new Thread(this, "DataServer");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) mChannel.getLocalAddress();
+        }
+
+        @Override
+        public void run() {
+            final ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+            while (mChannel.isOpen()) {
+                try {
+                    SocketChannel client = mChannel.accept();
+                    try {
+                        long sent = 0;
+                        while (sent < mLength) {
+                            data.clear();
+                            data.limit((int) Math.min(data.capacity(), mLength - sent));
+                            sent += client.write(data);
+                        }
+                    } finally {
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
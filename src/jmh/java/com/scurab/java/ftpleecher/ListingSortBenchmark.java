@@ -0,0 +1,62 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting of folder listing by {@link FTPFactory#FILE_COMPARATOR}<br/>
+ * Listing is mix of folders and multi volume archives (rar, r00, r01...) like typical release folder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class ListingSortBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private FTPFile[] mFiles;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mFiles = new FTPFile[size];
+        for (int i = 0; i < size; i++) {
+            FTPFile file = new FTPFile();
+            final int volume = random.nextInt(50);
+            if (random.nextInt(20) == 0) {
+                file.setType(FTPFile.DIRECTORY_TYPE);
+                file.setName("Folder." + random.nextInt(size));
+            } else {
+                file.setType(FTPFile.FILE_TYPE);
+                final String ext = volume == 0 ? "rar" : String.format("r%02d", volume - 1);
+                file.setName("release." + random.nextInt(size / 50 + 1) + "." + ext);
+            }
+            mFiles[i] = file;
+        }
+    }
+
+    @Benchmark
+    public FTPFile[] sort() {
+        FTPFile[] files = mFiles.clone();
+        Arrays.sort(files, FTPFactory.FILE_COMPARATOR);
+        return files;
+    }
+}
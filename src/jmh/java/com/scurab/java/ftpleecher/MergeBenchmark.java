@@ -0,0 +1,122 @@
+package com.scurab.java.ftpleecher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging of parts into final file like {@link DownloadTask} does it<br/>
+ * "transferTo" and "inPlace" are {@link FileMerger}, "stream" is plain copy by heap buffer for comparison.
+ * Parts are created again before every operation, because in place merge consumes first part.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    private static final int PART_LENGTH = 16 * 1024 * 1024;
+
+    @Param({"transferTo", "inPlace", "stream"})
+    public String strategy;
+
+    @Param({"8"})
+    public int parts;
+
+    private File mDir;
+
+    private File[] mParts;
+
+    private File mOutput;
+
+    private byte[] mData;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        mDir = Benchmarks.createTempDir("merge");
+        mData = new byte[PART_LENGTH];
+        new Random(1).nextBytes(mData);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        mParts = new File[parts];
+        for (int i = 0; i < parts; i++) {
+            mParts[i] = new File(mDir, String.format("file.part%03d", i));
+            RandomAccessFile raf = new RandomAccessFile(mParts[i], "rw");
+            try {
+                raf.setLength(0);
+                raf.write(mData);
+            } finally {
+                raf.close();
+            }
+        }
+        mOutput = new File(mDir, "file");
+        mOutput.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteAll(mDir);
+    }
+
+    @Benchmark
+    public long merge() throws IOException {
+        if ("stream".equals(strategy)) {
+            return mergeStream();
+        }
+        FileMerger merger = new FileMerger(mOutput, "inPlace".equals(strategy));
+        try {
+            long result = 0;
+            for (File part : mParts) {
+                result += merger.append(part);
+            }
+            return result;
+        } finally {
+            merger.close();
+        }
+    }
+
+    private long mergeStream() throws IOException {
+        FileOutputStream output = new FileOutputStream(mOutput);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long result = 0;
+            for (File part : mParts) {
+                FileInputStream input = new FileInputStream(part);
+                try {
+                    int len;
+                    while ((len = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, len);
+                        result += len;
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            return result;
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.scurab.java.ftpleecher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scheduling overhead of {@link FTPLeechMaster}<br/>
+ * Every part finishes immediately, so measured time is only scheduling and start of parts,
+ * time per part should stay flat with growing queue.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class SchedulerBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int parts;
+
+    @Param({"16"})
+    public int workingThreads;
+
+    private DownloadTask mTask;
+
+    private FTPLeechMaster mMaster;
+
+    private PrintStream mOut;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        //master is logging every start, don't measure console
+        mOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        List<FTPDownloadThread> threads = new ArrayList<FTPDownloadThread>(parts);
+        for (int i = 0; i < parts; i++) {
+            FTPContext context = new FTPContext();
+            context.fileName = "file" + i;
+            threads.add(new InstantDownloadThread(context));
+        }
+        mTask = new DownloadTask(threads);
+        mMaster = new FTPLeechMaster();
+        mMaster.setWorkingThreads(workingThreads);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        mMaster.shutdown();
+        mMaster = null;
+        mTask = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        System.setOut(mOut);
+    }
+
+    @Benchmark
+    public int schedule() {
+        mMaster.enqueue(mTask);
+        while (mMaster.getStateCount(FTPDownloadThread.State.Finished) != parts) {
+            LockSupport.parkNanos(100000);
+        }
+        return parts;
+    }
+
+    /**
+     * Fake thread without any downloading
+     */
+    private static class InstantDownloadThread extends FTPDownloadThread {
+
+        InstantDownloadThread(FTPContext config) {
+            super(config);
+        }
+
+        @Override
+        protected void downloadImpl() {
+            setFtpState(State.Finished);
+        }
+    }
+}
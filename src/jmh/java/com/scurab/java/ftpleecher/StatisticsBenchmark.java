@@ -0,0 +1,68 @@
+package com.scurab.java.ftpleecher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link FTPLeechMaster#getStatistics()} polled by UI, it should not depend on count of parts<br/>
+ * Parts are only enqueued, master has no working slot, so nothing is started.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class StatisticsBenchmark {
+
+    @Param({"1000", "100000"})
+    public int parts;
+
+    private FTPLeechMaster mMaster;
+
+    private DownloadTask mTask;
+
+    @Setup
+    public void setUp() {
+        List<FTPDownloadThread> threads = new ArrayList<FTPDownloadThread>(parts);
+        for (int i = 0; i < parts; i++) {
+            FTPContext context = new FTPContext();
+            context.fileName = "file" + i;
+            context.currentPieceLength = 1024 * 1024;
+            threads.add(new FTPDownloadThread(context));
+        }
+        mTask = new DownloadTask(threads);
+        mMaster = new FTPLeechMaster();
+        mMaster.setWorkingThreads(0);
+        mMaster.enqueue(mTask);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMaster.shutdown();
+    }
+
+    @Benchmark
+    public FTPLeechMaster.Statistics global() {
+        return mMaster.getStatistics();
+    }
+
+    @Benchmark
+    public FTPLeechMaster.Statistics task() {
+        return mMaster.getStatistics(mTask);
+    }
+}
@@ -0,0 +1,315 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional controller of {@link FTPLeechMaster#setWorkingThreads(int)}<br/>
+ * Samples aggregate throughput and moves the concurrency limit to the knee of throughput curve,
+ * connection refusals (421, 530 too many users) are followed by multiplicative decrease.
+ * Refusal of part scheduled by {@link FTPLeechMaster} lowers only limit of its server, it doesn't come here.
+ */
+public class AdaptiveConcurrencyController {
+
+    /**
+     * Way of searching for the best limit
+     */
+    public enum Strategy {
+        /**
+         * Additive increase while throughput grows, multiplicative decrease on refusals
+         */
+        AIMD,
+        /**
+         * Keep moving limit in one direction while throughput grows, otherwise turn around
+         */
+        HILL_CLIMBING
+    }
+
+    /**
+     * Default sampling interval in ms
+     */
+    public static final long DEFAULT_INTERVAL = 3000;
+
+    /**
+     * Max size of decision history
+     */
+    private static final int HISTORY_SIZE = 100;
+
+    /**
+     * Min relative throughput change taken as real change, anything below is noise
+     */
+    private static final double THRESHOLD = 0.05;
+
+    /**
+     * Multiplier of limit used after connection refusal
+     */
+    private static final double BACKOFF = 0.5;
+
+    private final FTPLeechMaster mMaster;
+
+    private final Strategy mStrategy;
+
+    private final int mMinLimit;
+
+    private final int mMaxLimit;
+
+    private volatile long mInterval = DEFAULT_INTERVAL;
+
+    /**
+     * Refusals since last sample
+     */
+    private final AtomicInteger mRefusals = new AtomicInteger();
+
+    /**
+     * Limit can't grow over this value after refusal, until refusal is forgotten
+     */
+    private int mCeiling;
+
+    private int mLastThroughput = -1;
+
+    private int mDirection = 1;
+
+    private final ArrayDeque<Decision> mHistory = new ArrayDeque<Decision>();
+
+    private volatile Thread mThread;
+
+    /**
+     * @param master   controlled master
+     * @param strategy
+     * @param minLimit min concurrency limit
+     * @param maxLimit max concurrency limit
+     */
+    public AdaptiveConcurrencyController(FTPLeechMaster master, Strategy strategy, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format("Invalid limits min:%s max:%s", minLimit, maxLimit));
+        }
+        mMaster = master;
+        mStrategy = strategy;
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mCeiling = maxLimit;
+    }
+
+    /**
+     * Start sampling thread and attach controller to master
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mMaster.setConcurrencyController(this);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mThread == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(mInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sample();
+                }
+            }
+        });
+        mThread.setName("ConcurrencyController");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop sampling, current limit of master is not changed
+     */
+    public synchronized void stop() {
+        Thread t = mThread;
+        mThread = null;
+        if (t != null) {
+            t.interrupt();
+            mMaster.setConcurrencyController(null);
+        }
+    }
+
+    /**
+     * Called by {@link FTPLeechMaster} for every error of download thread, except refusals handled by limit of server
+     *
+     * @param e
+     */
+    void onError(Exception e) {
+        if (isConnectionRefusal(e)) {
+            mRefusals.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take one sample and update limit
+     */
+    synchronized void sample() {
+        final int limit = mMaster.getWorkingThreads();
+        final int throughput = mMaster.getStatistics().currentSpeed;
+        final int refusals = mRefusals.getAndSet(0);
+
+        int newLimit = limit;
+        String reason;
+        if (refusals > 0) {
+            newLimit = (int) (limit * BACKOFF);
+            //server doesn't allow more, don't try it again immediately
+            mCeiling = Math.max(mMinLimit, limit - 1);
+            mDirection = -1;
+            reason = String.format("%s refused connections", refusals);
+        } else if (mMaster.getRunningCount() < limit) {
+            //nothing waiting for a slot, throughput doesn't say anything about limit
+            reason = "not saturated";
+        } else if (mLastThroughput < 0) {
+            newLimit = limit + 1;
+            reason = "first sample";
+        } else {
+            final double change = mLastThroughput == 0 ? (throughput > 0 ? 1 : 0) : (throughput - mLastThroughput) / (double) mLastThroughput;
+            if (mStrategy == Strategy.AIMD) {
+                if (change > THRESHOLD) {
+                    newLimit = limit + 1;
+                    reason = "throughput grows";
+                } else if (change < -THRESHOLD) {
+                    newLimit = limit - 1;
+                    reason = "throughput drops";
+                } else {
+                    //knee, try to go up slowly, ceiling is released one step per sample
+                    mCeiling = Math.min(mMaxLimit, mCeiling + 1);
+                    reason = "throughput flat";
+                }
+            } else {
+                if (change < -THRESHOLD || (change <= THRESHOLD && mDirection > 0)) {
+                    //worse or no gain for more connections, turn around
+                    mDirection = -mDirection;
+                    reason = "turn around";
+                } else {
+                    reason = "keep direction";
+                }
+                newLimit = limit + mDirection;
+                mCeiling = Math.min(mMaxLimit, mCeiling + 1);
+            }
+        }
+        newLimit = Math.max(mMinLimit, Math.min(Math.min(mMaxLimit, mCeiling), newLimit));
+        mLastThroughput = throughput;
+
+        Decision decision = new Decision(System.currentTimeMillis(), limit, newLimit, throughput, refusals, reason);
+        mHistory.addLast(decision);
+        if (mHistory.size() > HISTORY_SIZE) {
+            mHistory.removeFirst();
+        }
+        if (newLimit != limit) {
+            mMaster.setWorkingThreads(newLimit);
+        }
+    }
+
+    /**
+     * Returns true if exception means that server refused new connection because of connection limit
+     *
+     * @param e
+     * @return
+     */
+    public static boolean isConnectionRefusal(Exception e) {
+        if (e instanceof FTPConnectionClosedException) {
+            //commons-net throws it for 421 reply and for dropped control connection too
+            final String msg = e.getMessage();
+            return msg != null && msg.contains(String.valueOf(FTPReply.SERVICE_NOT_AVAILABLE));
+        }
+        if (e instanceof FatalFTPException) {
+            final int code = ((FatalFTPException) e).getReplyCode();
+            if (code == FTPReply.SERVICE_NOT_AVAILABLE) {
+                return true;
+            }
+            if (code == FTPReply.NOT_LOGGED_IN && e.getMessage() != null) {
+                final String msg = e.getMessage().toLowerCase();
+                return msg.contains("too many") || msg.contains("maximum") || msg.contains("limit");
+            }
+        }
+        return false;
+    }
+
+    public void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public Strategy getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Get current limit
+     *
+     * @return
+     */
+    public int getCurrentLimit() {
+        return mMaster.getWorkingThreads();
+    }
+
+    /**
+     * Get last decision or null if there wasn't any sample yet
+     *
+     * @return
+     */
+    public synchronized Decision getLastDecision() {
+        return mHistory.peekLast();
+    }
+
+    /**
+     * Get history of decisions, oldest first
+     *
+     * @return
+     */
+    public synchronized List<Decision> getHistory() {
+        return new ArrayList<Decision>(mHistory);
+    }
+
+    /**
+     * One decision of controller
+     */
+    public static class Decision {
+        /**
+         * Time of sample
+         */
+        public final long time;
+        /**
+         * Limit before decision
+         */
+        public final int previousLimit;
+        /**
+         * Limit after decision
+         */
+        public final int limit;
+        /**
+         * Aggregate throughput in bytes/s
+         */
+        public final int throughput;
+        /**
+         * Connection refusals since previous sample
+         */
+        public final int refusals;
+        /**
+         * Human readable reason
+         */
+        public final String reason;
+
+        Decision(long time, int previousLimit, int limit, int throughput, int refusals, String reason) {
+            this.time = time;
+            this.previousLimit = previousLimit;
+            this.limit = limit;
+            this.throughput = throughput;
+            this.refusals = refusals;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s -> %s, %sB/s, refusals:%s, %s", previousLimit, limit, throughput, refusals, reason);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchical bandwidth limiter, global cap, cap per server and cap per {@link DownloadTask}<br/>
+ * Every read is charged to all levels and the longest wait wins.
+ * Global bucket is shared, so capacity not used by throttled task is taken by other tasks.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * Min wait in ns worth of sleeping, shorter wait is kept as debt in buckets
+     */
+    private static final long MIN_WAIT = 1000000;
+
+    private final TokenBucket mGlobal = new TokenBucket(0, 0);
+
+    private final ConcurrentHashMap<ServerKey, TokenBucket> mServers = new ConcurrentHashMap<ServerKey, TokenBucket>();
+
+    private final ConcurrentHashMap<DownloadTask, TokenBucket> mTasks = new ConcurrentHashMap<DownloadTask, TokenBucket>();
+
+    /**
+     * true if there is any limit, fast path for unlimited downloading
+     */
+    private volatile boolean mActive;
+
+    /**
+     * Charge transferred data and wait if any limit is exceeded
+     *
+     * @param server server of transfer
+     * @param task   task of transfer, can be null
+     * @param bytes  transferred bytes
+     * @throws InterruptedException
+     */
+    public void acquire(ServerKey server, DownloadTask task, long bytes) throws InterruptedException {
+        if (!mActive) {
+            return;
+        }
+        final long now = System.nanoTime();
+        long wait = mGlobal.consume(bytes, now);
+        TokenBucket bucket = mServers.get(server);
+        if (bucket != null) {
+            wait = Math.max(wait, bucket.consume(bytes, now));
+        }
+        bucket = task != null ? mTasks.get(task) : null;
+        if (bucket != null) {
+            wait = Math.max(wait, bucket.consume(bytes, now));
+        }
+        if (wait >= MIN_WAIT) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    /**
+     * Set global limit
+     *
+     * @param bytesPerSec limit, 0 for unlimited
+     */
+    public void setGlobalLimit(long bytesPerSec) {
+        mGlobal.setRate(bytesPerSec, 0);
+        updateActive();
+    }
+
+    public long getGlobalLimit() {
+        return mGlobal.getRate();
+    }
+
+    /**
+     * Set limit for one server
+     *
+     * @param server
+     * @param bytesPerSec limit, 0 for unlimited
+     */
+    public void setServerLimit(ServerKey server, long bytesPerSec) {
+        setLimit(mServers, server, bytesPerSec);
+    }
+
+    public long getServerLimit(ServerKey server) {
+        TokenBucket bucket = mServers.get(server);
+        return bucket != null ? bucket.getRate() : 0;
+    }
+
+    /**
+     * Set limit for one task
+     *
+     * @param task
+     * @param bytesPerSec limit, 0 for unlimited, limit is forgotten then
+     */
+    public void setTaskLimit(DownloadTask task, long bytesPerSec) {
+        setLimit(mTasks, task, bytesPerSec);
+    }
+
+    public long getTaskLimit(DownloadTask task) {
+        TokenBucket bucket = mTasks.get(task);
+        return bucket != null ? bucket.getRate() : 0;
+    }
+
+    private synchronized <K> void setLimit(ConcurrentHashMap<K, TokenBucket> buckets, K key, long bytesPerSec) {
+        if (bytesPerSec <= 0) {
+            buckets.remove(key);
+        } else {
+            TokenBucket bucket = buckets.get(key);
+            if (bucket == null) {
+                buckets.put(key, new TokenBucket(bytesPerSec, 0));
+            } else {
+                bucket.setRate(bytesPerSec, 0);
+            }
+        }
+        updateActive();
+    }
+
+    private synchronized void updateActive() {
+        mActive = !mGlobal.isUnlimited() || !mServers.isEmpty() || !mTasks.isEmpty();
+    }
+}
@@ -0,0 +1,312 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file with CRC32 of fixed size blocks of one part, see {@link FTPSettings#blockChecksums}<br/>
+ * Checksums are built while part is written. When part is resumed, written data are checked block by block,
+ * so only corrupted blocks are downloaded again instead of whole part.
+ * Checksums are kept in memory and saved by {@link #commit()}, file has few bytes per MiB of part.
+ * Any CRC value is valid, blocks with checksum are marked by bitmap saved before checksums.
+ */
+class BlockChecksums {
+
+    private static final int MAGIC = 0x464C4232;//FLB2
+
+    /**
+     * Magic, block size and count of blocks
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Value returned by {@link #get(int)} for block without checksum, it's never a CRC32 value
+     */
+    static final long UNKNOWN = -1;
+
+    private final File mFile;
+
+    private final int mBlockSize;
+
+    private long[] mEntries = new long[16];
+
+    /**
+     * Blocks with checksum in {@link #mEntries}
+     */
+    private final BitSet mKnown = new BitSet();
+
+    private int mCount;
+
+    /**
+     * Checksum of current not complete block
+     */
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Position in part
+     */
+    private long mPosition;
+
+    /**
+     * Blocks with checksum different from stored one or without stored one, value is checksum of data
+     */
+    private Map<Integer, Long> mSuspects;
+
+    private boolean mDirty;
+
+    private boolean mSync;
+
+    /**
+     * @param file      sidecar file
+     * @param blockSize
+     */
+    BlockChecksums(File file, int blockSize) {
+        mFile = file;
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * Load saved checksums, file with different block size or older format is ignored
+     *
+     * @throws IOException
+     */
+    void load() throws IOException {
+        reset();
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            final long length = mFile.length();
+            if (length < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != mBlockSize) {
+                return;
+            }
+            final int count = in.readInt();
+            if (count < 0 || length != getFileLength(count)) {
+                return;
+            }
+            byte[] bitmap = new byte[getBitmapLength(count)];
+            in.readFully(bitmap);
+            final BitSet known = BitSet.valueOf(bitmap);
+            for (int i = 0; i < count; i++) {
+                final long crc = in.readInt() & 0xFFFFFFFFL;
+                if (known.get(i)) {
+                    set(i, crc);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Forget all checksums and start from beginning of part
+     */
+    void reset() {
+        mKnown.clear();
+        mCount = 0;
+        mCrc.reset();
+        mPosition = 0;
+        mSuspects = null;
+        mDirty = true;
+    }
+
+    /**
+     * Start check of already written data, data are passed by {@link #update(byte[], int, int)} from beginning of part
+     */
+    void startCheck() {
+        mCrc.reset();
+        mPosition = 0;
+        mSuspects = new LinkedHashMap<Integer, Long>();
+    }
+
+    /**
+     * Finish check started by {@link #startCheck()}, writing continues from current position
+     *
+     * @param complete true if whole part was passed, last not complete block is checked too
+     * @return suspected blocks, key is block, value is checksum of data
+     */
+    Map<Integer, Long> finishCheck(boolean complete) {
+        final Map<Integer, Long> result = mSuspects;
+        mSuspects = null;
+        if (complete && getPending() > 0) {
+            final int block = (int) (mPosition / mBlockSize);
+            if (!has(block) || get(block) != mCrc.getValue()) {
+                result.put(block, mCrc.getValue());
+            }
+        }
+        return result;
+    }
+
+    void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            final int n = (int) Math.min(len, mBlockSize - getPending());
+            mCrc.update(b, off, n);
+            off += n;
+            len -= n;
+            mPosition += n;
+            if (getPending() == 0) {
+                final int block = (int) (mPosition / mBlockSize) - 1;
+                final long crc = mCrc.getValue();
+                mCrc.reset();
+                if (mSuspects == null) {
+                    set(block, crc);
+                } else if (!has(block) || get(block) != crc) {
+                    mSuspects.put(block, crc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save checksum of last block, called when whole part is written
+     */
+    void finish() {
+        if (getPending() > 0) {
+            set((int) (mPosition / mBlockSize), mCrc.getValue());
+        }
+    }
+
+    /**
+     * Get length of current not complete block
+     *
+     * @return
+     */
+    long getPending() {
+        return mPosition % mBlockSize;
+    }
+
+    /**
+     * Get checksum of current not complete block
+     *
+     * @return
+     */
+    long getPendingValue() {
+        return mCrc.getValue();
+    }
+
+    /**
+     * Get stored checksum of block
+     *
+     * @param block
+     * @return checksum or {@link #UNKNOWN}
+     */
+    long get(int block) {
+        return has(block) ? mEntries[block] : UNKNOWN;
+    }
+
+    /**
+     * Returns true if block has stored checksum
+     *
+     * @param block
+     * @return
+     */
+    boolean has(int block) {
+        return mKnown.get(block);
+    }
+
+    /**
+     * Decide if suspected block has to be downloaded again<br/>
+     * CRC32 of server wins, block without stored checksum is trusted if server can't tell.
+     *
+     * @param block  block found by {@link #finishCheck(boolean)}
+     * @param crc    checksum of local data
+     * @param remote hex CRC32 of server or null
+     * @return
+     */
+    boolean isCorrupted(int block, long crc, String remote) {
+        if (remote != null) {
+            return Long.parseLong(remote, 16) != crc;
+        }
+        return has(block);
+    }
+
+    /**
+     * Store checksum of block
+     *
+     * @param block
+     * @param crc
+     */
+    void set(int block, long crc) {
+        if (block >= mEntries.length) {
+            mEntries = Arrays.copyOf(mEntries, Math.max(block + 1, mEntries.length * 2));
+        }
+        mEntries[block] = crc;
+        mKnown.set(block);
+        mCount = Math.max(mCount, block + 1);
+        mDirty = true;
+    }
+
+    /**
+     * Save checksums into file if anything has changed
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        final long length = getFileLength(mCount);
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        buffer.putInt(MAGIC).putInt(mBlockSize).putInt(mCount);
+        final byte[] bitmap = mKnown.toByteArray();
+        buffer.put(bitmap);
+        //trailing zero bytes are not in bitmap of BitSet
+        buffer.position(HEADER_SIZE + getBitmapLength(mCount));
+        for (int i = 0; i < mCount; i++) {
+            buffer.putInt(has(i) ? (int) mEntries[i] : 0);
+        }
+        buffer.flip();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.getChannel().write(buffer, 0);
+            raf.setLength(length);
+            if (mSync) {
+                raf.getChannel().force(false);
+            }
+        } finally {
+            raf.close();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Force saved checksums to disk by every {@link #commit()}
+     *
+     * @param sync
+     */
+    void setSync(boolean sync) {
+        mSync = sync;
+    }
+
+    private static int getBitmapLength(int count) {
+        return (count + 7) / 8;
+    }
+
+    private static long getFileLength(int count) {
+        return HEADER_SIZE + getBitmapLength(count) + 4L * count;
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    boolean delete() {
+        return mFile.delete();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+}
@@ -0,0 +1,22 @@
+package com.scurab.java.ftpleecher;
+
+/**
+ * Source of time for scheduling decisions of {@link FTPLeechMaster}<br/>
+ * {@link #SYSTEM} is used by default, simulation replaces it by virtual time.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Get current time
+     *
+     * @return time in ms
+     */
+    long currentTimeMillis();
+}
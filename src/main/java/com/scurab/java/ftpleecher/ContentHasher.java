@@ -0,0 +1,141 @@
+package com.scurab.java.ftpleecher;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * Incremental hash of downloaded bytes, created by {@link HashAlgorithm#newHasher()}<br/>
+ * Value is taken by {@link #toHex()} without finishing hash, so hashing can continue.
+ */
+public abstract class ContentHasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final HashAlgorithm mAlgorithm;
+
+    private long mLength;
+
+    ContentHasher(HashAlgorithm algorithm) {
+        mAlgorithm = algorithm;
+    }
+
+    public void update(byte[] b, int off, int len) {
+        updateImpl(b, off, len);
+        mLength += len;
+    }
+
+    protected abstract void updateImpl(byte[] b, int off, int len);
+
+    protected abstract byte[] value();
+
+    protected abstract void resetImpl();
+
+    public void reset() {
+        resetImpl();
+        mLength = 0;
+    }
+
+    /**
+     * Get hash of bytes passed so far as lower case hex string
+     *
+     * @return
+     */
+    public String toHex() {
+        return toHex(value());
+    }
+
+    /**
+     * Get count of hashed bytes
+     *
+     * @return
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public HashAlgorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    static String toHex(byte[] value) {
+        char[] result = new char[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            result[2 * i] = HEX[(value[i] >> 4) & 0xF];
+            result[2 * i + 1] = HEX[value[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Combine hex CRCs of consecutive blocks
+     *
+     * @param algorithm combinable algorithm
+     * @param crc1      hex CRC of first block
+     * @param crc2      hex CRC of second block
+     * @param len2      length of second block
+     * @return hex CRC of both blocks
+     */
+    static String combine(HashAlgorithm algorithm, String crc1, String crc2, long len2) {
+        long crc = Crc32c.combine(Long.parseLong(crc1, 16), Long.parseLong(crc2, 16), len2, algorithm.getPolynomial());
+        return String.format("%08x", crc);
+    }
+
+    static class Crc extends ContentHasher {
+        private final Checksum mChecksum;
+
+        Crc(HashAlgorithm algorithm, Checksum checksum) {
+            super(algorithm);
+            mChecksum = checksum;
+        }
+
+        @Override
+        protected void updateImpl(byte[] b, int off, int len) {
+            mChecksum.update(b, off, len);
+        }
+
+        @Override
+        protected byte[] value() {
+            long v = mChecksum.getValue();
+            return new byte[]{(byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v};
+        }
+
+        @Override
+        protected void resetImpl() {
+            mChecksum.reset();
+        }
+    }
+
+    static class Digest extends ContentHasher {
+        private final MessageDigest mDigest;
+
+        Digest(HashAlgorithm algorithm, String name) {
+            super(algorithm);
+            try {
+                mDigest = MessageDigest.getInstance(name);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void updateImpl(byte[] b, int off, int len) {
+            mDigest.update(b, off, len);
+        }
+
+        @Override
+        protected byte[] value() {
+            try {
+                //digest() resets, so finish a copy
+                return ((MessageDigest) mDigest.clone()).digest();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void resetImpl() {
+            mDigest.reset();
+        }
+    }
+}
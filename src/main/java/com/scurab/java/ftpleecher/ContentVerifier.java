@@ -0,0 +1,206 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verification of complete file against hash computed by server, see {@link FTPSettings#contentHash}<br/>
+ * Hash of file is combined from hashes of parts computed while writing if algorithm allows it,
+ * otherwise file is read once. If hashes differ, parts are compared by ranged hashes
+ * and only wrong parts (or wrong blocks of them, see {@link FTPSettings#blockChecksums})
+ * are downloaded again straight into final file.
+ */
+public class ContentVerifier {
+
+    public enum Result {
+        /**
+         * File matches hash of server
+         */
+        VERIFIED,
+        /**
+         * File matches hash of server after repair of some parts
+         */
+        REPAIRED,
+        /**
+         * Server can't compute hash or verification failed for other reason than content
+         */
+        UNVERIFIED,
+        /**
+         * File doesn't match hash of server even after repairs
+         */
+        FAILED
+    }
+
+    /**
+     * How many times are wrong parts downloaded again
+     */
+    private static final int MAX_REPAIRS = 2;
+
+    private final FTPContext mContext;
+
+    private final HashAlgorithm mAlgorithm;
+
+    private final File mFile;
+
+    private final List<FTPDownloadThread> mParts;
+
+    /**
+     * Local hashes of parts, null if it's not known yet
+     */
+    private final String[] mHashes;
+
+    /**
+     * @param parts all parts of one file ordered by offset, file must be complete
+     */
+    ContentVerifier(List<FTPDownloadThread> parts) {
+        mParts = parts;
+        mContext = parts.get(0).getContext();
+        mAlgorithm = mContext.contentHash;
+        mFile = new File(mContext.outputDirectory + System.getProperty("file.separator") + mContext.fileName);
+        mHashes = new String[parts.size()];
+        for (int i = 0; i < mHashes.length; i++) {
+            mHashes[i] = parts.get(i).getContentHash();
+        }
+    }
+
+    /**
+     * Compare file with server and repair wrong parts
+     *
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    Result verify() throws IOException, FatalFTPException {
+        FTPClient fc = FTPFactory.acquireFtpClient(mContext);
+        boolean reusable = false;
+        try {
+            final String remote = ServerHash.get(mContext, fc, mAlgorithm, 0, mContext.fileSize);
+            Result result = Result.UNVERIFIED;
+            if (remote != null) {
+                result = Result.VERIFIED;
+                int repairs = 0;
+                while (!remote.equals(hashFile())) {
+                    if (repairs++ == MAX_REPAIRS) {
+                        result = Result.FAILED;
+                        break;
+                    }
+                    for (int i : findWrongParts(fc, remote)) {
+                        mHashes[i] = repair(fc, mParts.get(i).getContext());
+                    }
+                    result = Result.REPAIRED;
+                }
+            }
+            reusable = true;
+            return result;
+        } finally {
+            FTPFactory.releaseFtpClient(mContext, fc, reusable);
+        }
+    }
+
+    /**
+     * Get local hash of complete file
+     *
+     * @return
+     * @throws IOException
+     */
+    private String hashFile() throws IOException {
+        if (!mAlgorithm.isCombinable()) {
+            return hashRange(0, mContext.fileSize);
+        }
+        String result = null;
+        for (int i = 0; i < mHashes.length; i++) {
+            final FTPContext c = mParts.get(i).getContext();
+            if (mHashes[i] == null) {
+                //restored or finished by hedge
+                mHashes[i] = hashRange(c.offset, c.currentPieceLength);
+            }
+            result = result == null ? mHashes[i] : ContentHasher.combine(mAlgorithm, result, mHashes[i], c.currentPieceLength);
+        }
+        return result;
+    }
+
+    /**
+     * Find parts which don't match ranged hashes of server
+     *
+     * @param fc
+     * @param remote hash of whole remote file
+     * @return indexes of parts, all if server can't hash ranges
+     * @throws IOException
+     */
+    private List<Integer> findWrongParts(FTPClient fc, String remote) throws IOException {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < mParts.size() && mParts.size() > 1; i++) {
+            final FTPContext c = mParts.get(i).getContext();
+            String hash = ServerHash.get(mContext, fc, mAlgorithm, c.offset, c.currentPieceLength);
+            if (hash == null || hash.equals(remote)) {
+                //range is not supported or it's ignored
+                result.clear();
+                break;
+            }
+            if (mHashes[i] == null) {
+                mHashes[i] = hashRange(c.offset, c.currentPieceLength);
+            }
+            if (!hash.equals(mHashes[i])) {
+                result.add(i);
+            }
+        }
+        if (result.isEmpty()) {
+            for (int i = 0; i < mParts.size(); i++) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Download part again into final file, only wrong blocks are downloaded if {@link FTPSettings#blockChecksums} is set
+     *
+     * @param fc
+     * @param part context of part
+     * @return hash of part
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    private String repair(FTPClient fc, FTPContext part) throws IOException, FatalFTPException {
+        System.err.println(String.format("Content of part %s doesn't match, downloading again:%s", part.part, mFile.getAbsolutePath()));
+        boolean whole = !mContext.blockChecksums;
+        List<Long> blocks = new ArrayList<Long>();
+        final long end = part.offset + part.currentPieceLength;
+        for (long offset = part.offset; offset < end && !whole; offset += mContext.checksumBlockSize) {
+            final long length = Math.min(mContext.checksumBlockSize, end - offset);
+            String hash = ServerHash.get(mContext, fc, mAlgorithm, offset, length);
+            if (hash == null) {
+                whole = true;
+            } else if (!hash.equals(hashRange(offset, length))) {
+                blocks.add(offset);
+            }
+        }
+        if (whole) {
+            RangeRetrieval.retrieve(fc, mContext.remoteFullPath, part.offset, part.currentPieceLength, mContext.fileSize, mFile, part.offset);
+        } else {
+            for (long offset : blocks) {
+                final long length = Math.min(mContext.checksumBlockSize, end - offset);
+                RangeRetrieval.retrieve(fc, mContext.remoteFullPath, offset, length, mContext.fileSize, mFile, offset);
+            }
+        }
+        return hashRange(part.offset, part.currentPieceLength);
+    }
+
+    /**
+     * Hash range of local file
+     *
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private String hashRange(long offset, long length) throws IOException {
+        ContentHasher hasher = mAlgorithm.newHasher();
+        FTPDownloadThread.hashFile(mFile, offset, length, null, hasher);
+        return hasher.toHex();
+    }
+}
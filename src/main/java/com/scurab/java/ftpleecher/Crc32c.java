@@ -0,0 +1,130 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, pure java implementation for Java 8 which doesn't have {@code java.util.zip.CRC32C}<br/>
+ * Slicing-by-8, 8 bytes are processed by one step.
+ */
+public class Crc32c implements Checksum {
+
+    /**
+     * Reversed Castagnoli polynomial
+     */
+    public static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = createTables();
+
+    private int mCrc = 0xFFFFFFFF;
+
+    private static int[][] createTables() {
+        int[][] tables = new int[8][256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            tables[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                final int prev = tables[t - 1][i];
+                tables[t][i] = (prev >>> 8) ^ tables[0][prev & 0xFF];
+            }
+        }
+        return tables;
+    }
+
+    @Override
+    public void update(int b) {
+        mCrc = (mCrc >>> 8) ^ TABLES[0][(mCrc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = mCrc;
+        int i = off;
+        final int end = off + len;
+        for (; end - i >= 8; i += 8) {
+            final int lo = crc ^ ((b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24);
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[b[i + 4] & 0xFF] ^ t2[b[i + 5] & 0xFF] ^ t1[b[i + 6] & 0xFF] ^ t0[b[i + 7] & 0xFF];
+        }
+        for (; i < end; i++) {
+            crc = (crc >>> 8) ^ t0[(crc ^ b[i]) & 0xFF];
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Combine CRCs of two consecutive blocks into CRC of both, data are not needed (zlib crc32_combine)
+     *
+     * @param crc1       CRC of first block
+     * @param crc2       CRC of second block
+     * @param len2       length of second block
+     * @param polynomial reversed polynomial, {@link #POLYNOMIAL} or 0xEDB88320 for CRC-32
+     * @return CRC of first block followed by second one
+     */
+    public static long combine(long crc1, long crc2, long len2, int polynomial) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        //operator for one zero bit
+        odd[0] = polynomial & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        //operator for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+        //apply len2 zero bytes to crc1
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
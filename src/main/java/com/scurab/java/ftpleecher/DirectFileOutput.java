@@ -0,0 +1,103 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PartOutput} writing part directly into its place in final file<br/>
+ * Final file is preallocated to size of remote file, every commit is stored in {@link PartOffsetRecord}
+ */
+public class DirectFileOutput implements PartOutput {
+
+    private final RandomAccessFile mFile;
+
+    private final FileChannel mChannel;
+
+    private final PartOffsetRecord mRecord;
+
+    private final int mPart;
+
+    /**
+     * Position in file for next write
+     */
+    private long mPosition;
+
+    /**
+     * Already written data of this part
+     */
+    private long mWritten;
+
+    /**
+     * @param file        final output file
+     * @param fileSize    complete size of remote file
+     * @param partOffset  position of part in final file
+     * @param written     already committed length of this part
+     * @param record      record of committed offsets, can be null for hedged duplicate which can't commit
+     * @param part        part number
+     * @throws IOException
+     */
+    public DirectFileOutput(File file, long fileSize, long partOffset, long written, PartOffsetRecord record, int part) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mRecord = record;
+        mPart = part;
+        mWritten = written;
+        mPosition = partOffset + written;
+        //every part of file is trying to do same, so don't let them fight
+        synchronized (DirectFileOutput.class) {
+            if (mFile.length() != fileSize) {
+                mFile.setLength(fileSize);
+            }
+        }
+    }
+
+    /**
+     * Prepare final file before first part opens it<br/>
+     * Existing file without offset record isn't part of this download, it's renamed to <code>.old</code>
+     * same way as output of merge. Record is created, so other parts of file don't rename it again.
+     *
+     * @param file   final output file
+     * @param record record of committed offsets
+     * @throws IOException
+     */
+    static void prepare(File file, PartOffsetRecord record) throws IOException {
+        synchronized (DirectFileOutput.class) {
+            if (record.exists()) {
+                return;
+            }
+            if (file.exists() && !file.renameTo(new File(file.getPath() + ".old" + System.currentTimeMillis()))) {
+                throw new IOException("Unable to rename existing file:" + file.getAbsolutePath());
+            }
+            record.create();
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, len);
+        while (bb.hasRemaining()) {
+            mPosition += mChannel.write(bb, mPosition);
+        }
+        mWritten += len;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        mChannel.force(false);
+        if (mRecord != null) {
+            mRecord.setCommitted(mPart, mWritten);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming crawler of remote tree, created by {@link FTPFactory#crawl(FTPFile, String, String, int, Listener)}<br/>
+ * Folders are listed concurrently by several sessions and task for every file is passed to listener
+ * as soon as file is discovered, so downloading can start before whole tree is known.
+ * Every crawler thread keeps its own session for all its folders regardless of {@link FTPSettings#reuseSessions}.
+ * Folder refused by full server is listed again later, folders which can't be listed are in {@link #getErrors()}.
+ */
+public class DirectoryCrawler {
+
+    public interface Listener {
+        /**
+         * Called from crawler thread for every discovered file
+         *
+         * @param task
+         */
+        void onTaskCreated(DownloadTask task);
+
+        /**
+         * Called if folder can't be listed, crawling continues with other folders<br/>
+         * Error is kept in {@link DirectoryCrawler#getErrors()} too.
+         *
+         * @param path remote folder
+         * @param e
+         */
+        void onError(String path, Exception e);
+
+        /**
+         * Called once when whole tree is listed or crawling is cancelled
+         *
+         * @param crawler
+         */
+        void onFinished(DirectoryCrawler crawler);
+    }
+
+    /**
+     * Default count of concurrently listed folders
+     */
+    public static final int DEFAULT_SESSIONS = 4;
+
+    /**
+     * How many times is listing retried on new connection
+     */
+    private static final int RETRIES = 1;
+
+    private static final long POLL_TIMEOUT = 100;
+
+    private final FTPFactory mFactory;
+
+    private final FTPContext mConfig;
+
+    private final FTPFile mRoot;
+
+    private final Listener mListener;
+
+    private final int mSessions;
+
+    /**
+     * Folders waiting for listing, newest first to finish subtrees before starting new ones
+     */
+    private final LinkedBlockingDeque<FTPContext> mQueue = new LinkedBlockingDeque<FTPContext>();
+
+    /**
+     * Count of queued and currently listed folders, crawling is done when it drops to 0
+     */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private final AtomicInteger mFolders = new AtomicInteger();
+
+    private final AtomicInteger mFiles = new AtomicInteger();
+
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Folders which can't be listed, key is remote path
+     */
+    private final ConcurrentHashMap<String, Exception> mErrors = new ConcurrentHashMap<String, Exception>();
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param factory
+     * @param config   context with {@link FTPContext#remoteFullPath} and {@link FTPContext#outputDirectory} of root
+     * @param root     remote file or folder
+     * @param sessions count of crawler threads
+     * @param listener
+     */
+    DirectoryCrawler(FTPFactory factory, FTPContext config, FTPFile root, int sessions, Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener is null");
+        }
+        mFactory = factory;
+        mConfig = config;
+        mRoot = root;
+        mSessions = Math.max(1, sessions);
+        mListener = listener;
+    }
+
+    void start() {
+        if (mRoot.isFile()) {
+            //nothing to list
+            mFiles.incrementAndGet();
+            mListener.onTaskCreated(mFactory.createTaskForFile(mConfig, mRoot));
+            finish();
+            return;
+        }
+        mPending.incrementAndGet();
+        mQueue.add(mConfig);
+        for (int i = 0; i < mSessions; i++) {
+            Thread t = new Thread(new Worker(), "Crawler " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Crawler thread with its own session
+     */
+    private class Worker implements Runnable {
+
+        private FTPClient mSession;
+
+        /**
+         * Refused connections in row
+         */
+        private int mRefusals;
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } finally {
+                close();
+            }
+        }
+
+        private void work() {
+            while (!mCancelled && mPending.get() > 0) {
+                FTPContext folder;
+                try {
+                    folder = mQueue.pollFirst(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (folder == null) {
+                    //others are still listing, they can find new folders
+                    continue;
+                }
+                boolean requeued = false;
+                try {
+                    crawl(folder);
+                    mRefusals = 0;
+                } catch (Exception e) {
+                    if (AdaptiveConcurrencyController.isConnectionRefusal(e) && ++mRefusals < folder.refusalsToStop && !mCancelled) {
+                        //server is full, folder waits for other session or for this one after delay
+                        mQueue.addLast(folder);
+                        requeued = true;
+                    } else {
+                        mRefusals = 0;
+                        mErrors.put(folder.remoteFullPath, e);
+                        mListener.onError(folder.remoteFullPath, e);
+                    }
+                } finally {
+                    if (!requeued && mPending.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+                if (requeued) {
+                    try {
+                        Thread.sleep(folder.retryDelay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (mCancelled) {
+                finish();
+            }
+        }
+
+        private void crawl(FTPContext folder) throws IOException, FatalFTPException {
+            FTPFile[] files = list(folder);
+            mFolders.incrementAndGet();
+            final String sep = mFactory.getFolderSeparator();
+            for (FTPFile f : files) {
+                if (mCancelled) {
+                    return;
+                }
+                FTPContext newCfg = folder.clone();
+                newCfg.groupId = FTPFactory.nextGroupId();
+                newCfg.remoteFullPath += FTPFactory.FTP_SEPARATOR + f.getName();
+                if (f.isFile()) {
+                    mFiles.incrementAndGet();
+                    mListener.onTaskCreated(mFactory.createTaskForFile(newCfg, f));
+                } else {
+                    newCfg.outputDirectory += sep + f.getName();
+                    mPending.incrementAndGet();
+                    mQueue.addFirst(newCfg);
+                }
+            }
+        }
+
+        /**
+         * List folder on session of this thread, failed listing is retried on new connection, refusal is not
+         *
+         * @param folder
+         * @return
+         * @throws IOException
+         * @throws FatalFTPException
+         */
+        private FTPFile[] list(FTPContext folder) throws IOException, FatalFTPException {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    if (mSession == null) {
+                        mSession = FTPFactory.openFtpClient(folder);
+                    }
+                    return FTPFactory.listDirectory(folder, mSession, folder.remoteFullPath);
+                } catch (IOException e) {
+                    close();
+                    if (attempt >= RETRIES || mCancelled || AdaptiveConcurrencyController.isConnectionRefusal(e)) {
+                        throw e;
+                    }
+                } catch (FatalFTPException e) {
+                    if (AdaptiveConcurrencyController.isConnectionRefusal(e)) {
+                        close();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        private void close() {
+            if (mSession != null) {
+                try {
+                    mSession.disconnect();
+                } catch (Exception e) {/**/}
+                mSession = null;
+            }
+        }
+    }
+
+    private void finish() {
+        if (mFinished.compareAndSet(false, true)) {
+            mListener.onFinished(this);
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Stop crawling, already created tasks are not affected
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Wait until whole tree is listed or crawling is cancelled
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        mDone.await();
+    }
+
+    public boolean isFinished() {
+        return mFinished.get();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Get count of already listed folders
+     *
+     * @return
+     */
+    public int getFolders() {
+        return mFolders.get();
+    }
+
+    /**
+     * Get folders which can't be listed, their subtrees are missing
+     *
+     * @return copy of errors, key is remote path
+     */
+    public Map<String, Exception> getErrors() {
+        return new HashMap<String, Exception>(mErrors);
+    }
+
+    /**
+     * Get count of discovered files
+     *
+     * @return
+     */
+    public int getFiles() {
+        return mFiles.get();
+    }
+}
@@ -0,0 +1,168 @@
+package com.scurab.java.ftpleecher;
+
+import com.scurab.java.ftpleecher.tools.TextUtils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of downloading, one instance for whole process, see {@link FTPFactory#getMetrics()}<br/>
+ * Everything is recorded lock free, it's read by {@link LeechMetrics}.
+ */
+public class DownloadMetrics {
+
+    private final LatencyHistogram mConnect = new LatencyHistogram();
+
+    private final LatencyHistogram mLogin = new LatencyHistogram();
+
+    private final LatencyHistogram mFirstByte = new LatencyHistogram();
+
+    private final LatencyHistogram mMerge = new LatencyHistogram();
+
+    private final LongAdder mMergedBytes = new LongAdder();
+
+    private final LongAdder mSchedulerWakeUps = new LongAdder();
+
+    /**
+     * Retries per reason, see {@link #getReason(Throwable)}
+     */
+    private final ConcurrentHashMap<String, LongAdder> mRetries = new ConcurrentHashMap<String, LongAdder>();
+
+    private final ConcurrentHashMap<String, LongAdder> mFatalErrors = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * Names of reply codes, {@link TextUtils#getFtpCodeName(int)} uses reflection
+     */
+    private final ConcurrentHashMap<Integer, String> mCodeNames = new ConcurrentHashMap<Integer, String>();
+
+    void onConnect(long nanos) {
+        mConnect.record(nanos);
+    }
+
+    void onLogin(long nanos) {
+        mLogin.record(nanos);
+    }
+
+    /**
+     * Time from RETR to first received data
+     *
+     * @param nanos
+     */
+    void onFirstByte(long nanos) {
+        mFirstByte.record(nanos);
+    }
+
+    void onMerge(long bytes, long nanos) {
+        mMerge.record(nanos);
+        mMergedBytes.add(bytes);
+    }
+
+    void onSchedulerWakeUp() {
+        mSchedulerWakeUps.increment();
+    }
+
+    /**
+     * Part failed and is going to be downloaded again
+     *
+     * @param t
+     */
+    void onRetry(Throwable t) {
+        increment(mRetries, getReason(t));
+    }
+
+    /**
+     * Part failed and is stopped
+     *
+     * @param t
+     */
+    void onFatalError(Throwable t) {
+        increment(mFatalErrors, getReason(t));
+    }
+
+    private static void increment(ConcurrentHashMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+
+    /**
+     * Get reason of failure, FTP reply code with its name or name of exception if there is no reply code
+     *
+     * @param t
+     * @return
+     */
+    private String getReason(Throwable t) {
+        if (t instanceof FatalFTPException && ((FatalFTPException) t).getReplyCode() > 0) {
+            final int code = ((FatalFTPException) t).getReplyCode();
+            String name = mCodeNames.get(code);
+            if (name == null) {
+                name = TextUtils.getFtpCodeName(code);
+                name = TextUtils.isNullOrEmpty(name) ? String.valueOf(code) : code + " " + name;
+                mCodeNames.put(code, name);
+            }
+            return name;
+        }
+        if (t instanceof FatalFTPException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t.getClass().getSimpleName();
+    }
+
+    private static Map<String, Long> toMap(ConcurrentHashMap<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    public LatencyHistogram getConnectLatency() {
+        return mConnect;
+    }
+
+    public LatencyHistogram getLoginLatency() {
+        return mLogin;
+    }
+
+    public LatencyHistogram getFirstByteLatency() {
+        return mFirstByte;
+    }
+
+    public LatencyHistogram getMergeLatency() {
+        return mMerge;
+    }
+
+    public long getMergedBytes() {
+        return mMergedBytes.sum();
+    }
+
+    public long getSchedulerWakeUps() {
+        return mSchedulerWakeUps.sum();
+    }
+
+    /**
+     * Get count of retries per reason
+     *
+     * @return
+     */
+    public Map<String, Long> getRetries() {
+        return toMap(mRetries);
+    }
+
+    /**
+     * Get count of fatal errors per reason
+     *
+     * @return
+     */
+    public Map<String, Long> getFatalErrors() {
+        return toMap(mFatalErrors);
+    }
+}
@@ -1,11 +1,11 @@
 package com.scurab.java.ftpleecher;
 
-import org.apache.commons.io.IOUtils;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class representing one particular task<br/>
@@ -13,31 +13,57 @@ import java.util.*;
  */
 public class DownloadTask implements FTPDownloadListener {
 
+    private static final AtomicLong sIdCounter = new AtomicLong();
+
+    /**
+     * Unique id of task in this process
+     */
+    private final long mId = sIdCounter.incrementAndGet();
+
     /**
      * collections where are all working threads *
      */
     private List<FTPDownloadThread> mData;
 
     /**
-     * collection of active working threads *
+     * groups of separated files, key is {@link FTPContext#groupId}
      */
-    private final List<FTPDownloadThread> mWorkingThreads;
+    private final TreeMap<Long, MergeGroup> mGroups = new TreeMap<Long, MergeGroup>();
 
     private boolean mDeleteAfterMerge;
 
+    /**
+     * results of {@link ContentVerifier}, key is {@link FTPContext#groupId}
+     */
+    private final ConcurrentHashMap<Long, ContentVerifier.Result> mVerifications = new ConcurrentHashMap<Long, ContentVerifier.Result>();
+
+    /**
+     * Id in {@link ResumeJournal}, 0 if task isn't journaled
+     */
+    private long mJournalId;
+
     private boolean mIsMerging = false;
 
+    /**
+     * flag for merging thread that there is something new to merge
+     */
+    private boolean mMergeRequested = false;
+
     public DownloadTask(Collection<FTPDownloadThread> data) {
-        mData = new ArrayList<FTPDownloadThread>(data);
-        mWorkingThreads = new ArrayList<FTPDownloadThread>(data);
+        mData = new CopyOnWriteArrayList<FTPDownloadThread>(data);
         bind();
     }
 
     private void bind() {
         for (FTPDownloadThread t : mData) {
-            t.registerListener(this);
-            t.setParentTask(this);
+            bind(t);
         }
+        createGroups();
+    }
+
+    private void bind(FTPDownloadThread t) {
+        t.registerListener(this);
+        t.setParentTask(this);
     }
 
     //region notification
@@ -62,181 +88,375 @@ public class DownloadTask implements FTPDownloadListener {
     //endregion notification
 
     private void performStatusChange(final FTPDownloadThread source, final FTPDownloadThread.State state) {
-        final boolean finished = (state == FTPDownloadThread.State.Finished);
-        boolean merge = false;
-
-        //ignore these states, because they are set from this class
-        if (state != FTPDownloadThread.State.Merging) {
-            if (finished) {
-                synchronized (mWorkingThreads) {
-                    mWorkingThreads.remove(source);
-                }
-                //finished is called here or in download thread if not separated and file with same size is found
-                //on local drive
-            } else {
-                synchronized (mWorkingThreads) {
-                    if (source.getParentTask() != this) {
-                        System.err.println("This thread is not from this task!" + source.getContext().toString());
-                        return;
-                    } else {
-                        if (state == FTPDownloadThread.State.Downloaded) {
-                            mWorkingThreads.remove(source);
-                        } else {
-                            if (!mWorkingThreads.contains(source)) {
-                                //can be restarted, finished are handled before
-                                mWorkingThreads.add(source);
-                            }
-                        }
-                    }
-                }
+        //only downloaded parts are interesting, rest of states is handled by download thread or set from this class
+        if (state == FTPDownloadThread.State.Downloaded) {
+            if (source.getParentTask() != this) {
+                System.err.println("This thread is not from this task!" + source.getContext().toString());
+                return;
             }
-            merge = mWorkingThreads.size() == 0 && mData.size() > 1;
-            //we are done in this task, now is time to merge
-            if (merge) {
-                if(!mIsMerging){
-                    synchronized (this){
-                        if(!mIsMerging){
-                            mIsMerging = true;
-                            //must be called in diff thread to let finish current downloading thread
-                            performMerge();
-                        }
-                    }
+            //part is done, try to append it (and any following already downloaded) to final file
+            performMerge(source);
+        } else if (state == FTPDownloadThread.State.Finished && source.getContext().parts == 1
+                && source.getContext().contentHash != null && source.getParentTask() == this) {
+            //file isn't merged, verify it in diff thread to let finish current downloading thread
+            source.getEngine().execute(new Runnable() {
+                @Override
+                public void run() {
+                    verify(Collections.singletonList(source));
                 }
-
-            }
+            });
         }
     }
 
-    private void performMerge() {
-        Thread t = new Thread(new Runnable() {
+    private void performMerge(FTPDownloadThread source) {
+        synchronized (this) {
+            mMergeRequested = true;
+            if (mIsMerging) {
+                //running merge thread will take it
+                return;
+            }
+            mIsMerging = true;
+        }
+        //must be called in diff thread to let finish current downloading thread
+        source.getEngine().execute(new Runnable() {
             @Override
             public void run() {
-                    /*
-                     * wait for sec to finish last thread
-                     */
+                final Thread current = Thread.currentThread();
+                final String name = current.getName();
+                current.setName("MergeThread");
                 try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    mergeLoop();
+                } finally {
+                    current.setName(name);
                 }
-                onMergeFiles();
-                mIsMerging = false;
             }
         });
-        t.setName("MergeThread");
-        t.start();
     }
 
-    public void onMergeFiles() {
-        HashMap<Long, FTPDownloadThread[]> subGroups = getSubGroups();
-        if(subGroups == null){
-            return;
+    /**
+     * Merge everything what is ready until there is no new request
+     */
+    private void mergeLoop() {
+        while (true) {
+            synchronized (this) {
+                if (!mMergeRequested) {
+                    mIsMerging = false;
+                    return;
+                }
+                mMergeRequested = false;
+            }
+            onMergeFiles();
         }
-        List<Long> keys = new ArrayList<Long>(subGroups.keySet());
-        Collections.sort(keys);
-        for (Long l : keys) {
+    }
+
+    /**
+     * Append every part which is downloaded and all previous parts of same file are already merged
+     */
+    public void onMergeFiles() {
+        for (MergeGroup group : mGroups.values()) {
             try {
-                FTPDownloadThread[] arr = subGroups.get(l);
-                //if it's null it's still not ready
-                if (arr != null) {
-                    mergeFiles(arr);
-                }
+                mergeFiles(group);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private void unregisterListener(FTPDownloadThread[] parts) {
-        for (FTPDownloadThread ft : parts) {
-            ft.unregisterListener(this);
+    private void mergeFiles(MergeGroup group) throws Exception {
+        synchronized (group) {
+            if (group.done) {
+                return;
+            }
+            final RangeTable parts = group.parts;
+            FTPContext context = parts.get(0).getContext();
+
+            //data are already in final file
+            if (context.isDirectPlacement()) {
+                List<FTPDownloadThread> ranges = parts.getRanges();
+                if (isDownloaded(ranges)) {
+                    group.done = true;
+                    if (context.contentHash == null) {
+                        finishDirectPlacement(ranges);
+                    } else {
+                        verifyAndFinish(ranges, null);
+                    }
+                }
+                return;
+            }
+
+            //parts merged before restart, see ResumeJournal
+            while (group.merger == null && group.next < parts.size() && parts.get(group.next).getFtpState() == FTPDownloadThread.State.Finished) {
+                group.merged += parts.get(group.next).getContext().currentPieceLength;
+                group.next++;
+            }
+
+            while (group.next < parts.size() && parts.get(group.next).getFtpState() == FTPDownloadThread.State.Downloaded) {
+                if (group.merger == null) {
+                    group.merger = createMerger(context, group.merged, group.started);
+                    group.started = true;
+                }
+                FTPDownloadThread thread = parts.get(group.next);
+                //all previous parts are merged, so nothing can be split anymore
+                final boolean last = group.next == parts.size() - 1;
+                try {
+                    //set state
+                    thread.setFtpState(FTPDownloadThread.State.Merging);
+                    context = thread.getContext();
+
+                    //region copy
+                    final long start = System.nanoTime();
+                    long copied = group.merger.append(context.localFile);
+                    if (context.currentPieceLength != copied) {
+                        System.err.println(String.format("Copied:%s, Should be:%s", copied, context.currentPieceLength));
+                    }
+                    if (mJournalId > 0) {
+                        //part is journaled as merged right after state change
+                        group.merger.sync();
+                    }
+                    FTPFactory.getMetrics().onMerge(copied, System.nanoTime() - start);
+                    group.merged += copied;
+                    //end region
+
+                    if (last && context.contentHash != null) {
+                        //part stays in merging until file is verified, see verifyAndFinish
+                        group.next++;
+                        break;
+                    }
+                    //set final state
+                    thread.setFtpState(FTPDownloadThread.State.Finished);
+                } catch (Exception e) {
+                    //group stays open, merging continues after merged parts when restarted part is downloaded again
+                    thread.setFtpState(FTPDownloadThread.State.Error);
+                    try {
+                        group.merger.close();
+                    } catch (Exception ce) {/**/}
+                    group.merger = null;
+                    throw e;
+                }
+                onMerged(thread);
+                group.next++;
+            }
+
+            //split can't happen now, all ranges are downloaded
+            if (group.next == parts.size()) {
+                group.done = true;
+                if (group.merger == null) {
+                    //everything was merged before restart, see createGroups
+                    return;
+                }
+                try {
+                    group.merger.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                if (context.contentHash != null) {
+                    verifyAndFinish(parts.getRanges(), parts.get(parts.size() - 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Clean up after part is consumed by merge
+     *
+     * @param thread
+     */
+    private void onMerged(FTPDownloadThread thread) {
+        final FTPContext context = thread.getContext();
+        thread.deleteBlockChecksums();
+        if (mDeleteAfterMerge && context.localFile.exists() && !context.localFile.delete()) {
+            System.err.println("Unable to delete " + context.localFile.getAbsolutePath());
         }
     }
 
-    private void mergeFiles(FTPDownloadThread[] parts) throws Exception {
+    /**
+     * Create merger for group, merging is continued if any part was merged before restart or failed append
+     *
+     * @param context
+     * @param merged  length of already merged parts
+     * @param started true if output was already created by this group
+     * @return
+     * @throws IOException
+     */
+    private FileMerger createMerger(FTPContext context, long merged, boolean started) throws IOException {
+        if (merged == 0 && !started) {
+            return new FileMerger(createOutputFile(context), context.inPlaceMerge);
+        }
         final String sep = System.getProperty("file.separator");
-        FTPContext context = parts[0].getContext();
+        //output exists already, in place merger just continues appending to it
+        FileMerger merger = new FileMerger(new File(context.outputDirectory + sep + context.fileName), context.inPlaceMerge);
+        merger.resume(merged);
+        return merger;
+    }
 
-        //create output file and rename it if exists
+    /**
+     * Create output file for merging and rename it if exists
+     *
+     * @param context
+     * @return
+     */
+    private File createOutputFile(FTPContext context) {
+        final String sep = System.getProperty("file.separator");
         File outputFile = new File(context.outputDirectory + sep + context.fileName);
         if (outputFile.exists()) {
             outputFile.renameTo(new File(context.outputDirectory + sep + context.fileName + ".old" + System.currentTimeMillis()));
         }
+        return outputFile;
+    }
 
-        //final output stream
-        FileOutputStream fos = new FileOutputStream(outputFile);
-        for (int i = 0, n = parts.length; i < n; i++) {
-            FTPDownloadThread thread = parts[i];
-            try {
-                //set state
-                thread.setFtpState(FTPDownloadThread.State.Merging);
-                context = thread.getContext();
+    private boolean isDownloaded(List<FTPDownloadThread> parts) {
+        for (FTPDownloadThread thread : parts) {
+            final FTPDownloadThread.State state = thread.getFtpState();
+            //finished part can be restored from journal
+            if (state != FTPDownloadThread.State.Downloaded && state != FTPDownloadThread.State.Finished) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                //region copy
-                FileInputStream fis = new FileInputStream(context.localFile);
-                int copied = IOUtils.copy(fis, fos);
-                if (context.currentPieceLength != copied) {
-                    System.err.println(String.format("Copied:%s, Should be:%s", copied, context.currentPieceLength));
-                }
-                fis.close();
-                //end region
+    /**
+     * Finish file downloaded by {@link FTPSettings#directPlacement}, there is nothing to merge
+     *
+     * @param parts
+     */
+    private void finishDirectPlacement(List<FTPDownloadThread> parts) {
+        for (FTPDownloadThread thread : parts) {
+            thread.setFtpState(FTPDownloadThread.State.Finished);
+            thread.deleteBlockChecksums();
+        }
+        PartOffsetRecord record = parts.get(0).getOffsetRecord();
+        if (!record.delete() && record.exists()) {
+            System.err.println("Unable to delete " + record.getFile().getAbsolutePath());
+        }
+    }
 
-                //set final state
-                thread.setFtpState(FTPDownloadThread.State.Finished);
-            } catch (Exception e) {
-                thread.setFtpState(FTPDownloadThread.State.Error);
-                throw e;
+    /**
+     * Verify complete file in engine thread, merge thread continues with other files<br/>
+     * File is finished after verification, so result is already known when its last part gets
+     * {@link FTPDownloadThread.State#Finished} state.
+     *
+     * @param parts all parts of file ordered by offset
+     * @param last  merged part waiting for verification or null for {@link FTPSettings#directPlacement}
+     */
+    private void verifyAndFinish(final List<FTPDownloadThread> parts, final FTPDownloadThread last) {
+        FTPDownloadThread owner = last;
+        for (FTPDownloadThread thread : parts) {
+            if (thread.getFtpState() == FTPDownloadThread.State.Downloaded) {
+                thread.setFtpState(FTPDownloadThread.State.Merging);
+                owner = thread;
             }
         }
-        try {
-            fos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (owner == null) {
+            //everything finished before restart
+            owner = parts.get(parts.size() - 1);
         }
-        if (mDeleteAfterMerge) {
-            for (int i = 0, n = parts.length; i < n; i++) {
-                FTPDownloadThread thread = parts[i];
-                context = thread.getContext();
-                try {
-                    context.localFile.delete();
-                } catch (Exception e) {
-                    e.printStackTrace();
+        owner.getEngine().execute(new Runnable() {
+            @Override
+            public void run() {
+                verify(parts);
+                if (last != null) {
+                    last.setFtpState(FTPDownloadThread.State.Finished);
+                    onMerged(last);
+                } else {
+                    finishDirectPlacement(parts);
                 }
             }
+        });
+    }
 
+    /**
+     * Verify complete file by {@link ContentVerifier} if {@link FTPSettings#contentHash} is set
+     *
+     * @param parts all parts of file ordered by offset
+     */
+    private void verify(List<FTPDownloadThread> parts) {
+        final FTPContext context = parts.get(0).getContext();
+        if (context.contentHash == null) {
+            return;
+        }
+        final TransferTracer tracer = FTPFactory.getTracer();
+        final long start = tracer.begin();
+        ContentVerifier.Result result;
+        try {
+            result = new ContentVerifier(parts).verify();
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = ContentVerifier.Result.UNVERIFIED;
         }
+        if (start != 0) {
+            //verification has no track of its own, it's shown in track of first part
+            tracer.record(parts.get(0).getTrack(), "verify", "phase", start, System.nanoTime() - start);
+        }
+        if (result == ContentVerifier.Result.FAILED) {
+            System.err.println("Content doesn't match hash of server:" + context.remoteFullPath);
+        }
+        mVerifications.put(context.groupId, result);
     }
 
     /**
-     * Get subgroup, each subgroup is one file separated to parts
+     * Get result of verification of file downloaded by thread, see {@link FTPSettings#contentHash}
      *
-     * @return
+     * @param thread any part of file
+     * @return result or null if file isn't verified (yet)
      */
-    private HashMap<Long, FTPDownloadThread[]> getSubGroups() {
-        boolean someNotFinished = false;
-        HashMap<Long, FTPDownloadThread[]> result = new HashMap<Long, FTPDownloadThread[]>();
+    public ContentVerifier.Result getVerification(FTPDownloadThread thread) {
+        return mVerifications.get(thread.getContext().groupId);
+    }
 
+    /**
+     * Create subgroups, each subgroup is one file separated to parts
+     */
+    private void createGroups() {
         for (FTPDownloadThread ft : mData) {
             FTPContext c = ft.getContext();
             //ignore files which are not separated
             if (c.parts > 1) {
-
-                FTPDownloadThread[] arr = result.get(c.groupId);
-                if (arr == null) {
-                    arr = new FTPDownloadThread[c.parts];
-                    result.put(c.groupId, arr);
+                MergeGroup group = mGroups.get(c.groupId);
+                if (group == null) {
+                    group = new MergeGroup();
+                    mGroups.put(c.groupId, group);
                 }
-                arr[c.part] = ft;
-                someNotFinished |= ft.getFtpState() != FTPDownloadThread.State.Downloaded;
+                group.parts.add(ft, c);
             }
         }
-        //this can happend for example if someone restarted download in the middle of checking
-        if (someNotFinished) {
-            return null;
+        //file merged completely before restart, see ResumeJournal
+        for (MergeGroup group : mGroups.values()) {
+            group.done = isMerged(group.parts.getRanges());
+        }
+    }
+
+    private boolean isMerged(List<FTPDownloadThread> parts) {
+        for (FTPDownloadThread thread : parts) {
+            if (thread.getFtpState() != FTPDownloadThread.State.Finished) {
+                return false;
+            }
         }
-        return result;
+        return true;
     }
 
+    /**
+     * Split back half of not downloaded range of thread into new thread
+     *
+     * @param victim    downloading thread of this task
+     * @param minLength min length of both halves
+     * @return new thread or null if it's not possible
+     */
+    public FTPDownloadThread split(FTPDownloadThread victim, long minLength) {
+        if (victim.getParentTask() != this) {
+            return null;
+        }
+        MergeGroup group = mGroups.get(victim.getContext().groupId);
+        if (group == null) {
+            return null;
+        }
+        FTPDownloadThread thread = group.parts.split(victim, minLength);
+        if (thread != null) {
+            mData.add(thread);
+            bind(thread);
+        }
+        return thread;
+    }
 
     public List<FTPDownloadThread> getData() {
         return Collections.unmodifiableList(mData);
@@ -249,4 +469,67 @@ public class DownloadTask implements FTPDownloadListener {
     public boolean getDeleteAfterMeger() {
         return mDeleteAfterMerge;
     }
+
+    /**
+     * Returns true if all parts are finished
+     *
+     * @return
+     */
+    public boolean isFinished() {
+        for (FTPDownloadThread t : mData) {
+            if (t.getFtpState() != FTPDownloadThread.State.Finished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get unique id of task in this process, it's not kept after restart, see {@link #getJournalId()}
+     *
+     * @return
+     */
+    public long getId() {
+        return mId;
+    }
+
+    long getJournalId() {
+        return mJournalId;
+    }
+
+    void setJournalId(long journalId) {
+        mJournalId = journalId;
+    }
+
+    /**
+     * Merging state of one file separated to parts
+     */
+    private static class MergeGroup {
+        /**
+         * parts ordered by {@link FTPContext#offset}
+         */
+        final RangeTable parts = new RangeTable();
+
+        /**
+         * index of next part waiting for append
+         */
+        int next = 0;
+
+        /**
+         * length of already merged parts incl. parts merged before restart
+         */
+        long merged = 0;
+
+        /**
+         * output, created with first merged part, it's closed and cleared after failed append
+         */
+        FileMerger merger;
+
+        /**
+         * output was created by this group, it's continued instead of renamed after failed append
+         */
+        boolean started = false;
+
+        boolean done = false;
+    }
 }
@@ -0,0 +1,170 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous delivery of {@link FTPDownloadListener} events<br/>
+ * Download thread only posts event and continues, listeners are called from one dispatcher thread.
+ * Events of one part are delivered in order, progress is coalesced, only latest value of every part
+ * is delivered at most once per {@link #getProgressInterval()}.
+ */
+public class EventDispatcher {
+
+    /**
+     * Default min time between progress events of one part in ms
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 500;
+
+    private final LinkedBlockingQueue<Event> mQueue = new LinkedBlockingQueue<Event>();
+
+    /**
+     * Latest not delivered progress of every part
+     */
+    private final ConcurrentHashMap<FTPDownloadThread, Progress> mProgress = new ConcurrentHashMap<FTPDownloadThread, Progress>();
+
+    private final Thread mThread;
+
+    private volatile long mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    private volatile boolean mRunning = true;
+
+    public EventDispatcher() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "EventDispatcher");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    //region posting
+
+    void postStatusChange(FTPDownloadThread source, FTPDownloadThread.State state) {
+        mQueue.offer(new Event(source, state, null));
+    }
+
+    void postError(FTPDownloadThread source, Exception e) {
+        mQueue.offer(new Event(source, null, e));
+    }
+
+    void postProgress(FTPDownloadThread source, long downloaded, long downloadedInSec) {
+        mProgress.put(source, new Progress(downloaded, downloadedInSec));
+    }
+
+    //endregion posting
+
+    private void dispatchLoop() {
+        long nextFlush = System.currentTimeMillis() + mProgressInterval;
+        while (mRunning) {
+            Event event;
+            try {
+                event = mQueue.poll(Math.max(1, nextFlush - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (event != null) {
+                //progress before state change, it happened before
+                deliverProgress(event.source, mProgress.remove(event.source));
+                deliver(event);
+            }
+            final long now = System.currentTimeMillis();
+            if (now >= nextFlush) {
+                Iterator<Map.Entry<FTPDownloadThread, Progress>> it = mProgress.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<FTPDownloadThread, Progress> e = it.next();
+                    it.remove();
+                    deliverProgress(e.getKey(), e.getValue());
+                }
+                nextFlush = now + mProgressInterval;
+            }
+        }
+    }
+
+    private void deliver(Event event) {
+        for (FTPDownloadListener l : event.source.getListeners()) {
+            try {
+                if (event.state != null) {
+                    l.onStatusChange(event.source, event.state);
+                } else if (event.error instanceof FatalFTPException) {
+                    l.onFatalError(event.source, (FatalFTPException) event.error);
+                } else {
+                    l.onError(event.source, event.error);
+                }
+            } catch (Throwable t) {
+                //one broken listener can't stop others
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void deliverProgress(FTPDownloadThread source, Progress progress) {
+        if (progress == null) {
+            return;
+        }
+        for (FTPDownloadListener l : source.getListeners()) {
+            try {
+                l.onDownloadProgress(source, progress.downloaded, progress.downloadedInSec);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    public long getProgressInterval() {
+        return mProgressInterval;
+    }
+
+    /**
+     * Set min time between progress events of one part
+     *
+     * @param progressInterval in ms
+     */
+    public void setProgressInterval(long progressInterval) {
+        mProgressInterval = Math.max(1, progressInterval);
+    }
+
+    /**
+     * Get count of events waiting for delivery, progress is not counted
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stop dispatching, not delivered events are dropped
+     */
+    public void shutdown() {
+        mRunning = false;
+        mThread.interrupt();
+    }
+
+    private static class Event {
+        final FTPDownloadThread source;
+        final FTPDownloadThread.State state;
+        final Exception error;
+
+        Event(FTPDownloadThread source, FTPDownloadThread.State state, Exception error) {
+            this.source = source;
+            this.state = state;
+            this.error = error;
+        }
+    }
+
+    private static class Progress {
+        final long downloaded;
+        final long downloadedInSec;
+
+        Progress(long downloaded, long downloadedInSec) {
+            this.downloaded = downloaded;
+            this.downloadedInSec = downloadedInSec;
+        }
+    }
+}
@@ -31,6 +31,22 @@ public class FTPContext extends FTPSettings implements Cloneable {
         resume = fs.resume;
         bufferSize = fs.bufferSize;
         fileType = fs.fileType;
+        directPlacement = fs.directPlacement;
+        inPlaceMerge = fs.inPlaceMerge;
+        dynamicSplitting = fs.dynamicSplitting;
+        minSplitLength = fs.minSplitLength;
+        endgame = fs.endgame;
+        endgameThreshold = fs.endgameThreshold;
+        soTimeout = fs.soTimeout;
+        dataTimeout = fs.dataTimeout;
+        retryDelay = fs.retryDelay;
+        fatalErrorsToStop = fs.fatalErrorsToStop;
+        refusalsToStop = fs.refusalsToStop;
+        reuseSessions = fs.reuseSessions;
+        cacheListings = fs.cacheListings;
+        contentHash = fs.contentHash;
+        blockChecksums = fs.blockChecksums;
+        checksumBlockSize = fs.checksumBlockSize;
         return this;
     }
 
@@ -74,6 +90,11 @@ public class FTPContext extends FTPSettings implements Cloneable {
      */
     public long currentPieceLength = 0;
 
+    /**
+     * Position of this piece in remote file
+     */
+    public long offset = 0;
+
     /**
      * Define output directory for temp files
      */
@@ -91,6 +112,18 @@ public class FTPContext extends FTPSettings implements Cloneable {
      */
     public String localSingleFileTemplate = "%s" + System.getProperty("file.separator") + "%s";
 
+    /**
+     * local file template for {@link String#format(String, Object...)}<br/>
+     * Used only for {@link #directPlacement}, must contains 2 variables for outputFolder and file name
+     */
+    public String localOffsetRecordTemplate = "%s" + System.getProperty("file.separator") + "%s.offsets";
+
+    /**
+     * local file template for {@link String#format(String, Object...)}<br/>
+     * Used only for {@link #blockChecksums}, must contains 3 variables for outputFolder, file name and counter
+     */
+    public String localBlockChecksumsTemplate = "%s" + System.getProperty("file.separator") + "%s.part%03d.blk";
+
     /**
      * Local file name
      */
@@ -116,6 +149,11 @@ public class FTPContext extends FTPSettings implements Cloneable {
      */
     public int parts = 1;
 
+    /**
+     * Complete size of remote file
+     */
+    public long fileSize = 0;
+
     /**
      * Use secure ftp connection
      *
@@ -128,6 +166,15 @@ public class FTPContext extends FTPSettings implements Cloneable {
      */
     public boolean ignoreSSLCertIssues = false;
 
+    /**
+     * Returns true if parts are written directly into final file
+     *
+     * @return
+     */
+    public boolean isDirectPlacement() {
+        return directPlacement && parts > 1;
+    }
+
     @Override
     public FTPContext clone() {
         try {
@@ -1,14 +1,18 @@
 package com.scurab.java.ftpleecher;
 
-import com.scurab.java.ftpleecher.tools.TextUtils;
+import com.scurab.java.ftpleecher.engine.ExecutionEngine;
+import com.scurab.java.ftpleecher.engine.ExecutionEngines;
 import org.apache.commons.net.ftp.FTPClient;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.RandomAccessFile;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 /**
  * Core implementation of downloading
@@ -16,9 +20,17 @@ import java.util.List;
 public class FTPDownloadThread implements Runnable {
 
     /**
-     * Default wait time for any error to retry
+     * Default wait time for any error to retry, see {@link FTPSettings#retryDelay}
      */
     public static final int DEFAULT_WAIT = 10000;
+    /**
+     * Default count of fatal errors to stop, see {@link FTPSettings#fatalErrorsToStop}
+     */
+    public static final int DEFAULT_FATAL_ERRORS = 5;
+    /**
+     * Default count of refused connections in row to stop, see {@link FTPSettings#refusalsToStop}
+     */
+    public static final int DEFAULT_REFUSALS = 20;
     /**
      * Default time for calling {@link FTPDownloadListener#onDownloadProgress(FTPDownloadThread, double, double)} *
      */
@@ -38,20 +50,110 @@ public class FTPDownloadThread implements Runnable {
     /**
      * Current FTP state *
      */
-    private State mState = State.Created;
+    private volatile State mState = State.Created;
 
     /**
      * already downloaded len
      */
     private long mDownloaded;
+    /**
+     * Length of piece already reserved for writing, see {@link #claim(int)}
+     */
+    private long mClaimed;
+    /**
+     * Lock for {@link FTPContext#currentPieceLength} and {@link #mClaimed}, piece can be shortened by {@link #splitRange(long, int)}
+     */
+    private final Object mRangeLock = new Object();
+    /**
+     * Race with hedged duplicate of this range, see {@link #hedge()}
+     */
+    private volatile HedgeRace mRace;
+    /**
+     * Stream of current transfer, can be closed by {@link #cancelTransfer()}
+     */
+    private volatile InputStream mInput;
+    /**
+     * Flag for stalled or refused thread, current attempt is stopped and thread is put back to queue,
+     * see {@link #preempt()} and {@link #onAttemptFailed(Throwable)}
+     */
+    private volatile boolean mPreempted;
+    /**
+     * Optional bandwidth limiter, set by {@link FTPLeechMaster}
+     */
+    private volatile BandwidthLimiter mLimiter;
+    /**
+     * Optional journal of committed offsets, set by {@link FTPLeechMaster}
+     */
+    private volatile ResumeJournal mJournal;
+    /**
+     * Id in {@link ResumeJournal}, 0 if part isn't journaled
+     */
+    private long mJournalId;
+    /**
+     * CRC32 of written data of part file, used only with journal
+     */
+    private CRC32 mChecksum;
+
+    /**
+     * Hash of written bytes for {@link FTPSettings#contentHash}
+     */
+    private ContentHasher mHasher;
+
+    /**
+     * Hash of complete part, null if it's not known
+     */
+    private volatile String mContentHash;
+
+    /**
+     * Checksums of blocks for {@link FTPSettings#blockChecksums}
+     */
+    private BlockChecksums mBlocks;
+
+    /**
+     * Blocks of resumed part which don't match their checksums, see {@link #repairBlocks(FTPClient, File, long)}
+     */
+    private Map<Integer, Long> mSuspectBlocks;
+
+    /**
+     * Journaled checksum of resumed part doesn't match, but blocks do
+     */
+    private boolean mTailSuspect;
     /**
      * current avg speed in time {@link #NOTIFY}ms
      */
     private int mSpeed;
     /**
-     * Collection for listeners *
+     * Collection for listeners, it's copied on write, so events are delivered without lock
      */
-    private final List<FTPDownloadListener> mListeners = new ArrayList<FTPDownloadListener>();
+    private final List<FTPDownloadListener> mListeners = new CopyOnWriteArrayList<FTPDownloadListener>();
+
+    /**
+     * Dispatcher delivering events to listeners, events are delivered by this thread if it's null
+     */
+    private volatile EventDispatcher mDispatcher;
+
+    /**
+     * Contribution of this thread to statistics of master, it's accessed under {@link #mRangeLock}
+     */
+    private TransferStatistics.Slot mStatistics;
+
+    /**
+     * Track of this part in {@link TransferTracer}, created by first traced span
+     */
+    private volatile TransferTracer.Track mTrack;
+
+    /**
+     * Traced state and its start, span is recorded when state is changed<br/>
+     * Merge and download threads change state, both fields are written only under lock of {@link #setFtpState(State)}.
+     */
+    private volatile State mTraceState;
+
+    private volatile long mTraceSince;
+
+    /**
+     * Observer called synchronously by every state change, see {@link StateObserver}
+     */
+    private volatile StateObserver mStateObserver;
     /**
      * Keep somewhere last exception for UI layer
      */
@@ -59,248 +161,1185 @@ public class FTPDownloadThread implements Runnable {
 
     private DownloadTask mParentTask;
 
+    /**
+     * Last state seen by {@link FTPLeechMaster}, it's used only for scheduler accounting
+     */
+    private State mSchedulerState;
+
+    /**
+     * Scheduler shard of server of this thread, see {@link FTPLeechMaster}
+     */
+    private SchedulerShard mShard;
+
     private String mThreadName;
 
-    private Thread mWorkingThread;
+    /**
+     * Flag that downloading was started and it's not done yet, incl. waiting for retry or paused
+     */
+    private boolean mStarted;
+
+    /**
+     * Engine running this part, used for retries and resume after pause
+     */
+    private ExecutionEngine mEngine;
 
-    private static final int FATAL_ERROR_TO_STOP = 5;
+    /**
+     * Flag that working thread left paused or broken part and waits for {@link #setPause(boolean)}
+     */
+    private boolean mParked;
+
+    /**
+     * Don't delete already downloaded data on next attempt, set after pause
+     */
+    private boolean mForceResume;
+
+    /**
+     * Ignore any data of this part on next attempt, set for range created by {@link #splitRange(long, int)}<br/>
+     * Part number of split range can be same as number of range split in previous run, so its part file,
+     * block checksums and offset record slot can belong to different offset.
+     */
+    private boolean mFreshStart;
+
+    /**
+     * Delay of continuation of current attempt, negative if attempt ends by leaving {@link #downloadImpl()}
+     */
+    private long mContinuation = -1;
+
+    /**
+     * Flag that current run continues previous attempt, see {@link #continueAfter(long)}
+     */
+    private boolean mContinued;
 
     private int mFatalErrorCounter = 0;
 
     /**
-     * Base thread states *
+     * Count of refused connections in row, it's cleared when server accepts session, see {@link State#Connected}
+     */
+    private int mRefusalCounter = 0;
+
+    /**
+     * Limit epoch of shard when current attempt was started, see {@link SchedulerShard#onRefusal(FTPDownloadThread)}
+     */
+    private int mShardEpoch;
+
+    /**
+     * Base thread states *
+     */
+    public enum State {
+        //created must last to go trough all states and
+        Created, Started, Connecting, Connected, Downloading, Error, FatalError, WaitingForRetry, Paused, Downloaded, Merging, Finished, Cancelled
+    }
+
+    protected FTPDownloadThread(FTPContext config) {
+        if (config == null) {
+            throw new IllegalArgumentException("FTPContext is null!");
+        }
+        mConfig = config;
+
+        if (config.parts > 1) {
+            mThreadName = (String.format("%s %03d", mConfig.fileName, config.part));
+        } else {
+            mThreadName = (mConfig.fileName);
+        }
+    }
+
+    /**
+     * Start downloading by default engine {@link ExecutionEngines#getDefault()}
+     *
+     * @return false if it's already started
+     */
+    public boolean start() {
+        return start(ExecutionEngines.getDefault());
+    }
+
+    /**
+     * Start downloading
+     *
+     * @param engine engine running this part incl. all retries
+     * @return false if it's already started
+     */
+    public synchronized boolean start(ExecutionEngine engine) {
+        if (mStarted) {
+            return false;
+        } else {
+            mStarted = true;
+            mEngine = engine;
+            mFatalErrorCounter = 0;
+            mRefusalCounter = 0;
+            //preempted thread continues from committed offset
+            mForceResume = mPreempted;
+            mPreempted = false;
+            engine.execute(this);
+            return true;
+        }
+    }
+
+    public synchronized void restart(){
+        if(mStarted){
+            throw new IllegalStateException("Thread already started");
+        }else{
+            if(mState != State.Created){
+                setFtpState(State.Created);
+            }
+        }
+    }
+
+    /**
+     * One attempt of downloading<br/>
+     * Retry or resume is scheduled again by {@link ExecutionEngine}, so nothing is blocking working thread while waiting
+     */
+    @Override
+    public void run() {
+        final Thread current = Thread.currentThread();
+        final String name = current.getName();
+        current.setName(mThreadName);
+        final TransferTracer tracer = FTPFactory.getTracer();
+        //spans of connection are recorded into track of this part
+        tracer.attach(tracer.isEnabled() ? getTrack() : null);
+        try {
+            if (mContinued) {
+                mContinued = false;
+            } else {
+                mException = null;
+                //don't inform about this state, it's just flag that thread is already running
+                setFtpState(State.Started);
+            }
+            downloadImpl();
+            onAttemptFinished();
+        } finally {
+            tracer.attach(null);
+            current.setName(name);
+        }
+    }
+
+    /**
+     * Decide what to do after one {@link #downloadImpl()} call
+     */
+    private void onAttemptFinished() {
+        State state = mState;
+        final long continuation = mContinuation;
+        mContinuation = -1;
+        if (mPreempted && !isDone(state)) {
+            requeue();
+        } else if (continuation >= 0 && (state == State.Connecting || state == State.Connected || state == State.Downloading)) {
+            mContinued = true;
+            mEngine.schedule(this, continuation);
+        } else if (isDone(state)) {
+            synchronized (this) {
+                mStarted = false;
+            }
+        } else if (state == State.WaitingForRetry) {
+            mEngine.schedule(this, mConfig.retryDelay);
+        } else if (state == State.Paused || state == State.Error) {
+            synchronized (mLock) {
+                //check it again, pause could be cancelled meanwhile
+                if (mState == State.Paused || mState == State.Error) {
+                    mParked = true;
+                    return;
+                }
+            }
+            mEngine.execute(this);
+        } else {
+            mException = new Exception("WTF_ERROR Unexpected Leaving downloading process! State:" + mState + ", try restart this thread");
+            mState = State.Error;
+            mEngine.execute(this);
+        }
+    }
+
+    /**
+     * Returns true if downloading of this part is over<br/>
+     * Merging is set by {@link DownloadTask} immediately after downloaded state, so it's taken as done too
+     *
+     * @param state
+     * @return
+     */
+    private static boolean isDone(State state) {
+        return state == State.Downloaded || state == State.Merging || state == State.Finished || state == State.FatalError || state == State.Cancelled;
+    }
+
+    /**
+     * Complete download implementation
+     */
+    protected void downloadImpl() {
+        FTPClient ftpClient = null;
+        PartOutput output = null;
+        RangeRetrieval retrieval = null;
+        InputStream input = null;
+
+        while ((mState == State.Started || mState == State.Downloading) && !mPreempted) {
+            try {
+                File f = getLocalFile();
+                mConfig.localFile = f;
+                if (mRace != null && mRace.isDone()) {
+                    //range is already complete by other writer
+                    onRangeComplete(mRace);
+                    break;
+                }
+                //hedge continues from place where it was started, file is owned by primary thread
+                final boolean hedge = isHedge();
+                long alreadyDownloaded = hedge ? mRace.getStart() : onPreInit(f, mForceResume);
+
+                mForceResume = false;
+                //state can be set in getLocalFile when pieceLen and fileSize are same
+                if (mState == State.Downloaded || mState == State.Finished) {
+                    mDownloaded = mConfig.currentPieceLength;
+                    mContentHash = mHasher != null ? mHasher.toHex() : null;
+                    if (mState == State.Finished) {
+                        deleteBlockChecksums();
+                    }
+                    break;
+                }
+
+                //connect
+                setFtpState(State.Connecting);
+                ftpClient = FTPFactory.acquireFtpClient(mConfig);
+                setFtpState(State.Connected);
+
+                //fix corrupted blocks of resumed part before continuing
+                if (!hedge && isBlockRepairNeeded(alreadyDownloaded)) {
+                    final long repairTime = FTPFactory.getTracer().begin();
+                    alreadyDownloaded = repairBlocks(ftpClient, f, alreadyDownloaded);
+                    FTPFactory.getTracer().end("repair blocks", repairTime);
+                    if (alreadyDownloaded == getPieceLength()) {
+                        FTPFactory.releaseFtpClient(mConfig, ftpClient, true);
+                        ftpClient = null;
+                        mDownloaded = alreadyDownloaded;
+                        onRangeComplete(mRace);
+                        break;
+                    }
+                }
+
+                //init start values
+                final long startOffset = mConfig.offset + alreadyDownloaded;
+                final long requested = getPieceLength() - alreadyDownloaded;
+
+                //create streams
+                long requestTime = System.nanoTime();
+                retrieval = RangeRetrieval.open(ftpClient, mConfig.remoteFullPath, startOffset, requested, mConfig.fileSize);
+                FTPFactory.getTracer().end("RETR", requestTime);
+                input = retrieval.getInputStream();
+                mInput = input;
+                output = hedge ? openHedgeOutput(f, alreadyDownloaded) : openOutput(f, alreadyDownloaded);
+
+                //download
+                mDownloaded = alreadyDownloaded;
+                synchronized (mRangeLock) {
+                    mClaimed = alreadyDownloaded;
+                }
+                setFtpState(State.Downloading);
+                final boolean endOfStream = copy(input, output, requestTime);
+                //close output before state change, part can be merged immediately
+                output.close();
+                output = null;
+                commitBlocks();
+                journalCommit(mDownloaded);
+
+                //close and finish, stop server at the end of piece to keep session usable
+                input = null;
+                mInput = null;
+                //connection of preempted thread is slow, don't let anyone else use it
+                boolean reusable = !mPreempted && retrieval.finish(mDownloaded - alreadyDownloaded == requested || endOfStream);
+                FTPFactory.releaseFtpClient(mConfig, ftpClient, reusable);
+                ftpClient = null;
+
+                if (getPieceLength() == mDownloaded || (mRace != null && mRace.isDone())) {
+                    onRangeComplete(mRace);
+                }//otherwise just restart process and again
+
+            } catch (Throwable t) {
+                onAttemptFailed(t);
+            } finally {
+                //region close and release everything
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (Exception e) {/**/}
+                    output = null;
+                }
+                if (input != null) {
+                    try {
+                        input.close();
+                    } catch (Exception e) {/**/}
+                }
+                mInput = null;
+                if (ftpClient != null) {
+                    FTPFactory.releaseFtpClient(mConfig, ftpClient, false);
+                }
+                //endregion
+            }
+        }
+    }
+
+    /**
+     * Copy loop of one attempt, it runs until end of range or stream, hedge race, preemption or pause<br/>
+     * Every chunk is claimed under range lock, counted into statistics, checksums and bandwidth limiter.
+     * {@code CopyLoopBenchmark} calls it directly to measure the same per-chunk work as real download.
+     *
+     * @param input       data of RETR
+     * @param output      output of part, positioned after already downloaded data
+     * @param requestTime time of RETR in ns for first byte latency, 0 if it's not measured
+     * @return true if end of stream was reached
+     * @throws IOException
+     * @throws InterruptedException if waiting for bandwidth is interrupted
+     */
+    boolean copy(InputStream input, PartOutput output, long requestTime) throws IOException, InterruptedException {
+        byte[] buffer = new byte[mConfig.bufferSize];
+        int len = 0;
+        final ServerKey serverKey = ServerKey.of(mConfig);
+        final DownloadTask task = getLimiterTask();
+        long downloadedInSec = 0;
+        //span of waiting for data must be inside of downloading span
+        final long waitTime = FTPFactory.getTracer().begin();
+
+        long lastNotify = System.currentTimeMillis();
+        //region datacopy
+        while ((len = input.read(buffer)) != -1) {
+            if (requestTime != 0) {
+                FTPFactory.getTracer().end("first byte", waitTime);
+                FTPFactory.getMetrics().onFirstByte(System.nanoTime() - requestTime);
+                requestTime = 0;
+            }
+            long now = System.currentTimeMillis();
+            //call notification methods
+            if ((now - lastNotify) > NOTIFY) {
+                output.commit();
+                commitBlocks();
+                journalCommit(mDownloaded);
+                //count avg speed in defined time for 1s
+                int v = (int) (downloadedInSec / (float) NOTIFY) * 1000;
+                onDownloadProgress(mDownloaded, v);
+                mSpeed = v;
+                downloadedInSec = 0;
+                lastNotify = now;
+            }
+
+            final int realLenToWrite = (int) claim(len);
+            output.write(buffer, 0, realLenToWrite);
+            if (mChecksum != null) {
+                mChecksum.update(buffer, 0, realLenToWrite);
+            }
+            if (mHasher != null) {
+                mHasher.update(buffer, 0, realLenToWrite);
+            }
+            if (mBlocks != null) {
+                mBlocks.update(buffer, 0, realLenToWrite);
+            }
+
+            //shape bandwidth, it's cheap if there is no limit
+            final BandwidthLimiter limiter = mLimiter;
+            if (limiter != null) {
+                limiter.acquire(serverKey, task, len);
+            }
+
+            //save values for notification
+            mDownloaded += realLenToWrite;
+            downloadedInSec += realLenToWrite;
+
+            //stop, we are complete
+            if (mDownloaded == getPieceLength()) {
+                break;
+            }
+
+            //stop, range is complete by hedged duplicate
+            final HedgeRace race = mRace;
+            if (race != null && race.isDone()) {
+                break;
+            }
+
+            //stop, connection is too slow, see onAttemptFinished
+            if (mPreempted) {
+                break;
+            }
+
+            //leave if user paused downloading, working thread is released and part is resumed later
+            if (mState == State.Paused) {
+                synchronized (mLock) {
+                    if (mState == State.Paused) {
+                        setFtpState(State.Paused);//set again and notify about state change
+                        //don't delete already downloaded data when resumed
+                        mForceResume = true;
+                        break;
+                    }
+                }
+            }
+        }
+        //endregion datacopy
+        return len == -1;
+    }
+
+    /**
+     * Finish range, which is complete by this thread or by its hedged duplicate
+     *
+     * @param race race of this thread or null
+     */
+    private void onRangeComplete(HedgeRace race) {
+        if (race != null && race.complete(this)) {
+            //we are first, don't let the other one download it anymore
+            race.getOpponent(this).cancelTransfer();
+        }
+        if (race != null && race.getHedge() == this) {
+            //primary thread represents the part, hedge is just helper
+            setFtpState(race.getWinner() == this ? State.Finished : State.Cancelled);
+        } else {
+            final long length = getPieceLength();
+            if (mDownloaded != length) {
+                //tail was written by hedge, checksum doesn't cover it
+                mChecksum = null;
+                mHasher = null;
+            } else if (mBlocks != null) {
+                mBlocks.finish();
+            }
+            mDownloaded = length;
+            mContentHash = mHasher != null ? mHasher.toHex() : null;
+            try {
+                commitBlocks();
+            } catch (IOException e) {
+                //checksums are needed only for resume
+                e.printStackTrace();
+            }
+            journalCommit(length);
+            if (mConfig.parts == 1) {
+                deleteBlockChecksums();
+            }
+            setFtpState(mConfig.parts == 1 ? State.Finished : State.Downloaded);
+        }
+    }
+
+    /**
+     * Save block checksums, output must be already committed
+     *
+     * @throws IOException
+     */
+    private void commitBlocks() throws IOException {
+        if (mBlocks != null) {
+            mBlocks.commit();
+        }
+    }
+
+    /**
+     * Journal committed length of this part, output must be already committed
+     *
+     * @param committed
+     */
+    private void journalCommit(long committed) {
+        final ResumeJournal journal = mJournal;
+        if (journal != null && !isHedge()) {
+            final CRC32 checksum = mChecksum;
+            journal.onCommit(this, committed, checksum != null ? checksum.getValue() : ResumeJournal.NO_CHECKSUM);
+        }
+    }
+
+    /**
+     * Handle failure of current attempt<br/>
+     * Refused connection while other parts of same server are running releases slot, part is put back to queue
+     * of its shard behind lowered limit. IO errors and fatal errors are retried after {@link FTPSettings#retryDelay},
+     * part is stopped after {@link FTPSettings#fatalErrorsToStop} fatal errors or {@link FTPSettings#refusalsToStop}
+     * refused connections in row, anything else waits for user in {@link State#Error}.
+     *
+     * @param t
+     */
+    protected void onAttemptFailed(Throwable t) {
+        if (onRaceInterrupted() || mPreempted) {
+            return;
+        }
+        //server is full, it's not problem of this part, scheduler lowers limit of server
+        final boolean refusal = t instanceof Exception && AdaptiveConcurrencyController.isConnectionRefusal((Exception) t);
+        final SchedulerShard shard = mShard;
+        if (refusal && shard != null && shard.getRunning() > 1) {
+            //slot is freed by other part of server, so requeued part can't be refused in loop
+            if (t instanceof FatalFTPException) {
+                onFatalError((FatalFTPException) t);
+            } else {
+                onError((IOException) t);
+            }
+            FTPFactory.getMetrics().onRetry(t);
+            mPreempted = true;
+            return;
+        }
+        if (refusal) {
+            mRefusalCounter++;
+        }
+        if (t instanceof FatalFTPException) {
+            final FatalFTPException ffe = (FatalFTPException) t;
+            if (!refusal) {
+                mFatalErrorCounter++;
+            }
+            mException = ffe;
+            ffe.printStackTrace();
+            onFatalError(ffe);
+            if (mFatalErrorCounter >= mConfig.fatalErrorsToStop || mRefusalCounter >= mConfig.refusalsToStop) {
+                FTPFactory.getMetrics().onFatalError(ffe);
+                setFtpState(State.FatalError);
+            } else {
+                FTPFactory.getMetrics().onRetry(ffe);
+                //try again later, see onAttemptFinished
+                setFtpState(State.WaitingForRetry);
+            }
+        } else if (t instanceof IOException) {
+            onError((IOException) t);
+            if (mRefusalCounter >= mConfig.refusalsToStop) {
+                mException = t;
+                FTPFactory.getMetrics().onFatalError(t);
+                setFtpState(State.FatalError);
+            } else {
+                FTPFactory.getMetrics().onRetry(t);
+                //try again later, see onAttemptFinished
+                setFtpState(State.WaitingForRetry);
+            }
+        } else {
+            mException = t;
+            onFatalError(new FatalFTPException(t));
+            FTPFactory.getMetrics().onFatalError(t);
+            //wait for resume, see onAttemptFinished
+            setFtpState(State.Error);
+        }
+    }
+
+    //region non blocking transfer
+
+    /**
+     * Leave {@link #downloadImpl()} without ending current attempt, it's called again after delay in same state<br/>
+     * It's for implementations which don't block while waiting for data, ig. simulated transfers running in virtual time.
+     * It's ignored if attempt is over anyway (preempted, failed, paused or done).
+     *
+     * @param delayMillis
+     */
+    protected void continueAfter(long delayMillis) {
+        mContinuation = delayMillis;
+    }
+
+    /**
+     * Start transfer of not downloaded rest of range, it's for implementations of {@link #downloadImpl()} without own copy loop<br/>
+     * Part continues from already downloaded length, hedge from place where it was started.
+     */
+    protected void onTransferStarted() {
+        final long alreadyDownloaded = isHedge() ? mRace.getStart() : mDownloaded;
+        mDownloaded = alreadyDownloaded;
+        synchronized (mRangeLock) {
+            mClaimed = alreadyDownloaded;
+        }
+        setFtpState(State.Downloading);
+    }
+
+    /**
+     * Count transferred data of transfer started by {@link #onTransferStarted()}
+     *
+     * @param bytes
+     * @param speed current speed in bytes per second
+     * @return true if transfer should stop, range is complete, it was cancelled or thread was preempted
+     */
+    protected boolean onTransferred(long bytes, int speed) {
+        mDownloaded += claim(bytes);
+        mSpeed = speed;
+        onDownloadProgress(mDownloaded, speed);
+        final HedgeRace race = mRace;
+        return mDownloaded == getPieceLength() || (race != null && race.isDone()) || mPreempted;
+    }
+
+    /**
+     * End transfer stopped by {@link #onTransferred(long, int)}, range is finished if it's complete
+     */
+    protected void onTransferStopped() {
+        final HedgeRace race = mRace;
+        if (!mPreempted && (getPieceLength() == mDownloaded || (race != null && race.isDone()))) {
+            onRangeComplete(race);
+        }
+    }
+
+    //endregion non blocking transfer
+
+    /**
+     * Handle error of hedged range
+     *
+     * @return true if error is handled and attempt is over
+     */
+    private boolean onRaceInterrupted() {
+        final HedgeRace race = mRace;
+        if (race == null) {
+            return false;
+        }
+        if (race.isDone()) {
+            //transfer was cancelled by winner
+            onRangeComplete(race);
+            return true;
+        }
+        if (race.getHedge() == this) {
+            //hedge is not retried, primary thread is still downloading
+            setFtpState(State.Cancelled);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close stream of current transfer, blocked read is interrupted<br/>
+     * Parked thread is started again to finish its range
+     */
+    void cancelTransfer() {
+        InputStream input = mInput;
+        if (input != null) {
+            try {
+                input.close();
+            } catch (Exception e) {/**/}
+        }
+        boolean resume;
+        synchronized (mLock) {
+            resume = mParked;
+            mParked = false;
+        }
+        if (resume) {
+            mEngine.execute(this);
+        }
+    }
+
+    /**
+     * Stop current attempt of stalled thread<br/>
+     * Transfer is closed and thread is put back to queue in {@link State#Created} state,
+     * it's resumed from committed offset when it's started again.
+     *
+     * @return false if thread is not downloading
+     */
+    boolean preempt() {
+        if (mState != State.Downloading) {
+            return false;
+        }
+        mPreempted = true;
+        cancelTransfer();
+        return true;
+    }
+
+    /**
+     * Put preempted thread back to queue
+     */
+    private void requeue() {
+        synchronized (this) {
+            //must be clear before state change, scheduler can start it immediately
+            mStarted = false;
+        }
+        setFtpState(State.Created);
+    }
+
+    /**
+     * Get task for bandwidth limit, hedge is charged to task of its primary thread
+     *
+     * @return
+     */
+    private DownloadTask getLimiterTask() {
+        final HedgeRace race = mRace;
+        if (mParentTask == null && race != null) {
+            return race.getPrimary().getParentTask();
+        }
+        return mParentTask;
+    }
+
+    /**
+     * Set statistics of master, this thread is counted from now
+     *
+     * @param statistics
+     */
+    void setStatistics(TransferStatistics statistics) {
+        synchronized (mRangeLock) {
+            mStatistics = statistics.createSlot(ServerKey.of(mConfig), getLimiterTask());
+            reportStatistics();
+        }
+    }
+
+    /**
+     * Report current length and remaining length to statistics, caller must hold {@link #mRangeLock}<br/>
+     * Hedged duplicate is counted only by transferred bytes, its range belongs to primary thread.
+     */
+    private void reportStatistics() {
+        final TransferStatistics.Slot slot = mStatistics;
+        if (slot == null) {
+            return;
+        }
+        final State state = mState;
+        final boolean counted = !isHedge();
+        final boolean done = state == State.Downloaded || state == State.Merging || state == State.Finished || state == State.Cancelled;
+        final long length = counted ? mConfig.currentPieceLength : 0;
+        final long remaining = counted && !done ? length - (state == State.Downloading ? mClaimed : mDownloaded) : 0;
+        slot.report(length, Math.max(0, remaining));
+    }
+
+    void setBandwidthLimiter(BandwidthLimiter limiter) {
+        mLimiter = limiter;
+    }
+
+    /**
+     * Get hash of complete part by {@link FTPSettings#contentHash}
+     *
+     * @return lower case hex hash or null if it's not known
+     */
+    String getContentHash() {
+        return mContentHash;
+    }
+
+    void setResumeJournal(ResumeJournal journal) {
+        mJournal = journal;
+    }
+
+    long getJournalId() {
+        return mJournalId;
+    }
+
+    void setJournalId(long journalId) {
+        mJournalId = journalId;
+    }
+
+    /**
+     * Returns true if this thread is hedged duplicate of another one
+     *
+     * @return
+     */
+    boolean isHedge() {
+        final HedgeRace race = mRace;
+        return race != null && race.getHedge() == this;
+    }
+
+    /**
+     * Returns true if tail of this piece can be downloaded again by {@link #hedge()}
+     *
+     * @return
+     */
+    boolean isHedgeable() {
+        return mConfig.endgame && mState == State.Downloading && mRace == null && getRemainingLength() > 0;
+    }
+
+    /**
+     * Create duplicate thread for not downloaded range of this piece<br/>
+     * Both threads download same range, first one wins, see {@link HedgeRace}
+     *
+     * @return new thread or null if piece can't be hedged
+     */
+    FTPDownloadThread hedge() {
+        synchronized (mRangeLock) {
+            if (mState != State.Downloading || mRace != null || mConfig.currentPieceLength == mClaimed) {
+                return null;
+            }
+            FTPDownloadThread thread = createSplitThread(mConfig.clone());
+            HedgeRace race = new HedgeRace(this, thread, mClaimed);
+            thread.mRace = race;
+            mRace = race;
+            return thread;
+        }
+    }
+
+    /**
+     * Reserve part of piece for writing
+     *
+     * @param len length of read data
+     * @return length which can be written, can be less than len if piece is shorter
+     */
+    private long claim(long len) {
+        synchronized (mRangeLock) {
+            final long allowed = Math.min(len, mConfig.currentPieceLength - mClaimed);
+            mClaimed += allowed;
+            if (mStatistics != null) {
+                mStatistics.onBytes(allowed);
+                reportStatistics();
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * Get current length of this piece
+     *
+     * @return
+     */
+    private long getPieceLength() {
+        synchronized (mRangeLock) {
+            return mConfig.currentPieceLength;
+        }
+    }
+
+    /**
+     * Get length of piece which is not reserved for writing yet
+     *
+     * @return
+     */
+    long getRemainingLength() {
+        synchronized (mRangeLock) {
+            return mConfig.currentPieceLength - (mState == State.Downloading ? mClaimed : mDownloaded);
+        }
+    }
+
+    /**
+     * Returns true if scheduler can split or hedge this thread while it's downloading
+     *
+     * @return
+     */
+    boolean isStealingEnabled() {
+        return (mConfig.dynamicSplitting && mConfig.parts > 1) || mConfig.endgame;
+    }
+
+    /**
+     * Returns true if this piece can be split by {@link #splitRange(long, int)}
+     *
+     * @return
+     */
+    boolean isSplittable() {
+        return mConfig.dynamicSplitting && mConfig.parts > 1 && mState == State.Downloading && mRace == null
+                && getRemainingLength() >= 2 * mConfig.minSplitLength;
+    }
+
+    /**
+     * Cut back half of not downloaded range and create new thread for it<br/>
+     * This piece is shortened, so it's going to end at the beginning of new one.
+     *
+     * @param minLength min length of both halves
+     * @param part      part number for new thread
+     * @return new thread or null if piece can't be split
+     */
+    FTPDownloadThread splitRange(long minLength, int part) {
+        synchronized (mRangeLock) {
+            if (mState != State.Downloading || mRace != null) {
+                return null;
+            }
+            final long remaining = mConfig.currentPieceLength - mClaimed;
+            if (remaining < 2 * minLength) {
+                return null;
+            }
+            final long length = remaining / 2;
+            mConfig.currentPieceLength -= length;
+            reportStatistics();
+
+            FTPContext context = mConfig.clone();
+            context.part = part;
+            context.offset = mConfig.offset + mConfig.currentPieceLength;
+            context.currentPieceLength = length;
+            context.localFile = null;
+            FTPDownloadThread thread = createSplitThread(context);
+            thread.mFreshStart = true;
+            return thread;
+        }
+    }
+
+    /**
+     * Create thread for range split from this thread
+     *
+     * @param context
+     * @return
+     */
+    protected FTPDownloadThread createSplitThread(FTPContext context) {
+        return new FTPDownloadThread(context);
+    }
+
+    /**
+     * Pre init downloading
+     *
+     * @return length of already mDownloaded pice
+     * @throws FatalFTPException
+     */
+    public long onPreInit(File f, boolean forceResume) throws FatalFTPException {
+        long alreadyDownloaded = 0;
+        final ResumeJournal journal = mJournal;
+        final boolean resume = (mConfig.resume || forceResume) && !mFreshStart;
+        mFreshStart = false;
+        mChecksum = null;
+        mHasher = mConfig.contentHash != null ? mConfig.contentHash.newHasher() : null;
+        mContentHash = null;
+        mBlocks = null;
+        mSuspectBlocks = null;
+        mTailSuspect = false;
+        if (mConfig.blockChecksums) {
+            mBlocks = new BlockChecksums(getBlockChecksumsFile(), mConfig.checksumBlockSize);
+            mBlocks.setSync(journal != null);
+            if (!resume) {
+                mBlocks.delete();
+            } else {
+                try {
+                    mBlocks.load();
+                } catch (IOException e) {
+                    //everything is checked with server then
+                    e.printStackTrace();
+                    mBlocks.reset();
+                }
+            }
+        }
+        if (mConfig.isDirectPlacement()) {
+            //final file is shared with other parts, so it can't be deleted
+            PartOffsetRecord record = getOffsetRecord();
+            try {
+                DirectFileOutput.prepare(f, record);
+                if (!resume) {
+                    record.setCommitted(mConfig.part, 0);
+                } else {
+                    alreadyDownloaded = record.getCommitted(mConfig.part);
+                }
+            } catch (IOException e) {
+                throw new FatalFTPException("Unable to use offset record:" + record.getFile().getAbsolutePath(), e);
+            }
+            if (alreadyDownloaded > mConfig.currentPieceLength) {
+                throw new FatalFTPException("Already downloaded part is bigger then defined piece length!\nFile:" + f.getAbsolutePath());
+            }
+            try {
+                checkPrefix(f, mConfig.offset, alreadyDownloaded, null);
+            } catch (IOException e) {
+                throw new FatalFTPException("Unable to resume file:" + f.getAbsolutePath(), e);
+            }
+            if (mConfig.currentPieceLength == alreadyDownloaded && !isBlockRepairNeeded(alreadyDownloaded)) {
+                setFtpState(State.Downloaded);
+            }
+        } else if (!resume) {
+            //for restart
+            //try delete already existing file
+            if (f.exists() && !f.delete()) {
+                //if we can't delete it, just stop and wait
+                throw new FatalFTPException("Unable to delete file:" + f.getAbsolutePath());
+            }
+            if (journal != null) {
+                mChecksum = new CRC32();
+            }
+        } else {
+            //we have something, so download it
+            if (journal != null) {
+                try {
+                    alreadyDownloaded = resumeFromJournal(f, journal.getCommit(this));
+                } catch (IOException e) {
+                    throw new FatalFTPException("Unable to resume file:" + f.getAbsolutePath(), e);
+                }
+            } else {
+                alreadyDownloaded = f.length();
+                if (alreadyDownloaded <= mConfig.currentPieceLength) {
+                    try {
+                        checkPrefix(f, 0, alreadyDownloaded, null);
+                    } catch (IOException e) {
+                        throw new FatalFTPException("Unable to resume file:" + f.getAbsolutePath(), e);
+                    }
+                }
+            }
+            if (alreadyDownloaded > mConfig.currentPieceLength) {
+                throw new FatalFTPException("Already downloaded part is bigger then defined piece length!\nFile:" + f.getAbsolutePath());
+            } else if(mConfig.currentPieceLength == alreadyDownloaded && !isBlockRepairNeeded(alreadyDownloaded)) {
+                setFtpState(mConfig.parts == 1 ? State.Finished : State.Downloaded);
+            }//else just continue to download
+        }
+        return alreadyDownloaded;
+    }
+
+    /**
+     * Find length of part file which can be trusted<br/>
+     * Journaled length and checksum are used, anything after committed length is cut away.
+     * File length is used if part isn't journaled yet.
+     *
+     * @param f      part file
+     * @param commit journaled commit or null
+     * @return length of already downloaded data
+     * @throws IOException
      */
-    public enum State {
-        //created must last to go trough all states and
-        Created, Started, Connecting, Connected, Downloading, Error, FatalError, WaitingForRetry, Paused, Downloaded, Merging, Finished
+    private long resumeFromJournal(File f, ResumeJournal.Commit commit) throws IOException {
+        final long length = f.length();
+        long committed = commit != null ? commit.committed : length;
+        if (committed > length) {
+            System.err.println("Part file is shorter than journaled, downloading again:" + f.getAbsolutePath());
+            committed = 0;
+        }
+        CRC32 checksum = new CRC32();
+        if (committed > 0) {
+            checkPrefix(f, 0, committed, checksum);
+            final boolean mismatch = commit != null && commit.checksum != ResumeJournal.NO_CHECKSUM && commit.checksum != checksum.getValue();
+            if (mismatch && mBlocks != null) {
+                //corrupted block is found by block checksums, otherwise it's in not complete tail
+                mTailSuspect = committed < mConfig.currentPieceLength;
+            } else if (mismatch) {
+                System.err.println("Checksum of part file doesn't match, downloading again:" + f.getAbsolutePath());
+                committed = 0;
+                checksum.reset();
+                if (mHasher != null) {
+                    mHasher.reset();
+                }
+                if (mBlocks != null) {
+                    mBlocks.reset();
+                    mSuspectBlocks = null;
+                }
+            }
+        }
+        if (length > committed) {
+            //data after last commit could be written only partially
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(committed);
+            } finally {
+                raf.close();
+            }
+        }
+        mChecksum = checksum;
+        return committed;
     }
 
-    protected FTPDownloadThread(FTPContext config) {
-        if (config == null) {
-            throw new IllegalArgumentException("FTPContext is null!");
+    /**
+     * Read already downloaded data of part once for checksum, content hash and block checksums
+     *
+     * @param f
+     * @param position start of part in file
+     * @param length   downloaded length
+     * @param checksum can be null
+     * @throws IOException
+     */
+    private void checkPrefix(File f, long position, long length, CRC32 checksum) throws IOException {
+        if (mBlocks != null) {
+            mBlocks.startCheck();
         }
-        mConfig = config;
-
-        if (config.parts > 1) {
-            mThreadName = (String.format("%s %03d", mConfig.fileName, config.part));
-        } else {
-            mThreadName = (mConfig.fileName);
+        hashFile(f, position, length, checksum, mHasher, mBlocks);
+        if (mBlocks != null) {
+            mSuspectBlocks = mBlocks.finishCheck(length == mConfig.currentPieceLength);
         }
     }
 
-    public synchronized boolean start(){
-        if(mWorkingThread != null){
+    /**
+     * Returns true if resumed part has to be checked by {@link #repairBlocks(FTPClient, File, long)}
+     *
+     * @param length downloaded length
+     * @return
+     */
+    private boolean isBlockRepairNeeded(long length) {
+        if (mBlocks == null || length == 0) {
             return false;
-        }else{
-            mWorkingThread = new Thread(this);
-            mWorkingThread.setName(mThreadName);
-            mWorkingThread.start();
-            return true;
         }
+        final boolean tail = length < mConfig.currentPieceLength && mBlocks.getPending() > 0;
+        return (mSuspectBlocks != null && !mSuspectBlocks.isEmpty()) || mTailSuspect || tail;
     }
 
-    public synchronized void restart(){
-        if(mWorkingThread != null){
-            throw new IllegalStateException("Thread already started");
-        }else{
-            if(mState != State.Created){
-                setFtpState(State.Created);
+    /**
+     * Repair resumed part, corrupted blocks are downloaded again<br/>
+     * Block is compared with CRC32 of server if it's possible, block without saved checksum is trusted if server can't tell.
+     * Not complete tail is cut away if it doesn't match server.
+     *
+     * @param fc     connected client
+     * @param f      local file
+     * @param length downloaded length
+     * @return length of part which can be trusted
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    private long repairBlocks(FTPClient fc, File f, long length) throws IOException, FatalFTPException {
+        final BlockChecksums blocks = mBlocks;
+        final int blockSize = blocks.getBlockSize();
+        final long position = mConfig.isDirectPlacement() ? mConfig.offset : 0;
+        boolean changed = false;
+        if (mSuspectBlocks != null) {
+            for (Map.Entry<Integer, Long> e : mSuspectBlocks.entrySet()) {
+                final int block = e.getKey();
+                final long start = (long) block * blockSize;
+                final long len = Math.min(blockSize, length - start);
+                final String remote = ServerHash.get(mConfig, fc, HashAlgorithm.CRC32, mConfig.offset + start, len);
+                if (!blocks.isCorrupted(block, e.getValue(), remote)) {
+                    //data are right, checksum was wrong or missing
+                    blocks.set(block, e.getValue());
+                    continue;
+                }
+                System.err.println(String.format("Block %s of part %s is corrupted, downloading again:%s", block, mConfig.part, f.getAbsolutePath()));
+                RangeRetrieval.retrieve(fc, mConfig.remoteFullPath, mConfig.offset + start, len, mConfig.fileSize, f, position + start);
+                changed = true;
             }
         }
-    }
-
-    @Override
-    public void run() {
-        mFatalErrorCounter = 0;
-        do {
-            mException = null;
-            //don't inform about this state, it's just flag that thread is already running
-            setFtpState(State.Started);
-            downloadImpl();
-            if (!(mState == State.Downloaded || mState == State.Finished || mState == State.FatalError)) {
-                mException = new Exception("WTF_ERROR Unexpected Leaving downloading process! State:" + mState + ", try restart this thread");
-                mState = State.Error;
+        final long tail = length < mConfig.currentPieceLength ? blocks.getPending() : 0;
+        if (tail > 0) {
+            final String remote = ServerHash.get(mConfig, fc, HashAlgorithm.CRC32, mConfig.offset + length - tail, tail);
+            if (remote != null ? Long.parseLong(remote, 16) != blocks.getPendingValue() : mTailSuspect) {
+                System.err.println(String.format("Tail of part %s is corrupted, downloading again:%s", mConfig.part, f.getAbsolutePath()));
+                length -= tail;
+                setDownloadedLength(f, length);
+                changed = true;
             }
         }
-        while (!(mState == State.Downloaded || mState == State.Finished || mState == State.FatalError)) ;
-        synchronized (this) {
-            mWorkingThread = null;
+        mSuspectBlocks = null;
+        mTailSuspect = false;
+        if (changed) {
+            //data are different now
+            if (mChecksum != null) {
+                mChecksum.reset();
+            }
+            if (mHasher != null) {
+                mHasher.reset();
+            }
+            blocks.reset();
+            hashFile(f, position, length, mChecksum, mHasher, blocks);
         }
+        commitBlocks();
+        journalCommit(length);
+        return length;
     }
 
     /**
-     * Complete download implementation
+     * Cut downloaded data of part
+     *
+     * @param f
+     * @param length new length of part
+     * @throws IOException
      */
-    protected void downloadImpl() {
-        FTPClient ftpClient = null;
-        FileOutputStream fileOutputStream = null;
-        InputStream input = null;
-
-        boolean forceResume = false;
-        while (mState == State.Started || mState == State.Downloading) {
+    private void setDownloadedLength(File f, long length) throws IOException {
+        if (mConfig.isDirectPlacement()) {
+            getOffsetRecord().setCommitted(mConfig.part, length);
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
             try {
-                File f = getLocalFile();
-                mConfig.localFile = f;
-                long alreadyDownloaded = onPreInit(f, forceResume);
-
-                forceResume = false;
-                //state can be set in getLocalFile when pieceLen and fileSize are same
-                if (mState == State.Downloaded || mState == State.Finished) {
-                    mDownloaded = mConfig.currentPieceLength;
-                    break;
-                }
-
-                //connect
-                setFtpState(State.Connecting);
-                ftpClient = FTPFactory.openFtpClient(mConfig);
-                setFtpState(State.Connected);
-
-                //init start values
-                final long startOffset = ((long)mConfig.part * mConfig.globalPieceLength) + alreadyDownloaded;
-                ftpClient.setRestartOffset(startOffset);
-
-                //create streams
-                input = ftpClient.retrieveFileStream(mConfig.remoteFullPath);
-                if (input == null || ftpClient.getReplyCode() >= 300) {
-                    throw new FatalFTPException(TextUtils.getFtpCodeName(ftpClient.getReplyCode()) + "\n" + ftpClient.getReplyString());
-                }
-                fileOutputStream = new FileOutputStream(f, startOffset > 0);
-
-                setFtpState(State.Downloading);
-
-                //download
-                byte[] buffer = new byte[mConfig.bufferSize];
-                int len = 0;
-
-                mDownloaded = alreadyDownloaded;
-                long downloadedInSec = 0;
-
-                long lastNotify = System.currentTimeMillis();
-                //region datacopy
-                while ((len = input.read(buffer)) != -1) {
-                    long now = System.currentTimeMillis();
-                    //call notification methods
-                    if ((now - lastNotify) > NOTIFY) {
-                        //count avg speed in defined time for 1s
-                        int v = (int) (downloadedInSec / (float) NOTIFY) * 1000;
-                        onDownloadProgress(mDownloaded, v);
-                        mSpeed = v;
-                        downloadedInSec = 0;
-                        lastNotify = now;
-                    }
-
-                    final long subLen = (mConfig.currentPieceLength - mDownloaded);
-                    final int realLenToWrite = (int) Math.min(len, subLen);
-                    fileOutputStream.write(buffer, 0, realLenToWrite);
-
-                    //save values for notification
-                    mDownloaded += realLenToWrite;
-                    downloadedInSec += realLenToWrite;
-
-                    //stop, we are complete
-                    if (mDownloaded == mConfig.currentPieceLength) {
-                        break;
-                    }
-
-                    //wait if user paused downloading
-                    if (mState == State.Paused) {
-                        synchronized (mLock) {
-                            setFtpState(State.Paused);//set again and notify about state change
-                            mLock.wait();
-                            //here you can be only in Downloading state
-                            setFtpState(State.Downloading);
-                            //set force resume if there is any trouble
-                            forceResume = true;
-                        }
-                    }
-                }
-                //endregion datacopy
-
-                //close and finish
-                ftpClient.disconnect();
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        }
+    }
 
-                if (mConfig.currentPieceLength == mDownloaded) {
-                    setFtpState(mConfig.parts == 1 ? State.Finished : State.Downloaded);
-                }//otherwise just restart process and again
+    private File getBlockChecksumsFile() {
+        return new File(String.format(mConfig.localBlockChecksumsTemplate, mConfig.outputDirectory, mConfig.fileName, mConfig.part));
+    }
 
-            } catch (FatalFTPException ffe) {
-                mFatalErrorCounter++;
-                mException = ffe;
-                ffe.printStackTrace();
-                onFatalError(ffe);
-                if(mFatalErrorCounter >= FATAL_ERROR_TO_STOP){
-                    setFtpState(State.FatalError);
-                    return;
-                }else{
-                    setFtpState(State.WaitingForRetry);
-                    //wait 10s and try again
-                    try {
-                        Thread.sleep(DEFAULT_WAIT);
-                    } catch (InterruptedException e1) { /* ignore wake */ }
-                }
-            } catch (IOException e) {
-                onError(e);
-                setFtpState(State.WaitingForRetry);
-                //wait 10s and try again
-                try {
-                    Thread.sleep(DEFAULT_WAIT);
-                } catch (InterruptedException e1) { /* ignore wake */ }
-            } catch (Throwable t) {
-                mException = t;
-                onFatalError(new FatalFTPException(t));
-                setFtpState(State.Error);
-                synchronized (mLock) {
-                    try {
-                        mLock.wait();
-                    } catch (InterruptedException e) { /* ignore wake */ }
-                }
-            } finally {
-                //region close and release everything
-                if (fileOutputStream != null) {
-                    try {
-                        fileOutputStream.close();
-                    } catch (Exception e) {/**/}
-                }
-                if (input != null) {
-                    try {
-                        input.close();
-                    } catch (Exception e) {/**/}
-                }
-                if (ftpClient != null) {
-                    try {
-                        ftpClient.disconnect();
-                    } catch (Exception e) {/**/}
-                }
-                //endregion
+    /**
+     * Delete sidecar of {@link FTPSettings#blockChecksums}, called when part is finished
+     */
+    void deleteBlockChecksums() {
+        if (mConfig.blockChecksums) {
+            final File file = getBlockChecksumsFile();
+            if (file.exists() && !file.delete()) {
+                System.err.println("Unable to delete " + file.getAbsolutePath());
             }
         }
     }
 
     /**
-     * Pre init downloading
+     * Read range of local file once into checksum and hasher
      *
-     * @return length of already mDownloaded pice
-     * @throws FatalFTPException
+     * @param f
+     * @param position start of range in file
+     * @param length   length of range
+     * @param checksum can be null
+     * @param hasher   can be null
+     * @throws IOException if file is shorter
      */
-    public long onPreInit(File f, boolean forceResume) throws FatalFTPException {
-        long alreadyDownloaded = 0;
-        //for restart
-        if (!mConfig.resume && !forceResume) {
-            //try delete already existing file
-            if (f.exists() && !f.delete()) {
-                //if we can't delete it, just stop and wait
-                throw new FatalFTPException("Unable to delete file:" + f.getAbsolutePath());
+    static void hashFile(File f, long position, long length, Checksum checksum, ContentHasher hasher) throws IOException {
+        hashFile(f, position, length, checksum, hasher, null);
+    }
+
+    private static void hashFile(File f, long position, long length, Checksum checksum, ContentHasher hasher, BlockChecksums blocks) throws IOException {
+        if (length <= 0 || checksum == null && hasher == null && blocks == null) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek(position);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file:" + f.getAbsolutePath());
+                }
+                if (checksum != null) {
+                    checksum.update(buffer, 0, read);
+                }
+                if (hasher != null) {
+                    hasher.update(buffer, 0, read);
+                }
+                if (blocks != null) {
+                    blocks.update(buffer, 0, read);
+                }
+                remaining -= read;
             }
-        } else {
-            //we have something, so download it
-            alreadyDownloaded = f.length();
-            if (alreadyDownloaded > mConfig.currentPieceLength) {
-                throw new FatalFTPException("Already downloaded part is bigger then defined piece length!\nFile:" + f.getAbsolutePath());
-            } else if(mConfig.currentPieceLength == alreadyDownloaded) {
-                setFtpState(mConfig.parts == 1 ? State.Finished : State.Downloaded);
-            }//else just continue to download
+        } finally {
+            raf.close();
         }
-        return alreadyDownloaded;
     }
 
     /**
@@ -316,13 +1355,14 @@ public class FTPDownloadThread implements Runnable {
 
         //check folder
         File folder = new File(mConfig.outputDirectory);
-        if (!folder.exists() && !folder.mkdir()) {
+        //parent folders can be missing, tree is listed and downloaded concurrently
+        if (!folder.exists() && !folder.mkdirs() && !folder.isDirectory()) {
             throw new FatalFTPException("Unable to create folder:" + mConfig.outputDirectory);
         }
 
         //gen file
         String localFile;
-        if (mConfig.parts == 1) {
+        if (mConfig.parts == 1 || mConfig.isDirectPlacement()) {
             localFile = String.format(mConfig.localSingleFileTemplate, mConfig.outputDirectory, fileName);
         } else {
             localFile = String.format(mConfig.localMultipleFilesTemplate, mConfig.outputDirectory, fileName, mConfig.part);
@@ -330,6 +1370,60 @@ public class FTPDownloadThread implements Runnable {
         return new File(localFile);
     }
 
+    /**
+     * Open local output for downloaded data
+     *
+     * @param f                 local file from {@link #getLocalFile()}
+     * @param alreadyDownloaded already downloaded length of this part
+     * @return
+     * @throws IOException
+     */
+    private PartOutput openOutput(File f, long alreadyDownloaded) throws IOException {
+        if (mConfig.isDirectPlacement()) {
+            return new DirectFileOutput(f, mConfig.fileSize, mConfig.offset, alreadyDownloaded, getOffsetRecord(), mConfig.part);
+        } else {
+            PartFileOutput output = new PartFileOutput(f, alreadyDownloaded > 0);
+            output.setSync(mJournal != null);
+            return output;
+        }
+    }
+
+    /**
+     * Open local output for hedged duplicate, it writes into same place as primary thread<br/>
+     * Output is opened under lock of race, so winner can't finish and its part can't be merged and deleted meanwhile.
+     * Part file isn't created, late hedge of finished race fails and it's cancelled, see {@link #onRaceInterrupted()}.
+     *
+     * @param f     local file of primary thread
+     * @param start position in piece where hedge starts
+     * @return
+     * @throws IOException if race is already done or part file doesn't exist
+     */
+    private PartOutput openHedgeOutput(File f, long start) throws IOException {
+        final HedgeRace race = mRace;
+        synchronized (race) {
+            if (race.isDone()) {
+                throw new IOException("Race is already done:" + f.getAbsolutePath());
+            }
+            if (mConfig.isDirectPlacement()) {
+                //committed length belongs to primary thread
+                return new DirectFileOutput(f, mConfig.fileSize, mConfig.offset, start, null, mConfig.part);
+            } else {
+                PartFileOutput output = new PartFileOutput(f, start);
+                output.setSync(mJournal != null);
+                return output;
+            }
+        }
+    }
+
+    /**
+     * Get record of committed offsets for {@link FTPSettings#directPlacement}
+     *
+     * @return
+     */
+    protected PartOffsetRecord getOffsetRecord() {
+        return new PartOffsetRecord(new File(String.format(mConfig.localOffsetRecordTemplate, mConfig.outputDirectory, mConfig.fileName)));
+    }
+
     /**
      * Returns current ftp state {@link State}
      *
@@ -345,16 +1439,68 @@ public class FTPDownloadThread implements Runnable {
      * @param state
      */
     protected synchronized void setFtpState(State state) {
-        if(state == State.Created && !(mState == State.Downloaded || mState == State.Finished || mState == State.FatalError)){
-            throw new IllegalStateException("Restarted thread can be only from downloaded or finished state");
+        //part in error after failed merge isn't started anymore, restart() refuses started parts
+        if(state == State.Created && !(mState == State.Downloaded || mState == State.Finished || mState == State.FatalError
+                || mState == State.Error || mPreempted)){
+            throw new IllegalStateException("Restarted thread can be only from downloaded, finished or error state");
         }
         mState = state;
         mSpeed = 0;
-        synchronized (mListeners) {
-            for (FTPDownloadListener l : mListeners) {
-                l.onStatusChange(this, state);
-            }
+        if (state == State.Connected) {
+            //server accepted session, budget of refusals is for refusals in row
+            mRefusalCounter = 0;
+        }
+        final TransferTracer tracer = FTPFactory.getTracer();
+        if (tracer.isEnabled()) {
+            traceState(tracer, state);
+        } else {
+            mTraceState = null;
+        }
+        synchronized (mRangeLock) {
+            reportStatistics();
+        }
+        final StateObserver observer = mStateObserver;
+        if (observer != null) {
+            observer.onStateChanged(this, state);
         }
+        final EventDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.postStatusChange(this, state);
+            return;
+        }
+        for (FTPDownloadListener l : mListeners) {
+            l.onStatusChange(this, state);
+        }
+    }
+
+    /**
+     * Record span of previous state and start span of new one, final states don't have span
+     *
+     * @param tracer
+     * @param state
+     */
+    private void traceState(TransferTracer tracer, State state) {
+        final long now = System.nanoTime();
+        if (mTraceState != null) {
+            tracer.record(getTrack(), mTraceState.name(), "state", mTraceSince, now - mTraceSince);
+        }
+        mTraceState = state == State.Finished || state == State.Cancelled || state == State.FatalError ? null : state;
+        mTraceSince = now;
+    }
+
+    /**
+     * Get track of this part for {@link TransferTracer}, parts of one file are in one group
+     *
+     * @return
+     */
+    TransferTracer.Track getTrack() {
+        TransferTracer.Track track = mTrack;
+        if (track == null) {
+            track = new TransferTracer.Track(mConfig.groupId, mIndex, mConfig.fileName,
+                    String.format("(%s) part %s%s", mIndex, mConfig.part, isHedge() ? " hedge" : ""));
+            mTrack = track;
+        }
+        return track;
     }
 
     /**
@@ -363,9 +1509,7 @@ public class FTPDownloadThread implements Runnable {
      * @param listener
      */
     public void registerListener(FTPDownloadListener listener) {
-        synchronized (mListeners) {
-            mListeners.add(listener);
-        }
+        mListeners.add(listener);
     }
 
     /**
@@ -374,25 +1518,51 @@ public class FTPDownloadThread implements Runnable {
      * @param listener
      */
     public void unregisterListener(FTPDownloadListener listener) {
-        synchronized (mListeners) {
-            mListeners.remove(listener);
-        }
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Get registered listeners, collection is not modified by registration
+     *
+     * @return
+     */
+    List<FTPDownloadListener> getListeners() {
+        return mListeners;
+    }
+
+    /**
+     * Set dispatcher for asynchronous delivery of events
+     *
+     * @param dispatcher dispatcher or null to notify listeners directly from this thread
+     */
+    void setEventDispatcher(EventDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    void setStateObserver(StateObserver observer) {
+        mStateObserver = observer;
     }
 
     //region Notification
     public void onFatalError(FatalFTPException ffe) {
-        synchronized (mListeners) {
-            for (FTPDownloadListener l : mListeners) {
-                l.onFatalError(this, ffe);
-            }
+        final EventDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.postError(this, ffe);
+            return;
+        }
+        for (FTPDownloadListener l : mListeners) {
+            l.onFatalError(this, ffe);
         }
     }
 
     public void onError(Exception e) {
-        synchronized (mListeners) {
-            for (FTPDownloadListener l : mListeners) {
-                l.onError(this, e);
-            }
+        final EventDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.postError(this, e);
+            return;
+        }
+        for (FTPDownloadListener l : mListeners) {
+            l.onError(this, e);
         }
     }
 
@@ -403,14 +1573,26 @@ public class FTPDownloadThread implements Runnable {
      * @param downloadedInSec fot last second
      */
     public void onDownloadProgress(long downloaded, long downloadedInSec) {
-        synchronized (mListeners) {
-            for (FTPDownloadListener l : mListeners) {
-                l.onDownloadProgress(this, downloaded, downloadedInSec);
-            }
+        final EventDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.postProgress(this, downloaded, downloadedInSec);
+            return;
+        }
+        for (FTPDownloadListener l : mListeners) {
+            l.onDownloadProgress(this, downloaded, downloadedInSec);
         }
     }
     //endregion
 
+    /**
+     * Observer of state changes called directly from {@link #setFtpState(State)}<br/>
+     * It's for bookkeeping which must see state before thread continues, like scheduler slots or journal,
+     * it must be short and must not block. Everything else should be {@link FTPDownloadListener}.
+     */
+    interface StateObserver {
+        void onStateChanged(FTPDownloadThread thread, State state);
+    }
+
     /**
      * Get current clone of context => any changes are useless
      *
@@ -437,11 +1619,19 @@ public class FTPDownloadThread implements Runnable {
                 throw new IllegalStateException("Thread is in non-pausable state!");
             }
         } else {
-            if (mState == State.Paused) {
-                synchronized (mLock) {
-                    mLock.notifyAll();
+            boolean resume;
+            synchronized (mLock) {
+                resume = mParked;
+                mParked = false;
+                if (!resume && mState == State.Paused) {
+                    //working thread didn't notice pause yet, just continue
+                    mState = State.Downloading;
                 }
             }
+            if (resume) {
+                mForceResume = true;
+                mEngine.execute(this);
+            }
         }
     }
 
@@ -486,6 +1676,43 @@ public class FTPDownloadThread implements Runnable {
         return mSpeed;
     }
 
+    State getSchedulerState() {
+        return mSchedulerState;
+    }
+
+    void setSchedulerState(State state) {
+        mSchedulerState = state;
+    }
+
+    int getShardEpoch() {
+        return mShardEpoch;
+    }
+
+    void setShardEpoch(int epoch) {
+        mShardEpoch = epoch;
+    }
+
+    SchedulerShard getShard() {
+        return mShard;
+    }
+
+    void setShard(SchedulerShard shard) {
+        mShard = shard;
+    }
+
+    /**
+     * Get key of server of this thread
+     *
+     * @return
+     */
+    ServerKey getServerKey() {
+        return ServerKey.of(mConfig);
+    }
+
+    ExecutionEngine getEngine() {
+        return mEngine != null ? mEngine : ExecutionEngines.getDefault();
+    }
+
     protected DownloadTask getParentTask() {
         return mParentTask;
     }
@@ -1,9 +1,9 @@
 package com.scurab.java.ftpleecher;
 
 import com.scurab.java.ftpleecher.test.FtpDownloadThreadTest;
-import com.scurab.java.ftpleecher.tools.TextUtils;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.ftp.FTPSClient;
 
 import javax.net.ssl.X509TrustManager;
@@ -14,6 +14,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Factory for creating {@link DownloadTask} objects
@@ -26,7 +28,22 @@ public class FTPFactory {
 
     private final String mFolderSeparator;
 
-    private static final String FTP_SEPARATOR = "/";
+    static final String FTP_SEPARATOR = "/";
+
+    private static final FTPSessionPool SESSION_POOL = new FTPSessionPool();
+
+    private static final ListingCache LISTING_CACHE = new ListingCache();
+
+    private static final DownloadMetrics METRICS = new DownloadMetrics();
+
+    private static final TransferTracer TRACER = new TransferTracer();
+
+    private static final ListingCache.Lister LISTER = new ListingCache.Lister() {
+        @Override
+        public FTPFile[] list(FTPContext context, FTPClient fc, String path) throws IOException, FatalFTPException {
+            return listDirectoryImpl(context, fc, path);
+        }
+    };
 
     public FTPFactory(FTPContext config) {
         checkConfig(config);
@@ -34,7 +51,12 @@ public class FTPFactory {
         mFolderSeparator = System.getProperty("file.separator");
     }
 
-    private static int GROUP_ID_COUNTER = 0;
+    private static final AtomicLong GROUP_ID_COUNTER = new AtomicLong();
+
+    /**
+     * MLSD support per server, FEAT is asked only once
+     */
+    private static final ConcurrentHashMap<ServerKey, Boolean> MLSD_SUPPORT = new ConcurrentHashMap<ServerKey, Boolean>();
 
     private void checkConfig(FTPContext config) {
         if (config.username == null && config.password != null
@@ -52,45 +74,118 @@ public class FTPFactory {
      */
     public List<DownloadTask> createTask(FTPFile ftpfile, String fullpath, String downloadTo) throws IOException, FatalFTPException {
         mConfig.outputDirectory = downloadTo;
-        FTPClient fc = openFtpClient(mConfig);
+        FTPClient fc = acquireFtpClient(mConfig);
+        boolean reusable = false;
+        try {
+            //known folder can be taken from cache, otherwise LIST tells us what it is
+            final boolean folder = mConfig.cacheListings && ftpfile.isDirectory();
+            FTPFile[] files;
+            if (folder) {
+                files = listDirectory(mConfig, fc, fullpath);
+            } else {
+                files = fc.listFiles(fullpath);
+                if (fc.getReplyCode() >= 300) {
+                    throw FatalFTPException.fromReply(fc);
+                }
+                Arrays.sort(files, FILE_COMPARATOR);
+            }
+            List<DownloadTask> result = new ArrayList<DownloadTask>();
 
-        FTPFile[] files = fc.listFiles(fullpath);
-        if (fc.getReplyCode() >= 300) {
-            throw new FatalFTPException(TextUtils.getFtpCodeName(fc.getReplyCode()) + "\n" + fc.getReplyString());
-        }
-        Arrays.sort(files, FILE_COMPARATOR);
-        List<DownloadTask> result = new ArrayList<DownloadTask>();
-
-        //it's a file
-        if (files.length == 1 || files.length == 0) {
-            FTPFile file = files.length == 1 ? files[0] : ftpfile;
-            FTPContext newCfg = mConfig.clone();
-            newCfg.remoteFullPath = fullpath;
-            newCfg.fileName = file.getName();
-            newCfg.groupId = ++GROUP_ID_COUNTER;
-            result.add(createTaskForFile(newCfg, file));
-        } else if (files.length > 1) {
-            //it was folder and we got content of this folder
-            //update downloadTo folder
-            downloadTo = createFolderIfNeccessary(downloadTo + mFolderSeparator + ftpfile.getName());
-            mConfig.outputDirectory = downloadTo;
-
-            for (FTPFile file : files) {
+            //it's a file
+            if (!folder && (files.length == 1 || files.length == 0)) {
+                FTPFile file = files.length == 1 ? files[0] : ftpfile;
                 FTPContext newCfg = mConfig.clone();
-                newCfg.groupId = ++GROUP_ID_COUNTER;
-                //update fullpath
-                newCfg.remoteFullPath = fullpath + FTP_SEPARATOR + file.getName();
-
-                if (file.isFile()) {
-                    result.add(createTaskForFile(newCfg, file));
-                } else {
-                    newCfg.outputDirectory += mFolderSeparator + file.getName();
-                    result.addAll(createTasksForDirectory(newCfg, fc, file));
+                newCfg.remoteFullPath = fullpath;
+                newCfg.fileName = file.getName();
+                newCfg.groupId = nextGroupId();
+                result.add(createTaskForFile(newCfg, file));
+            } else {
+                //it was folder and we got content of this folder
+                //update downloadTo folder
+                downloadTo = createFolderIfNeccessary(downloadTo + mFolderSeparator + ftpfile.getName());
+                mConfig.outputDirectory = downloadTo;
+
+                for (FTPFile file : files) {
+                    FTPContext newCfg = mConfig.clone();
+                    newCfg.groupId = nextGroupId();
+                    //update fullpath
+                    newCfg.remoteFullPath = fullpath + FTP_SEPARATOR + file.getName();
+
+                    if (file.isFile()) {
+                        result.add(createTaskForFile(newCfg, file));
+                    } else {
+                        newCfg.outputDirectory += mFolderSeparator + file.getName();
+                        result.addAll(createTasksForDirectory(newCfg, fc, file));
+                    }
                 }
             }
+            reusable = true;
+            return result;
+        } finally {
+            releaseFtpClient(mConfig, fc, reusable);
         }
+    }
 
-        return result;
+    /**
+     * Crawl remote tree in background, download tasks are enqueued to master as soon as files are discovered
+     *
+     * @param ftpfile    remote file or folder
+     * @param fullpath   remote path of ftpfile
+     * @param downloadTo local folder
+     * @param master
+     * @return started crawler, folders which can't be listed are in {@link DirectoryCrawler#getErrors()}
+     * @throws FatalFTPException if local folder can't be created
+     */
+    public DirectoryCrawler crawl(FTPFile ftpfile, String fullpath, String downloadTo, final FTPLeechMaster master) throws FatalFTPException {
+        return crawl(ftpfile, fullpath, downloadTo, DirectoryCrawler.DEFAULT_SESSIONS, new DirectoryCrawler.Listener() {
+            @Override
+            public void onTaskCreated(DownloadTask task) {
+                master.enqueue(task);
+            }
+
+            @Override
+            public void onError(String path, Exception e) {
+                System.err.println("Unable to list " + path);
+                e.printStackTrace();
+            }
+
+            @Override
+            public void onFinished(DirectoryCrawler crawler) {
+            }
+        });
+    }
+
+    /**
+     * Crawl remote tree in background, folders are listed concurrently by several sessions
+     *
+     * @param ftpfile    remote file or folder
+     * @param fullpath   remote path of ftpfile
+     * @param downloadTo local folder
+     * @param sessions   count of concurrently listed folders
+     * @param listener   listener for created tasks, it's called from crawler threads
+     * @return started crawler
+     * @throws FatalFTPException if local folder can't be created
+     */
+    public DirectoryCrawler crawl(FTPFile ftpfile, String fullpath, String downloadTo, int sessions, DirectoryCrawler.Listener listener) throws FatalFTPException {
+        FTPContext config = mConfig.clone();
+        config.remoteFullPath = fullpath;
+        config.groupId = nextGroupId();
+        if (ftpfile.isFile()) {
+            config.outputDirectory = downloadTo;
+        } else {
+            config.outputDirectory = createFolderIfNeccessary(downloadTo + mFolderSeparator + ftpfile.getName());
+        }
+        DirectoryCrawler crawler = new DirectoryCrawler(this, config, ftpfile, sessions, listener);
+        crawler.start();
+        return crawler;
+    }
+
+    static long nextGroupId() {
+        return GROUP_ID_COUNTER.incrementAndGet();
+    }
+
+    String getFolderSeparator() {
+        return mFolderSeparator;
     }
 
     private String createFolderIfNeccessary(String folder) throws FatalFTPException {
@@ -106,13 +201,14 @@ public class FTPFactory {
      * @param file
      * @return
      */
-    private DownloadTask createTaskForFile(final FTPContext config, final FTPFile file) {
+    DownloadTask createTaskForFile(final FTPContext config, final FTPFile file) {
         List<FTPDownloadThread> result = new ArrayList<FTPDownloadThread>();
 
         long size = file.getSize();
         final int parts = (int) Math.ceil((size / (double) config.globalPieceLength));
 
         config.parts = parts;
+        config.fileSize = size;
         config.fileName = file.getName();
 
         if (!config.remoteFullPath.endsWith(file.getName())) {
@@ -123,6 +219,7 @@ public class FTPFactory {
             for (int i = 0, n = parts - 1; i < n; i++) {//last one has diff pieceLen
                 FTPContext fc = config.clone();
                 fc.part = i;
+                fc.offset = (long) i * config.globalPieceLength;
                 fc.currentPieceLength = config.globalPieceLength;
                 result.add(createThread(fc));
             }
@@ -130,6 +227,7 @@ public class FTPFactory {
             FTPContext fc = config.clone();
             fc.currentPieceLength = (size - ((parts - 1L) * config.globalPieceLength));
             fc.part = fc.parts - 1;
+            fc.offset = (parts - 1L) * config.globalPieceLength;
             result.add(createThread(fc));
         } else {
             //clone created in parent method
@@ -146,16 +244,15 @@ public class FTPFactory {
             return new FTPDownloadThread(config);
     }
 
-    private List<DownloadTask> createTasksForDirectory(final FTPContext config, final FTPClient fclient, final FTPFile file) throws IOException {
-        FTPFile[] files = fclient.listFiles(config.remoteFullPath);
-        Arrays.sort(files, FILE_COMPARATOR);
+    private List<DownloadTask> createTasksForDirectory(final FTPContext config, final FTPClient fclient, final FTPFile file) throws IOException, FatalFTPException {
+        FTPFile[] files = listDirectory(config, fclient, config.remoteFullPath);
 
         List<DownloadTask> toReturn = new ArrayList<DownloadTask>();
 
         for (FTPFile f : files) {
 
             FTPContext newCfg = config.clone();
-            newCfg.groupId = ++GROUP_ID_COUNTER;
+            newCfg.groupId = nextGroupId();
             newCfg.remoteFullPath += FTP_SEPARATOR + f.getName();
 
             if (f.isFile()) {
@@ -168,6 +265,100 @@ public class FTPFactory {
         return toReturn;
     }
 
+    /**
+     * Get ftp connection for context, logged session from {@link FTPSessionPool} is used if it's allowed and available
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    public static FTPClient acquireFtpClient(FTPContext context) throws IOException, FatalFTPException {
+        if (!context.reuseSessions) {
+            return openFtpClient(context);
+        }
+        return SESSION_POOL.acquire(context);
+    }
+
+    /**
+     * Release ftp connection taken by {@link #acquireFtpClient(FTPContext)}
+     *
+     * @param context
+     * @param client
+     * @param reusable true if there is no pending transfer and connection can be used again
+     */
+    public static void releaseFtpClient(FTPContext context, FTPClient client, boolean reusable) {
+        if (context.reuseSessions) {
+            if (reusable) {
+                SESSION_POOL.release(context, client);
+            } else {
+                SESSION_POOL.discard(context, client);
+            }
+        } else {
+            try {
+                client.disconnect();
+            } catch (Exception e) {/**/}
+        }
+    }
+
+    /**
+     * List content of remote folder, MLSD is used if server advertises MLST by FEAT<br/>
+     * Entries "." and ".." are removed, result is sorted in order of downloading.
+     * Listing is taken from {@link ListingCache} if {@link FTPSettings#cacheListings} is set.
+     *
+     * @param context context of connection
+     * @param fc      connected client
+     * @param path    remote folder
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException if server rejects listing
+     */
+    static FTPFile[] listDirectory(FTPContext context, FTPClient fc, String path) throws IOException, FatalFTPException {
+        if (context.cacheListings) {
+            return LISTING_CACHE.list(context, fc, path, LISTER);
+        }
+        return listDirectoryImpl(context, fc, path);
+    }
+
+    private static FTPFile[] listDirectoryImpl(FTPContext context, FTPClient fc, String path) throws IOException, FatalFTPException {
+        final ServerKey key = ServerKey.of(context);
+        Boolean mlsd = MLSD_SUPPORT.get(key);
+        if (mlsd == null) {
+            //RFC 3659 advertises only MLST, MLSD comes with it
+            mlsd = fc.hasFeature("MLST") || fc.hasFeature("MLSD");
+            MLSD_SUPPORT.put(key, mlsd);
+        }
+        FTPFile[] files = mlsd ? fc.mlistDir(path) : fc.listFiles(path);
+        if (!FTPReply.isPositiveCompletion(fc.getReplyCode())) {
+            throw FatalFTPException.fromReply(fc);
+        }
+        List<FTPFile> result = new ArrayList<FTPFile>(files.length);
+        for (FTPFile f : files) {
+            if (f != null && !".".equals(f.getName()) && !"..".equals(f.getName())) {
+                result.add(f);
+            }
+        }
+        files = result.toArray(new FTPFile[result.size()]);
+        Arrays.sort(files, FILE_COMPARATOR);
+        return files;
+    }
+
+    public static ListingCache getListingCache() {
+        return LISTING_CACHE;
+    }
+
+    public static FTPSessionPool getSessionPool() {
+        return SESSION_POOL;
+    }
+
+    public static DownloadMetrics getMetrics() {
+        return METRICS;
+    }
+
+    public static TransferTracer getTracer() {
+        return TRACER;
+    }
+
     /**
      * Open ftp connection based on {@link FTPConnection}
      *
@@ -176,14 +367,17 @@ public class FTPFactory {
      * @throws IOException
      */
     public static FTPClient openFtpClient(FTPConnection config) throws IOException, FatalFTPException {
-        return openFtpClient(config.server, config.port, config.username, config.password, config.passive, config.fileType, config.ftps, config.ignoreSSLCertErrors);
+        return openFtpClient(config.server, config.port, config.username, config.password, config.passive, config.fileType, config.ftps, config.ignoreSSLCertErrors,
+                FTPSettings.DEFAULT_TIMEOUT, FTPSettings.DEFAULT_TIMEOUT);
     }
 
     public static FTPClient openFtpClient(FTPContext context) throws IOException, FatalFTPException {
-        return openFtpClient(context.server, context.port, context.username, context.password, context.passive, context.fileType, context.ftps, context.ignoreSSLCertIssues);
+        return openFtpClient(context.server, context.port, context.username, context.password, context.passive, context.fileType, context.ftps, context.ignoreSSLCertIssues,
+                context.soTimeout, context.dataTimeout);
     }
 
-    private static FTPClient openFtpClient(String server, int port, String user, String pass, boolean passive, int fileType, boolean ftps, boolean ftpsIgnoreErrors) throws IOException, FatalFTPException {
+    private static FTPClient openFtpClient(String server, int port, String user, String pass, boolean passive, int fileType, boolean ftps, boolean ftpsIgnoreErrors,
+                                           int soTimeout, int dataTimeout) throws IOException, FatalFTPException {
         FTPClient fc = ftps ? new FTPSClient() : new FTPClient();
         if (ftps && ftpsIgnoreErrors) {
             ((FTPSClient) fc).setTrustManager(new X509TrustManager() {
@@ -205,11 +399,24 @@ public class FTPFactory {
         fc.setControlKeepAliveTimeout(60);
         fc.setAutodetectUTF8(true);
 
+        //TLS handshake of FTPS is part of connect
+        long start = System.nanoTime();
         fc.connect(server, port);
+        METRICS.onConnect(System.nanoTime() - start);
+        TRACER.end("connect", start);
+        if (!FTPReply.isPositiveCompletion(fc.getReplyCode())) {
+            //server refused connection, ig. too many connections
+            FatalFTPException e = FatalFTPException.fromReply(fc);
+            fc.disconnect();
+            throw e;
+        }
         if (user != null) {
+            start = System.nanoTime();
             boolean succ = fc.login(user, pass);
+            METRICS.onLogin(System.nanoTime() - start);
+            TRACER.end("login", start);
             if(!succ || fc.getReplyCode() >= 300) {
-                throw new FatalFTPException(TextUtils.getFtpCodeName(fc.getReplyCode()) + "\n" + fc.getReplyString());
+                throw FatalFTPException.fromReply(fc);
             }
         }
 
@@ -219,16 +426,19 @@ public class FTPFactory {
             fc.enterLocalActiveMode();
         }
 
-        fc.setSoTimeout(2000);
-        fc.setDataTimeout(2000);
+        fc.setSoTimeout(soTimeout);
+        fc.setDataTimeout(dataTimeout);
 
-        if (!fc.setFileType(fileType)) {
+        start = TRACER.begin();
+        final boolean typeSet = fc.setFileType(fileType);
+        TRACER.end("TYPE", start);
+        if (!typeSet) {
             throw new FatalFTPException("Unable to set file type:" + fileType);
         }
         return fc;
     }
 
-    private static final Comparator<FTPFile> FILE_COMPARATOR = new Comparator<FTPFile>() {
+    static final Comparator<FTPFile> FILE_COMPARATOR = new Comparator<FTPFile>() {
         private final String[] FIRST_ARCHIVES = new String[]{"rar"};
 
         @Override
@@ -1,11 +1,24 @@
 package com.scurab.java.ftpleecher;
 
+import com.scurab.java.ftpleecher.engine.ExecutionEngine;
+import com.scurab.java.ftpleecher.engine.ExecutionEngines;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Cor class for implenting working queue
+ * Cor class for implenting working queue<br/>
+ * Scheduling is sharded per server, every {@link SchedulerShard} has its own lock and connection limit,
+ * {@link #setWorkingThreads(int)} is global limit for all shards.
  */
 public class FTPLeechMaster implements FTPDownloadListener {
 
@@ -14,121 +27,562 @@ public class FTPLeechMaster implements FTPDownloadListener {
      */
     private volatile int mWorkingThreads = 4;
     /**
-     * Queue of threds *
+     * All threads incl. already finished, only for UI, scheduling is done by shards
+     */
+    private final List<FTPDownloadThread> mQueue = Collections.synchronizedList(new ArrayList<FTPDownloadThread>());
+    /**
+     * Scheduler shards per server
+     */
+    private final ConcurrentHashMap<ServerKey, SchedulerShard> mShards = new ConcurrentHashMap<ServerKey, SchedulerShard>();
+    /**
+     * Shards in order of creation for round robin dispatching
+     */
+    private final List<SchedulerShard> mShardList = new CopyOnWriteArrayList<SchedulerShard>();
+    /**
+     * Count of threads per state, index is {@link FTPDownloadThread.State#ordinal()}
+     */
+    private final AtomicInteger[] mStateCounters;
+    /**
+     * Count of threads in running states of all shards, see {@link SchedulerShard#isRunning(FTPDownloadThread.State)}
      */
-    private final static List<FTPDownloadThread> mQueue = new ArrayList<FTPDownloadThread>();
+    private final AtomicInteger mRunning = new AtomicInteger();
     /**
-     * Current working threads where is handled main logic
+     * Count of threads waiting for start in all shards
+     */
+    private final AtomicInteger mReadyCount = new AtomicInteger();
+    /**
+     * Count of downloading threads which can be split or hedged, scheduler checks them periodically
+     */
+    private final AtomicInteger mStealable = new AtomicInteger();
+    /**
+     * Index of shard for next dispatch, shards are served by round robin
+     */
+    private int mNextShard = 0;
+    /**
+     * Interval for checking of splittable threads if there is free slot, in ms
+     */
+    private static final int STEAL_INTERVAL = 1000;
+    /**
+     * Current working threads where is handled main logic, null if master is driven by engine
      */
     private Thread mWorkingThread;
 
-    private final boolean mIsRunning = true;
+    /**
+     * Source of time for {@link StallWatchdog}
+     */
+    private final Clock mClock;
+
+    /**
+     * Flags of requested passes of scheduler driven by engine, see {@link #FTPLeechMaster(ExecutionEngine, Clock)}
+     */
+    private final AtomicBoolean mPassRequested = new AtomicBoolean();
+    private final AtomicBoolean mTimerRequested = new AtomicBoolean();
+
+    private volatile boolean mIsRunning = true;
 
     private NotificationAdapter mAdapter;
 
+    /**
+     * Engine running started threads
+     */
+    private volatile ExecutionEngine mEngine;
+
+    /**
+     * Optional controller of {@link #mWorkingThreads}
+     */
+    private volatile AdaptiveConcurrencyController mConcurrencyController;
+
+    /**
+     * Optional watchdog preempting stalled threads
+     */
+    private volatile StallWatchdog mStallWatchdog;
+
+    /**
+     * Bandwidth limits for all threads of this master
+     */
+    private final BandwidthLimiter mLimiter = new BandwidthLimiter();
+
+    /**
+     * Running totals of all threads, see {@link #getStatistics()}
+     */
+    private final TransferStatistics mStatistics = new TransferStatistics();
+
+    /**
+     * Metrics of this master, see {@link #getMetrics()}
+     */
+    private final LeechMetrics mMetrics = new LeechMetrics(this, FTPFactory.getMetrics());
+
+    /**
+     * Optional journal of queue for resume after restart
+     */
+    private volatile ResumeJournal mJournal;
+
+    /**
+     * Dispatcher of listener events of all threads, download threads never wait for listeners.<br/>
+     * It's null if master is driven by engine, listeners are notified directly then.
+     */
+    private final EventDispatcher mDispatcher;
+
+    /**
+     * Scheduler, journal and statistics bookkeeping, it must see state change before thread continues
+     */
+    private final FTPDownloadThread.StateObserver mStateObserver = new FTPDownloadThread.StateObserver() {
+        @Override
+        public void onStateChanged(FTPDownloadThread thread, FTPDownloadThread.State state) {
+            if (onTransition(thread, state)) {
+                wakeUp();
+            }
+            if (state != FTPDownloadThread.State.Finished) {
+                return;
+            }
+            final ResumeJournal journal = mJournal;
+            if (journal != null) {
+                journal.onPartFinished(thread);
+            }
+            DownloadTask task = thread.getParentTask();
+            if (task != null && task.isFinished()) {
+                if (journal != null) {
+                    journal.onTaskFinished(task);
+                }
+                //finished task has no transfer anymore, don't keep it
+                mStatistics.removeTask(task);
+            }
+        }
+    };
+
+    /**
+     * Pass of scheduler requested by {@link #wakeUp()}, it's used instead of scheduler thread if master is driven by engine
+     */
+    private final Runnable mPass = new Runnable() {
+        @Override
+        public void run() {
+            mPassRequested.set(false);
+            runPass();
+        }
+    };
+
+    /**
+     * Periodic pass of scheduler driven by engine, there is at most one pending
+     */
+    private final Runnable mTimer = new Runnable() {
+        @Override
+        public void run() {
+            mTimerRequested.set(false);
+            runPass();
+        }
+    };
+
     /**
      * thread index counter *
      */
-    private static int mThreadIndex = 0;
+    private static final AtomicInteger mThreadIndex = new AtomicInteger();
 
     public FTPLeechMaster() {
-        mWorkingThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                doImpl();
-            }
-        });
-        mWorkingThread.setName("FTPLeechMaster");
-        mWorkingThread.start();
+        this(ExecutionEngines.getDefault());
     }
 
-    private void doImpl() {
+    /**
+     * @param engine engine for running download threads
+     */
+    public FTPLeechMaster(ExecutionEngine engine) {
+        this(engine, Clock.SYSTEM, true);
+    }
 
+    /**
+     * Create master driven by engine<br/>
+     * There is no scheduler thread, every pass of scheduler is a task of engine and listeners are notified directly
+     * by download threads. Single threaded engine with virtual clock runs whole queue deterministically.
+     *
+     * @param engine engine for running download threads and scheduler
+     * @param clock  time for scheduling decisions
+     */
+    public FTPLeechMaster(ExecutionEngine engine, Clock clock) {
+        this(engine, clock, false);
+    }
+
+    private FTPLeechMaster(ExecutionEngine engine, Clock clock, boolean schedulerThread) {
+        mEngine = engine;
+        mClock = clock;
+        FTPDownloadThread.State[] states = FTPDownloadThread.State.values();
+        mStateCounters = new AtomicInteger[states.length];
+        for (int i = 0; i < states.length; i++) {
+            mStateCounters[i] = new AtomicInteger();
+        }
+
+        if (schedulerThread) {
+            mDispatcher = new EventDispatcher();
+            mWorkingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    doImpl();
+                }
+            });
+            mWorkingThread.setName("FTPLeechMaster");
+            mWorkingThread.start();
+        } else {
+            mDispatcher = null;
+        }
+    }
+
+    /**
+     * Main cycle of scheduler<br/>
+     * Thread is woken up by {@link #wakeUp()} if there is new free slot or new thread is ready,
+     * periodically if there is any downloading thread for stealing, endgame and watchdog.
+     */
+    private void doImpl() {
         while (mIsRunning) {
             try {
-                while (!mQueue.isEmpty()) {
-                    synchronized (mQueue) {
-                        /*
-                         * Main cycle for starting new waiting threads
-                         * This cycle is called every time if any thread change state
-                         */
-
-                        //use sorted value to move all created thread to the end to avoid more thread for restarted
-                        int downloading = getRunningThreads();
-
-                        System.out.println(String.format("FTPLeecher d:%s w:%s", downloading, mWorkingThreads));
-                        if (downloading < mWorkingThreads) {
-                            //region cycle
-                            for (int i = 0, n = mQueue.size();i < n && downloading < mWorkingThreads; i++) {
-                                FTPDownloadThread thread = mQueue.get(i);
-                                if (thread != null) {
-                                    FTPDownloadThread.State state = thread.getFtpState();
-                                    if (state == FTPDownloadThread.State.Created) {
-                                        if(thread.start()){
-                                            System.out.println("Started (" + i + ")");
-                                            downloading++;//increase working threads number
-                                            mQueue.wait();//wait for state update about this thread
-                                            System.out.println(String.format("FTPLeecher after start d:%s w:%s", getRunningThreads(), mWorkingThreads));
-                                        }else{
-                                            //already running
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        //endregion cycle
-                        synchronized (mQueue) {
-                            //wait for any change
-                            mQueue.wait();
-                        }
+                if (!schedule()) {
+                    final long timeout = getPassInterval();
+                    if (timeout > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+                    } else {
+                        LockSupport.park(this);
                     }
+                    FTPFactory.getMetrics().onSchedulerWakeUp();
                 }
-                //if queue is empty, still wait for new events
-                if (mIsRunning) {
-                    synchronized (mQueue) {
-                        mQueue.wait();
-                    }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get max time between two passes of scheduler
+     *
+     * @return interval in ms, 0 if scheduler can wait for wake up
+     */
+    private long getPassInterval() {
+        //without splitting and endgame there is nothing to find between state changes
+        long timeout = mStealable.get() > 0 ? STEAL_INTERVAL : 0;
+        StallWatchdog watchdog = mStallWatchdog;
+        if (watchdog != null && getStateCount(FTPDownloadThread.State.Downloading) > 0) {
+            timeout = timeout > 0 ? Math.min(timeout, watchdog.getInterval()) : watchdog.getInterval();
+        }
+        return timeout;
+    }
+
+    /**
+     * Run scheduler until there is nothing to do and plan periodic pass if it's needed
+     */
+    private void runPass() {
+        if (!mIsRunning) {
+            return;
+        }
+        synchronized (mPass) {
+            try {
+                while (mIsRunning && schedule()) {
+                    //repeat until nothing is done
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+        FTPFactory.getMetrics().onSchedulerWakeUp();
+        final long interval = getPassInterval();
+        if (interval > 0 && mIsRunning && mTimerRequested.compareAndSet(false, true)) {
+            mEngine.schedule(mTimer, interval);
+        }
+    }
 
+    /**
+     * One pass of scheduler, start ready threads, steal work or hedge tail if there is free slot, check stalled threads
+     *
+     * @return true if anything was done and pass should be repeated immediately
+     */
+    boolean schedule() {
+        if (dispatch() > 0) {
+            return true;
+        }
+        if (mRunning.get() < mWorkingThreads) {
+            //free slot and nothing to start, part of running download is stolen or tail of task is downloaded twice
+            FTPDownloadThread victim = findVictim();
+            if (victim != null) {
+                //victim is still downloading
+                steal(victim);
+                return true;
+            }
+            FTPDownloadThread hedged = findEndgameVictim();
+            if (hedged != null) {
+                hedge(hedged);
+                return true;
+            }
+        }
+        StallWatchdog watchdog = mStallWatchdog;
+        if (watchdog != null && getStateCount(FTPDownloadThread.State.Downloading) > 0) {
+            List<StallWatchdog.Stall> stalls = watchdog.check(getActive(), mClock.currentTimeMillis());
+            if (!stalls.isEmpty()) {
+                preempt(watchdog, stalls);
+                return true;
+            }
+        }
+        return false;
     }
 
-    private int getRunningThreads() {
-        int downloading = 0;
-        for (int i = 0, n = mQueue.size(); i < n; i++) {
-            FTPDownloadThread thread = mQueue.get(i);
-            if (thread != null) {
-                final FTPDownloadThread.State state = thread.getFtpState();
-//            System.out.printf("%s %s", i , state.toString());
-                if (isRunning(state)) {
-                    downloading++;
+    /**
+     * Start ready threads while there is free global slot, shards are served by round robin
+     *
+     * @return count of started threads
+     */
+    int dispatch() {
+        int started = 0;
+        boolean progress = true;
+        while (mIsRunning && progress && mReadyCount.get() > 0 && mRunning.get() < mWorkingThreads) {
+            progress = false;
+            final int size = mShardList.size();
+            for (int i = 0; i < size && mRunning.get() < mWorkingThreads; i++) {
+                SchedulerShard shard = mShardList.get((mNextShard + i) % size);
+                FTPDownloadThread thread = shard.poll();
+                if (thread != null) {
+                    progress = true;
+                    started++;
+                    if (thread.start(mEngine)) {
+                        System.out.println(String.format("Started (%s) d:%s w:%s", thread.getIndex(), getRunningThreads(), mWorkingThreads));
+                    }
+                }
+            }
+            mNextShard = size == 0 ? 0 : (mNextShard + 1) % size;
+        }
+        return started;
+    }
+
+    /**
+     * Wake up scheduler thread, permit is kept if it's not sleeping now<br/>
+     * Master driven by engine gets pass of scheduler as new task, there is at most one pending.
+     */
+    private void wakeUp() {
+        final Thread thread = mWorkingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        } else if (mPassRequested.compareAndSet(false, true)) {
+            mEngine.execute(mPass);
+        }
+    }
+
+    /**
+     * Get downloading threads of all shards
+     *
+     * @return
+     */
+    private List<FTPDownloadThread> getActive() {
+        List<FTPDownloadThread> result = new ArrayList<FTPDownloadThread>();
+        for (SchedulerShard shard : mShardList) {
+            result.addAll(shard.getActive());
+        }
+        return result;
+    }
+
+    /**
+     * Find downloading thread with longest remaining time, new thread must fit into limit of its shard
+     *
+     * @return thread or null if there is no thread which could be split
+     */
+    private FTPDownloadThread findVictim() {
+        FTPDownloadThread result = null;
+        double max = 0;
+        for (SchedulerShard shard : mShardList) {
+            if (!shard.hasFreeSlot()) {
+                continue;
+            }
+            for (FTPDownloadThread t : shard.getActive()) {
+                if (!t.isSplittable() || t.getParentTask() == null) {
+                    continue;
+                }
+                double eta = t.getRemainingLength() / (double) Math.max(t.getSpeed(), 1);
+                if (eta > max) {
+                    max = eta;
+                    result = t;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the least progressed downloading thread of task which is in endgame, hedge must fit into limit of its shard
+     *
+     * @return thread or null if there is no thread for hedging
+     */
+    private FTPDownloadThread findEndgameVictim() {
+        FTPDownloadThread result = null;
+        long max = 0;
+        HashMap<DownloadTask, Long> remaining = new HashMap<DownloadTask, Long>();
+        for (SchedulerShard shard : mShardList) {
+            if (!shard.hasFreeSlot()) {
+                continue;
+            }
+            for (FTPDownloadThread t : shard.getActive()) {
+                if (!t.isHedgeable() || t.getParentTask() == null) {
+                    continue;
+                }
+                DownloadTask task = t.getParentTask();
+                Long taskRemaining = remaining.get(task);
+                if (taskRemaining == null) {
+                    taskRemaining = getRemainingLength(task);
+                    remaining.put(task, taskRemaining);
                 }
+                long length = t.getRemainingLength();
+                if (taskRemaining <= t.getContext().endgameThreshold && length > max) {
+                    max = length;
+                    result = t;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get length of task which is not downloaded yet
+     *
+     * @param task
+     * @return
+     */
+    private static long getRemainingLength(DownloadTask task) {
+        long result = 0;
+        for (FTPDownloadThread t : task.getData()) {
+            result += Math.max(0, t.getRemainingLength());
+        }
+        return result;
+    }
+
+    /**
+     * Start hedged duplicate of not downloaded range of thread
+     *
+     * @param thread
+     */
+    private void hedge(FTPDownloadThread thread) {
+        FTPDownloadThread hedge = thread.hedge();
+        if (hedge == null) {
+            return;
+        }
+        register(hedge);
+        System.out.println(String.format("Hedge (%s) -> (%s) len:%s", thread.getIndex(), hedge.getIndex(), thread.getRemainingLength()));
+        if (mAdapter != null) {
+            mAdapter.performNotifyDataChanged();
+        }
+    }
+
+    /**
+     * Stop stalled threads, they are put back to queue by themselves
+     *
+     * @param watchdog
+     * @param stalls
+     */
+    private void preempt(StallWatchdog watchdog, List<StallWatchdog.Stall> stalls) {
+        for (StallWatchdog.Stall stall : stalls) {
+            if (stall.thread.preempt()) {
+                watchdog.onPreempted(stall);
+                System.out.println(String.format("Preempted (%s) %s", stall.thread.getIndex(), stall));
+            }
+        }
+    }
+
+    /**
+     * Split not downloaded range of victim and enqueue new thread for the back half
+     *
+     * @param victim
+     */
+    private void steal(FTPDownloadThread victim) {
+        FTPDownloadThread thread = victim.getParentTask().split(victim, victim.getContext().minSplitLength);
+        if (thread == null) {
+            return;
+        }
+        final ResumeJournal journal = mJournal;
+        if (journal != null) {
+            //must be journaled before new thread writes anything
+            journal.onSplit(victim, thread);
+        }
+        register(thread);
+        System.out.println(String.format("Split (%s) -> (%s) len:%s", victim.getIndex(), thread.getIndex(), thread.getContext().currentPieceLength));
+        if (mAdapter != null) {
+            mAdapter.performNotifyDataChanged();
+        }
+    }
+
+    /**
+     * Register new thread and let scheduler know about its state
+     *
+     * @param thread
+     */
+    private void register(FTPDownloadThread thread) {
+        bind(thread);
+        mQueue.add(thread);
+        if (onTransition(thread, thread.getFtpState())) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Register new threads of task
+     *
+     * @param threads
+     */
+    private void register(List<FTPDownloadThread> threads) {
+        for (FTPDownloadThread t : threads) {
+            bind(t);
+        }
+        mQueue.addAll(threads);
+        boolean changed = false;
+        for (FTPDownloadThread t : threads) {
+            changed |= onTransition(t, t.getFtpState());
+        }
+        if (changed) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Connect thread to this master, scheduler doesn't know about it yet
+     *
+     * @param thread
+     */
+    private void bind(FTPDownloadThread thread) {
+        thread.registerListener(this);
+        thread.setStateObserver(mStateObserver);
+        thread.setEventDispatcher(mDispatcher);
+        thread.setBandwidthLimiter(mLimiter);
+        thread.setStatistics(mStatistics);
+        final ResumeJournal journal = mJournal;
+        if (journal != null) {
+            thread.setResumeJournal(journal);
+            journal.onPartAdded(thread);
+        }
+        thread.setIndex(mThreadIndex.getAndIncrement());
+        thread.setShard(getShard(thread.getServerKey()));
+    }
+
+    /**
+     * Get shard for server, it's created if it doesn't exist
+     *
+     * @param key
+     * @return
+     */
+    private SchedulerShard getShard(ServerKey key) {
+        SchedulerShard shard = mShards.get(key);
+        if (shard == null) {
+            SchedulerShard created = new SchedulerShard(key, mStateCounters, mRunning, mReadyCount, mStealable);
+            shard = mShards.putIfAbsent(key, created);
+            if (shard == null) {
+                shard = created;
+                mShardList.add(created);
             }
         }
-        return downloading;
+        return shard;
     }
 
-    private boolean isRunning(FTPDownloadThread.State state) {
-        //Started, Connecting, Connected, Downloading, Error, WaitingForRetry, Paused, ;
-        return  state == FTPDownloadThread.State.Started ||
-                state == FTPDownloadThread.State.Connecting ||
-                state == FTPDownloadThread.State.Connected ||
-                state == FTPDownloadThread.State.Downloading ||
-                state == FTPDownloadThread.State.Error ||
-                state == FTPDownloadThread.State.WaitingForRetry ||
-                state == FTPDownloadThread.State.Paused;
+    /**
+     * Update counters for new state of thread
+     *
+     * @param thread
+     * @param state
+     * @return true if there is any change for scheduler, free slot or new ready thread
+     */
+    private boolean onTransition(FTPDownloadThread thread, FTPDownloadThread.State state) {
+        return thread.getShard().onTransition(thread, state);
     }
 
-    private boolean isStopped(FTPDownloadThread.State state) {
-        //Created, Started, Connecting, Connected, Downloading, Error, FatalError, WaitingForRetry, Paused, Downloaded, Merging, Finished;
-        return  state == FTPDownloadThread.State.Created ||
-                state == FTPDownloadThread.State.FatalError ||
-                state == FTPDownloadThread.State.Downloaded ||
-                state == FTPDownloadThread.State.Merging ||
-                state == FTPDownloadThread.State.Finished;
+    private int getRunningThreads() {
+        return mRunning.get();
     }
 
     /**
@@ -147,17 +601,12 @@ public class FTPLeechMaster implements FTPDownloadListener {
      * @param task
      */
     public void enqueue(DownloadTask task) {
-        //register listener and inc thread index
-        for (FTPDownloadThread t : task.getData()) {
-            t.registerListener(this);
-            t.setIndex(mThreadIndex++);
-        }
-
-        //add data and notify working thread about change
-        synchronized (mQueue) {
-            mQueue.addAll(task.getData());
-            mQueue.notifyAll();
+        final ResumeJournal journal = mJournal;
+        if (journal != null) {
+            //task must be journaled before its parts
+            journal.onTaskAdded(task);
         }
+        register(task.getData());
 
         //notify adapter about big change
         if (mAdapter != null) {
@@ -168,6 +617,11 @@ public class FTPLeechMaster implements FTPDownloadListener {
     //region notification
     @Override
     public void onError(FTPDownloadThread source, Exception e) {
+        AdaptiveConcurrencyController controller = mConcurrencyController;
+        //refusal is problem of one server, only its limit is lowered
+        if (!onRefusal(source, e) && controller != null) {
+            controller.onError(e);
+        }
 //        synchronized (mQueue){
 //            mQueue.notifyAll();
 //        }
@@ -178,8 +632,9 @@ public class FTPLeechMaster implements FTPDownloadListener {
 
     @Override
     public void onFatalError(FTPDownloadThread source, FatalFTPException e) {
-        synchronized (mQueue) {
-            mQueue.notifyAll();
+        AdaptiveConcurrencyController controller = mConcurrencyController;
+        if (!onRefusal(source, e) && controller != null) {
+            controller.onError(e);
         }
         if (mAdapter != null) {
             mAdapter.performNotifyDataChanged(source);
@@ -195,11 +650,7 @@ public class FTPLeechMaster implements FTPDownloadListener {
 
     @Override
     public void onStatusChange(FTPDownloadThread thread, FTPDownloadThread.State state) {
-        if (isStopped(state) || state == FTPDownloadThread.State.Started) {
-            synchronized (mQueue) {
-                mQueue.notifyAll();
-            }
-        }
+        //scheduler and journal are updated synchronously by mStateObserver
         if (state == FTPDownloadThread.State.Downloaded || state == FTPDownloadThread.State.Finished) {
             System.out.println("Downloaded " + thread.getContext().remoteFullPath + " part: " + thread.getContext().part);
         }
@@ -210,16 +661,212 @@ public class FTPLeechMaster implements FTPDownloadListener {
 
     //endregion notification
 
+    /**
+     * Lower connection limit of server if it refuses another session
+     *
+     * @param source
+     * @param e
+     * @return true if error is refusal handled by limit of server
+     */
+    private boolean onRefusal(FTPDownloadThread source, Exception e) {
+        SchedulerShard shard = source.getShard();
+        if (shard != null && AdaptiveConcurrencyController.isConnectionRefusal(e)) {
+            int limit = shard.onRefusal(source);
+            System.out.println(String.format("Server %s refused connection, limit:%s", shard.getKey(), limit));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set max count of connections to one server, it's still limited by {@link #setWorkingThreads(int)}
+     *
+     * @param server
+     * @param value  limit, 0 for global limit only
+     */
+    public void setServerConnections(ServerKey server, int value) {
+        getShard(server).setLimit(value);
+        wakeUp();
+    }
+
+    /**
+     * Get max count of connections to one server
+     *
+     * @param server
+     * @return limit, 0 if there is only global limit
+     */
+    public int getServerConnections(ServerKey server) {
+        SchedulerShard shard = mShards.get(server);
+        return shard != null ? shard.getLimit() : 0;
+    }
+
     /**
      * Set current number of working threads
      *
      * @param value
      */
     public void setWorkingThreads(int value) {
-        synchronized (mQueue) {
-            mWorkingThreads = value;
-            mQueue.notifyAll();
+        mWorkingThreads = value;
+        wakeUp();
+    }
+
+    /**
+     * Get current number of working threads
+     *
+     * @return
+     */
+    public int getWorkingThreads() {
+        return mWorkingThreads;
+    }
+
+    /**
+     * Get number of threads taking working slot
+     *
+     * @return
+     */
+    public int getRunningCount() {
+        return mRunning.get();
+    }
+
+    /**
+     * Get number of threads waiting for working slot
+     *
+     * @return
+     */
+    public int getReadyCount() {
+        return mReadyCount.get();
+    }
+
+    /**
+     * Returns false if master was shut down
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Get metrics of this master, call {@link LeechMetrics#register()} to publish them by JMX
+     *
+     * @return
+     */
+    public LeechMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    void setConcurrencyController(AdaptiveConcurrencyController controller) {
+        mConcurrencyController = controller;
+    }
+
+    /**
+     * Set watchdog for stalled threads
+     *
+     * @param watchdog watchdog or null to disable it
+     */
+    public void setStallWatchdog(StallWatchdog watchdog) {
+        mStallWatchdog = watchdog;
+    }
+
+    public StallWatchdog getStallWatchdog() {
+        return mStallWatchdog;
+    }
+
+    /**
+     * Set global bandwidth limit, it can be changed anytime
+     *
+     * @param bytesPerSec limit, 0 for unlimited
+     */
+    public void setGlobalBandwidth(long bytesPerSec) {
+        mLimiter.setGlobalLimit(bytesPerSec);
+    }
+
+    /**
+     * Set bandwidth limit for one server, it can be changed anytime
+     *
+     * @param server
+     * @param bytesPerSec limit, 0 for unlimited
+     */
+    public void setServerBandwidth(ServerKey server, long bytesPerSec) {
+        mLimiter.setServerLimit(server, bytesPerSec);
+    }
+
+    /**
+     * Set bandwidth limit for one task, it can be changed anytime<br/>
+     * Capacity not used by throttled task is used by others, there is still global limit only.
+     *
+     * @param task
+     * @param bytesPerSec limit, 0 for unlimited
+     */
+    public void setTaskBandwidth(DownloadTask task, long bytesPerSec) {
+        mLimiter.setTaskLimit(task, bytesPerSec);
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return mLimiter;
+    }
+
+    /**
+     * Set journal of queue, every enqueued task and its progress is written into it<br/>
+     * Journal must be set before enqueuing, already enqueued tasks are not journaled.
+     *
+     * @param journal journal or null to disable it
+     */
+    public void setResumeJournal(ResumeJournal journal) {
+        mJournal = journal;
+    }
+
+    public ResumeJournal getResumeJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Enqueue all unfinished tasks from journal, journal is used for this queue from now<br/>
+     * Parts are resumed from journaled offsets, nothing is listed on server.
+     *
+     * @param journal
+     * @param template context with password and settings, server and files are taken from journal
+     * @return restored tasks
+     */
+    public List<DownloadTask> restore(ResumeJournal journal, FTPContext template) {
+        List<DownloadTask> tasks = journal.createTasks(template);
+        setResumeJournal(journal);
+        enqueue(tasks);
+        return tasks;
+    }
+
+    /**
+     * Set engine for running threads, already running threads are not affected
+     *
+     * @param engine
+     */
+    public void setExecutionEngine(ExecutionEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("ExecutionEngine is null!");
         }
+        mEngine = engine;
+    }
+
+    public ExecutionEngine getExecutionEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Get count of threads in particular state
+     *
+     * @param state
+     * @return
+     */
+    public int getStateCount(FTPDownloadThread.State state) {
+        return mStateCounters[state.ordinal()].get();
+    }
+
+    /**
+     * Stop scheduling of new threads, already running threads are not affected
+     */
+    public void shutdown() {
+        mIsRunning = false;
+        wakeUp();
     }
 
     /**
@@ -236,29 +883,56 @@ public class FTPLeechMaster implements FTPDownloadListener {
         return mQueue.get(index);
     }
 
+    /**
+     * Get dispatcher delivering events of threads to listeners
+     *
+     * @return dispatcher or null if master is driven by engine
+     */
+    public EventDispatcher getEventDispatcher() {
+        return mDispatcher;
+    }
+
     public void setNotificationAdapter(NotificationAdapter adapter) {
         mAdapter = adapter;
     }
 
+    /**
+     * Get totals of all threads, it doesn't iterate threads, so it can be polled often
+     *
+     * @return
+     */
     public Statistics getStatistics() {
-        Statistics stats = new Statistics();
+        Statistics s = mStatistics.getGlobal();
+        FTPDownloadThread.State[] states = FTPDownloadThread.State.values();
+        s.states = new int[states.length];
+        for (int i = 0; i < states.length; i++) {
+            s.states[i] = mStateCounters[i].get();
+        }
+        return s;
+    }
 
-        int speed = 0;
-        long down = 0;
-        long complete = 0;
+    /**
+     * Get totals of one task
+     *
+     * @param task
+     * @return totals or null if task isn't enqueued
+     */
+    public Statistics getStatistics(DownloadTask task) {
+        return mStatistics.getTask(task);
+    }
 
-        for (FTPDownloadThread t : mQueue) {
-            speed += t.getSpeed();
-            down += t.getDownloaded();
-            complete += t.getContext().currentPieceLength;
-        }
-        long toDown = complete - down;
-        int eta = (speed == 0 ? 0 : (int) (toDown / speed));
+    /**
+     * Get totals of one server
+     *
+     * @param server
+     * @return totals or null if there is no thread for this server
+     */
+    public Statistics getStatistics(ServerKey server) {
+        return mStatistics.getServer(server);
+    }
 
-        Statistics s = new Statistics();
-        s.currentSpeed = speed;
-        s.eta = eta;
-        return s;
+    public TransferStatistics getTransferStatistics() {
+        return mStatistics;
     }
 
     /**
@@ -274,6 +948,31 @@ public class FTPLeechMaster implements FTPDownloadListener {
          * estimated time of arrival in seconds
          */
         public int eta;
+
+        /**
+         * Current speed in bytes per second, not limited to int
+         */
+        public long speed;
+
+        /**
+         * Transferred bytes incl. hedged duplicates and data downloaded again
+         */
+        public long transferred;
+
+        /**
+         * Length of all pieces
+         */
+        public long length;
+
+        /**
+         * Not downloaded length of all pieces
+         */
+        public long remaining;
+
+        /**
+         * Count of threads per state, index is {@link FTPDownloadThread.State#ordinal()}, only for global statistics
+         */
+        public int[] states;
     }
 }
 
@@ -0,0 +1,311 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool of connected and logged {@link FTPClient} sessions<br/>
+ * Sessions are kept per {@link ServerKey}, checked by NOOP before reuse and disconnected after {@link #setIdleTimeout(long)}.
+ * Sessions taken by {@link #acquire(FTPContext)} are counted until they are released or discarded,
+ * returned session is kept only if all sessions of server fit into {@link #setMaxPerServer(int)}.
+ */
+public class FTPSessionPool {
+
+    /**
+     * Default max idle time of session in pool
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /**
+     * Default max count of active and idle sessions per server
+     */
+    public static final int DEFAULT_MAX_PER_SERVER = 8;
+
+    /**
+     * Idle time after which is session checked by NOOP before reuse
+     */
+    private static final long VALIDATE_AFTER = 1000;
+
+    private final Map<ServerKey, ArrayDeque<Session>> mSessions = new HashMap<ServerKey, ArrayDeque<Session>>();
+
+    /**
+     * Count of acquired sessions per server, guarded by {@link #mSessions}
+     */
+    private final Map<ServerKey, Integer> mActive = new HashMap<ServerKey, Integer>();
+
+    private volatile long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private volatile int mMaxPerServer = DEFAULT_MAX_PER_SERVER;
+
+    private Thread mEvictThread;
+
+    /**
+     * Get connected session for context, new session is opened if there isn't any valid in pool
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    public FTPClient acquire(FTPContext context) throws IOException, FatalFTPException {
+        final ServerKey key = ServerKey.of(context);
+        Session session;
+        while ((session = poll(key)) != null) {
+            if (isValid(session)) {
+                try {
+                    configure(session, context);
+                    onAcquired(key);
+                    return session.client;
+                } catch (IOException e) {
+                    disconnect(session.client);
+                }
+            } else {
+                disconnect(session.client);
+            }
+        }
+        FTPClient client = FTPFactory.openFtpClient(context);
+        onAcquired(key);
+        return client;
+    }
+
+    /**
+     * Return session to pool<br/>
+     * Session must be in idle state, without any pending transfer.
+     * It's disconnected if server has more active and idle sessions than {@link #getMaxPerServer()}.
+     *
+     * @param context context used for {@link #acquire(FTPContext)}
+     * @param client
+     */
+    public void release(FTPContext context, FTPClient client) {
+        if (client == null) {
+            return;
+        }
+        final ServerKey key = ServerKey.of(context);
+        boolean added = false;
+        synchronized (mSessions) {
+            final int active = onReleased(key);
+            ArrayDeque<Session> sessions = mSessions.get(key);
+            if (sessions == null) {
+                sessions = new ArrayDeque<Session>();
+                mSessions.put(key, sessions);
+            }
+            if (client.isConnected() && sessions.size() + active < mMaxPerServer) {
+                sessions.push(new Session(client, context.fileType));
+                added = true;
+                ensureEvictThread();
+            }
+        }
+        if (!added) {
+            disconnect(client);
+        }
+    }
+
+    /**
+     * Disconnect session taken by {@link #acquire(FTPContext)} which can't be used again
+     *
+     * @param context context used for {@link #acquire(FTPContext)}
+     * @param client
+     */
+    public void discard(FTPContext context, FTPClient client) {
+        if (client == null) {
+            return;
+        }
+        synchronized (mSessions) {
+            onReleased(ServerKey.of(context));
+        }
+        disconnect(client);
+    }
+
+    /**
+     * Disconnect and remove all idle sessions, active sessions are still counted until they are released
+     */
+    public void clear() {
+        synchronized (mSessions) {
+            for (ArrayDeque<Session> sessions : mSessions.values()) {
+                for (Session s : sessions) {
+                    disconnect(s.client);
+                }
+            }
+            mSessions.clear();
+        }
+    }
+
+    /**
+     * Get count of acquired sessions for server
+     *
+     * @param key
+     * @return
+     */
+    public int getActiveCount(ServerKey key) {
+        synchronized (mSessions) {
+            Integer active = mActive.get(key);
+            return active == null ? 0 : active;
+        }
+    }
+
+    /**
+     * Get count of idle sessions for server
+     *
+     * @param key
+     * @return
+     */
+    public int getIdleCount(ServerKey key) {
+        synchronized (mSessions) {
+            ArrayDeque<Session> sessions = mSessions.get(key);
+            return sessions == null ? 0 : sessions.size();
+        }
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * Set max count of active and idle sessions per server, session over limit isn't kept in pool
+     *
+     * @param maxPerServer
+     */
+    public void setMaxPerServer(int maxPerServer) {
+        mMaxPerServer = maxPerServer;
+    }
+
+    public int getMaxPerServer() {
+        return mMaxPerServer;
+    }
+
+    private void onAcquired(ServerKey key) {
+        synchronized (mSessions) {
+            Integer active = mActive.get(key);
+            mActive.put(key, active == null ? 1 : active + 1);
+        }
+    }
+
+    /**
+     * Decrement count of acquired sessions, caller must hold {@link #mSessions}
+     *
+     * @param key
+     * @return count of other acquired sessions
+     */
+    private int onReleased(ServerKey key) {
+        Integer active = mActive.get(key);
+        if (active == null || active <= 1) {
+            mActive.remove(key);
+            return 0;
+        }
+        mActive.put(key, active - 1);
+        return active - 1;
+    }
+
+    private Session poll(ServerKey key) {
+        synchronized (mSessions) {
+            ArrayDeque<Session> sessions = mSessions.get(key);
+            return sessions == null ? null : sessions.poll();
+        }
+    }
+
+    private boolean isValid(Session session) {
+        final FTPClient fc = session.client;
+        if (!fc.isConnected()) {
+            return false;
+        }
+        final long idle = System.currentTimeMillis() - session.lastUsed;
+        if (idle > mIdleTimeout) {
+            return false;
+        }
+        if (idle > VALIDATE_AFTER) {
+            try {
+                return FTPReply.isPositiveCompletion(fc.noop());
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update session for context, which can have different settings
+     */
+    private void configure(Session session, FTPContext context) throws IOException {
+        final FTPClient fc = session.client;
+        //pooled session could be opened with different timeouts
+        fc.setSoTimeout(context.soTimeout);
+        fc.setDataTimeout(context.dataTimeout);
+        if (context.passive) {
+            fc.enterLocalPassiveMode();
+        } else {
+            fc.enterLocalActiveMode();
+        }
+        if (session.fileType != context.fileType && !fc.setFileType(context.fileType)) {
+            throw new IOException("Unable to set file type:" + context.fileType);
+        }
+        fc.setRestartOffset(0);
+    }
+
+    private void ensureEvictThread() {
+        if (mEvictThread != null) {
+            return;
+        }
+        mEvictThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(VALIDATE_AFTER, mIdleTimeout / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    evictIdle();
+                }
+            }
+        });
+        mEvictThread.setName("FTPSessionPool");
+        mEvictThread.setDaemon(true);
+        mEvictThread.start();
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        synchronized (mSessions) {
+            for (ArrayDeque<Session> sessions : mSessions.values()) {
+                for (Iterator<Session> it = sessions.iterator(); it.hasNext(); ) {
+                    Session s = it.next();
+                    if (now - s.lastUsed > mIdleTimeout) {
+                        it.remove();
+                        disconnect(s.client);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void disconnect(FTPClient client) {
+        try {
+            client.disconnect();
+        } catch (Exception e) {/**/}
+    }
+
+    /**
+     * Pooled session
+     */
+    private static class Session {
+        final FTPClient client;
+        final int fileType;
+        final long lastUsed;
+
+        Session(FTPClient client, int fileType) {
+            this.client = client;
+            this.fileType = fileType;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
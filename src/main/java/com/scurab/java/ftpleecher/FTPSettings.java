@@ -35,4 +35,114 @@ public class FTPSettings {
      * {@link org.apache.commons.net.ftp.FTP#BINARY_FILE_TYPE}, {@link org.apache.commons.net.ftp.FTP#ASCII_FILE_TYPE}
      */
     public int fileType = FTP.BINARY_FILE_TYPE;
+
+    /**
+     * Write every part directly into one preallocated output file.<br/>
+     * If true, no part files are created and there is no merging pass, resume is based on
+     * committed offsets stored in small record file next to output file.
+     */
+    public boolean directPlacement = false;
+
+    /**
+     * Merge parts in place.<br/>
+     * If true, first part is renamed to final file and only rest of parts is copied,
+     * first part file doesn't exist after merging.
+     */
+    public boolean inPlaceMerge = false;
+
+    /**
+     * Reuse logged ftp sessions between parts.<br/>
+     * If true, finished part returns its connection to {@link FTPSessionPool} instead of disconnecting.
+     * It's off by default, idle sessions stay connected to server for {@link FTPSessionPool#getIdleTimeout()}.
+     */
+    public boolean reuseSessions = false;
+
+    /**
+     * Cache listings of remote folders.<br/>
+     * If true, folders listed again are taken from {@link FTPFactory#getListingCache()},
+     * listing older than {@link ListingCache#getTtl()} is revalidated by MDTM of folder.
+     * Changes of existing files which don't change folder timestamp are found only after re-listing.
+     */
+    public boolean cacheListings = false;
+
+    /**
+     * Hash of downloaded content, null to disable.<br/>
+     * Every part is hashed while it's written and complete file is compared with hash computed by server
+     * (HASH, XCRC, XMD5, XSHA1, XSHA256). Wrong parts are downloaded again, see {@link ContentVerifier}.
+     */
+    public HashAlgorithm contentHash = null;
+
+    /**
+     * Keep CRC32 of blocks of every part in sidecar file.<br/>
+     * Resumed part is checked block by block and only corrupted blocks are downloaded again,
+     * tail of part is compared with server if it can compute CRC32 of range. See {@link BlockChecksums}
+     */
+    public boolean blockChecksums = false;
+
+    /**
+     * Size of block for {@link #blockChecksums} in bytes.<br/>
+     * Default value is 1MiB
+     */
+    public int checksumBlockSize = 1024 * 1024;
+
+    /**
+     * Allow splitting of slow parts.<br/>
+     * If true, free working slot can take back half of the slowest downloading part of this file.
+     */
+    public boolean dynamicSplitting = false;
+
+    /**
+     * Min length of part created by {@link #dynamicSplitting} in bytes.<br/>
+     * Default value is 1MiB
+     */
+    public long minSplitLength = 1024 * 1024;
+
+    /**
+     * Endgame mode.<br/>
+     * If true, free working slot can start duplicate download of tail of the least progressed part,
+     * when rest of task is smaller than {@link #endgameThreshold}. First finished download wins.
+     */
+    public boolean endgame = false;
+
+    /**
+     * Remaining bytes of task when {@link #endgame} is started.<br/>
+     * Default value is 4MiB
+     */
+    public long endgameThreshold = 4 * 1024 * 1024;
+
+    /**
+     * Default value of {@link #soTimeout} and {@link #dataTimeout} in ms
+     */
+    public static final int DEFAULT_TIMEOUT = 2000;
+
+    /**
+     * Read timeout of control connection in ms
+     */
+    public int soTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Read timeout of data connection in ms.<br/>
+     * Connection sending few bytes per second never times out, see {@link StallWatchdog}
+     */
+    public int dataTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Wait time before next attempt of failed part in ms.<br/>
+     * Default value is {@link FTPDownloadThread#DEFAULT_WAIT}
+     */
+    public long retryDelay = FTPDownloadThread.DEFAULT_WAIT;
+
+    /**
+     * Count of fatal errors after which part is stopped in {@link FTPDownloadThread.State#FatalError}.<br/>
+     * Refused connections are not counted, see {@link AdaptiveConcurrencyController#isConnectionRefusal(Exception)}.
+     * Default value is 5
+     */
+    public int fatalErrorsToStop = FTPDownloadThread.DEFAULT_FATAL_ERRORS;
+
+    /**
+     * Count of refused connections in row after which part is stopped in {@link FTPDownloadThread.State#FatalError}.<br/>
+     * Refusal doesn't count as fatal error, server is just full, but part doesn't retry it forever.
+     * Default value is 20
+     */
+    public int refusalsToStop = FTPDownloadThread.DEFAULT_REFUSALS;
 }
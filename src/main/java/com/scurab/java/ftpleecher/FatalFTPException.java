@@ -1,16 +1,52 @@
 package com.scurab.java.ftpleecher;
 
+import com.scurab.java.ftpleecher.tools.TextUtils;
+import org.apache.commons.net.ftp.FTPClient;
+
 public class FatalFTPException extends Exception {
 
+    /**
+     * FTP reply code which caused this exception, 0 if it's not related to any reply
+     */
+    private final int mReplyCode;
+
     public FatalFTPException(String message) {
         super(message);
+        mReplyCode = 0;
     }
 
     public FatalFTPException(String message, Throwable cause) {
         super(message, cause);
+        mReplyCode = 0;
     }
 
     public FatalFTPException(Throwable cause) {
         super(cause);
+        mReplyCode = 0;
+    }
+
+    public FatalFTPException(int replyCode, String message) {
+        super(message);
+        mReplyCode = replyCode;
+    }
+
+    /**
+     * Create exception for last reply of client
+     *
+     * @param client
+     * @return
+     */
+    public static FatalFTPException fromReply(FTPClient client) {
+        final int code = client.getReplyCode();
+        return new FatalFTPException(code, TextUtils.getFtpCodeName(code) + "\n" + client.getReplyString());
+    }
+
+    /**
+     * Get FTP reply code
+     *
+     * @return reply code or 0 if exception is not related to any reply
+     */
+    public int getReplyCode() {
+        return mReplyCode;
     }
 }
@@ -0,0 +1,107 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Merging engine appending part files into one output file<br/>
+ * Data are moved by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so OS can copy them without any heap buffer (sendfile/copy_file_range on Linux).
+ */
+public class FileMerger implements Closeable {
+
+    private final File mOutputFile;
+
+    private final boolean mInPlace;
+
+    private FileOutputStream mOutputStream;
+
+    private FileChannel mOutput;
+
+    /**
+     * @param outputFile final file, must not exist if inPlace is used
+     * @param inPlace    if true, first part is just renamed to output file and rest of parts is appended to it
+     */
+    public FileMerger(File outputFile, boolean inPlace) {
+        mOutputFile = outputFile;
+        mInPlace = inPlace;
+    }
+
+    /**
+     * Append part to output file
+     *
+     * @param part
+     * @return number of bytes appended
+     * @throws IOException
+     */
+    public long append(File part) throws IOException {
+        if (mOutput == null) {
+            if (mInPlace && part.renameTo(mOutputFile)) {
+                open(true);
+                return mOutput.size();
+            }
+            //not in place or rename not possible (diff file system), just copy it
+            open(false);
+        }
+        FileInputStream fis = new FileInputStream(part);
+        try {
+            FileChannel input = fis.getChannel();
+            final long size = input.size();
+            long position = 0;
+            while (position < size) {
+                position += input.transferTo(position, size - position, mOutput);
+            }
+            return position;
+        } finally {
+            fis.close();
+        }
+    }
+
+    private void open(boolean append) throws IOException {
+        mOutputStream = new FileOutputStream(mOutputFile, append);
+        mOutput = mOutputStream.getChannel();
+    }
+
+    /**
+     * Continue merging into output file after restart, anything after merged length is cut away
+     *
+     * @param merged length of already merged parts
+     * @throws IOException if output file is shorter
+     */
+    public void resume(long merged) throws IOException {
+        if (mOutput != null) {
+            throw new IllegalStateException("Merging already started");
+        }
+        if (mOutputFile.length() < merged) {
+            throw new IOException(String.format("Output file %s is shorter than merged parts", mOutputFile.getAbsolutePath()));
+        }
+        open(true);
+        mOutput.truncate(merged);
+    }
+
+    /**
+     * Force merged data to disk
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        if (mOutput != null) {
+            mOutput.force(false);
+        }
+    }
+
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOutputStream != null) {
+            mOutputStream.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.zip.CRC32;
+
+/**
+ * Algorithm of content hash, see {@link FTPSettings#contentHash}<br/>
+ * CRCs of parts are combined into CRC of whole file, digests need one read of merged file.
+ */
+public enum HashAlgorithm {
+    CRC32("CRC32", "XCRC", 8, 0xEDB88320),
+    CRC32C("CRC32C", null, 8, Crc32c.POLYNOMIAL),
+    MD5("MD5", "XMD5", 32, 0),
+    SHA1("SHA-1", "XSHA1", 40, 0),
+    SHA256("SHA-256", "XSHA256", 64, 0);
+
+    private final String mName;
+    private final String mCommand;
+    private final int mHexLength;
+    private final int mPolynomial;
+
+    HashAlgorithm(String name, String command, int hexLength, int polynomial) {
+        mName = name;
+        mCommand = command;
+        mHexLength = hexLength;
+        mPolynomial = polynomial;
+    }
+
+    /**
+     * Get name used by HASH command (draft-bryan-ftpext-hash)
+     *
+     * @return
+     */
+    public String getHashName() {
+        return mName;
+    }
+
+    /**
+     * Get name of legacy X command, null if there is none
+     *
+     * @return
+     */
+    public String getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Get length of hash as hex string
+     *
+     * @return
+     */
+    public int getHexLength() {
+        return mHexLength;
+    }
+
+    /**
+     * Hashes of consecutive blocks can be combined without data
+     *
+     * @return
+     */
+    public boolean isCombinable() {
+        return mPolynomial != 0;
+    }
+
+    int getPolynomial() {
+        return mPolynomial;
+    }
+
+    public ContentHasher newHasher() {
+        switch (this) {
+            case CRC32:
+                return new ContentHasher.Crc(this, new CRC32());
+            case CRC32C:
+                return new ContentHasher.Crc(this, new Crc32c());
+            default:
+                return new ContentHasher.Digest(this, mName);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.scurab.java.ftpleecher;
+
+/**
+ * Race of part thread and its duplicate started in {@link FTPSettings#endgame}<br/>
+ * Both writers write same bytes of remote file to same place, so late write of loser can't damage data.
+ * First writer reaching end of range wins, the other one is cancelled.
+ */
+class HedgeRace {
+
+    private final FTPDownloadThread mPrimary;
+
+    private final FTPDownloadThread mHedge;
+
+    /**
+     * Position in piece where hedge starts
+     */
+    private final long mStart;
+
+    private FTPDownloadThread mWinner;
+
+    HedgeRace(FTPDownloadThread primary, FTPDownloadThread hedge, long start) {
+        mPrimary = primary;
+        mHedge = hedge;
+        mStart = start;
+    }
+
+    /**
+     * Try to finish race
+     *
+     * @param writer writer which has complete range
+     * @return true if writer is the first one
+     */
+    synchronized boolean complete(FTPDownloadThread writer) {
+        if (mWinner == null) {
+            mWinner = writer;
+        }
+        return mWinner == writer;
+    }
+
+    synchronized boolean isDone() {
+        return mWinner != null;
+    }
+
+    synchronized FTPDownloadThread getWinner() {
+        return mWinner;
+    }
+
+    FTPDownloadThread getPrimary() {
+        return mPrimary;
+    }
+
+    FTPDownloadThread getHedge() {
+        return mHedge;
+    }
+
+    FTPDownloadThread getOpponent(FTPDownloadThread writer) {
+        return writer == mPrimary ? mHedge : mPrimary;
+    }
+
+    long getStart() {
+        return mStart;
+    }
+}
@@ -0,0 +1,137 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed exponential buckets<br/>
+ * Bucket limits are 100us, 200us, 400us... up to ~100s, recording is lock free.
+ * Percentiles are upper limits of buckets, so they are accurate to factor 2.
+ */
+public class LatencyHistogram {
+
+    private static final long FIRST_LIMIT = 100000;//100us in ns
+
+    private static final int BUCKETS = 21;
+
+    private final LongAdder[] mBuckets = new LongAdder[BUCKETS + 1];
+
+    private final LongAdder mSum = new LongAdder();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record one duration
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        mBuckets[getBucket(nanos)].increment();
+        mSum.add(nanos);
+        long max;
+        while ((max = mMax.get()) < nanos && !mMax.compareAndSet(max, nanos)) {
+            //another thread changed it
+        }
+    }
+
+    private static int getBucket(long nanos) {
+        int bucket = 0;
+        long limit = FIRST_LIMIT;
+        while (bucket < BUCKETS && nanos > limit) {
+            limit <<= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Get upper limit of bucket
+     *
+     * @param bucket
+     * @return limit in ns, {@link Long#MAX_VALUE} for last bucket
+     */
+    private static long getLimit(int bucket) {
+        return bucket < BUCKETS ? FIRST_LIMIT << bucket : Long.MAX_VALUE;
+    }
+
+    public long getCount() {
+        long result = 0;
+        for (LongAdder bucket : mBuckets) {
+            result += bucket.sum();
+        }
+        return result;
+    }
+
+    /**
+     * Get sum of all durations
+     *
+     * @return sum in ns
+     */
+    public long getSum() {
+        return mSum.sum();
+    }
+
+    /**
+     * Get longest duration
+     *
+     * @return max in ns
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get approximate percentile
+     *
+     * @param percentile 0-100
+     * @return duration in ns, upper limit of bucket or max if it's lower, 0 if there is nothing recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[mBuckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mBuckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(getLimit(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Get summary for monitoring, values are in ms
+     *
+     * @return count, mean, p50, p90, p99 and max
+     */
+    public Map<String, Long> getSummary() {
+        final long count = getCount();
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("count", count);
+        result.put("meanMs", count == 0 ? 0 : getSum() / count / 1000000);
+        result.put("p50Ms", getPercentile(50) / 1000000);
+        result.put("p90Ms", getPercentile(90) / 1000000);
+        result.put("p99Ms", getPercentile(99) / 1000000);
+        result.put("maxMs", getMax() / 1000000);
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+package com.scurab.java.ftpleecher;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics of one {@link FTPLeechMaster} and of {@link DownloadMetrics} of process<br/>
+ * It's MBean, see {@link #register()}, and it feeds {@link MetricsExporter} periodically.
+ * Everything is read from counters, nothing is computed by iterating download threads.
+ */
+public class LeechMetrics implements LeechMetricsMXBean {
+
+    public static final String DOMAIN = "com.scurab.java.ftpleecher";
+
+    private static final AtomicInteger sIdCounter = new AtomicInteger();
+
+    private final FTPLeechMaster mMaster;
+
+    private final DownloadMetrics mMetrics;
+
+    private final int mId = sIdCounter.incrementAndGet();
+
+    private ObjectName mObjectName;
+
+    private volatile MetricsExporter mExporter;
+
+    LeechMetrics(FTPLeechMaster master, DownloadMetrics metrics) {
+        mMaster = master;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Register as MBean in platform MBean server
+     *
+     * @return name of MBean
+     * @throws JMException
+     */
+    public synchronized ObjectName register() throws JMException {
+        if (mObjectName == null) {
+            ObjectName name = new ObjectName(DOMAIN + ":type=FTPLeechMaster,id=" + mId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mObjectName = name;
+        }
+        return mObjectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (mObjectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mObjectName)) {
+                server.unregisterMBean(mObjectName);
+            }
+            mObjectName = null;
+        }
+    }
+
+    /**
+     * Set exporter called with {@link #snapshot()} periodically by execution engine of master<br/>
+     * Setting the same exporter again does nothing, replaced exporter is not called anymore.
+     *
+     * @param exporter       exporter or null to stop exporting
+     * @param intervalMillis
+     */
+    public synchronized void setExporter(final MetricsExporter exporter, final long intervalMillis) {
+        if (mExporter == exporter) {
+            return;
+        }
+        mExporter = exporter;
+        if (exporter == null) {
+            return;
+        }
+        mMaster.getExecutionEngine().schedule(new Runnable() {
+            @Override
+            public void run() {
+                //exporter was replaced or master is down
+                if (mExporter != exporter || !mMaster.isRunning()) {
+                    return;
+                }
+                try {
+                    exporter.export(snapshot());
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+                mMaster.getExecutionEngine().schedule(this, intervalMillis);
+            }
+        }, intervalMillis);
+    }
+
+    /**
+     * Get all metrics as flat map
+     *
+     * @return
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> result = new LinkedHashMap<String, Number>();
+        for (Map.Entry<String, Integer> e : getPartsByState().entrySet()) {
+            result.put("parts." + e.getKey(), e.getValue());
+        }
+        result.put("parts.active", getActiveParts());
+        result.put("parts.queued", getQueuedParts());
+        result.put("bytesPerSecond", getBytesPerSecond());
+        result.put("remainingBytes", getRemainingBytes());
+        put(result, "server.bytesPerSecond.", getBytesPerSecondByServer());
+        put(result, "task.bytesPerSecond.", getBytesPerSecondByTask());
+        put(result, "latency.connect.", getConnectLatency());
+        put(result, "latency.login.", getLoginLatency());
+        put(result, "latency.firstByte.", getFirstByteLatency());
+        put(result, "latency.merge.", getMergeLatency());
+        put(result, "retries.", getRetriesByReason());
+        put(result, "fatalErrors.", getFatalErrorsByReason());
+        result.put("merge.bytesPerSecond", getMergeBytesPerSecond());
+        result.put("scheduler.wakeUps", getSchedulerWakeUps());
+        return result;
+    }
+
+    private static void put(Map<String, Number> result, String prefix, Map<String, Long> values) {
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            result.put(prefix + e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getPartsByState() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (FTPDownloadThread.State state : FTPDownloadThread.State.values()) {
+            result.put(state.name(), mMaster.getStateCount(state));
+        }
+        return result;
+    }
+
+    @Override
+    public int getActiveParts() {
+        return mMaster.getRunningCount();
+    }
+
+    @Override
+    public int getQueuedParts() {
+        return mMaster.getReadyCount();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return mMaster.getTransferStatistics().getGlobal().speed;
+    }
+
+    @Override
+    public long getRemainingBytes() {
+        return mMaster.getTransferStatistics().getGlobal().remaining;
+    }
+
+    @Override
+    public Map<String, Long> getBytesPerSecondByServer() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<ServerKey, FTPLeechMaster.Statistics> e : mMaster.getTransferStatistics().getServers().entrySet()) {
+            result.put(e.getKey().toString(), e.getValue().speed);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getBytesPerSecondByTask() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        //statistics contain only unfinished tasks, key is unique even for same remote path
+        for (Map.Entry<DownloadTask, FTPLeechMaster.Statistics> e : mMaster.getTransferStatistics().getTasks().entrySet()) {
+            if (e.getValue().remaining > 0) {
+                result.put(String.valueOf(e.getKey().getId()), e.getValue().speed);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getConnectLatency() {
+        return mMetrics.getConnectLatency().getSummary();
+    }
+
+    @Override
+    public Map<String, Long> getLoginLatency() {
+        return mMetrics.getLoginLatency().getSummary();
+    }
+
+    @Override
+    public Map<String, Long> getFirstByteLatency() {
+        return mMetrics.getFirstByteLatency().getSummary();
+    }
+
+    @Override
+    public Map<String, Long> getRetriesByReason() {
+        return mMetrics.getRetries();
+    }
+
+    @Override
+    public Map<String, Long> getFatalErrorsByReason() {
+        return mMetrics.getFatalErrors();
+    }
+
+    @Override
+    public Map<String, Long> getMergeLatency() {
+        return mMetrics.getMergeLatency().getSummary();
+    }
+
+    @Override
+    public long getMergeBytesPerSecond() {
+        final long nanos = mMetrics.getMergeLatency().getSum();
+        return nanos == 0 ? 0 : (long) (mMetrics.getMergedBytes() * 1e9 / nanos);
+    }
+
+    @Override
+    public long getSchedulerWakeUps() {
+        return mMetrics.getSchedulerWakeUps();
+    }
+}
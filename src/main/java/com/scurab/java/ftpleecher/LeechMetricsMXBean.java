@@ -0,0 +1,65 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link FTPLeechMaster}, see {@link LeechMetrics}<br/>
+ * Latencies are summaries of {@link LatencyHistogram}, values are in ms.
+ */
+public interface LeechMetricsMXBean {
+
+    /**
+     * Get count of parts per state
+     *
+     * @return
+     */
+    Map<String, Integer> getPartsByState();
+
+    /**
+     * Get count of parts taking working slot
+     *
+     * @return
+     */
+    int getActiveParts();
+
+    /**
+     * Get count of parts waiting for working slot
+     *
+     * @return
+     */
+    int getQueuedParts();
+
+    long getBytesPerSecond();
+
+    long getRemainingBytes();
+
+    Map<String, Long> getBytesPerSecondByServer();
+
+    /**
+     * Get speed of not finished tasks, key is {@link DownloadTask#getId()}
+     *
+     * @return
+     */
+    Map<String, Long> getBytesPerSecondByTask();
+
+    Map<String, Long> getConnectLatency();
+
+    Map<String, Long> getLoginLatency();
+
+    Map<String, Long> getFirstByteLatency();
+
+    Map<String, Long> getRetriesByReason();
+
+    Map<String, Long> getFatalErrorsByReason();
+
+    Map<String, Long> getMergeLatency();
+
+    /**
+     * Get avg merge throughput
+     *
+     * @return bytes per second of merging
+     */
+    long getMergeBytesPerSecond();
+
+    long getSchedulerWakeUps();
+}
@@ -0,0 +1,347 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Cache of remote folder listings, used by {@link FTPFactory} if {@link FTPSettings#cacheListings} is set<br/>
+ * Listing is kept per server and path for {@link #getTtl()}, after that it's revalidated by MDTM of folder
+ * and listed again only if folder has changed or server can't tell it.
+ * Least recently used listings are evicted over {@link #getMaxEntries()}.
+ * Cache can be saved to disk by {@link #save(File)} and loaded after restart by {@link #load(File)}.
+ */
+public class ListingCache {
+
+    /**
+     * Default time in ms how long is listing used without revalidation
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Default max count of cached folders
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final int MAGIC = 0x464C4331;//FLC1
+
+    private final LinkedHashMap<Key, Listing> mEntries = new LinkedHashMap<Key, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Listing> eldest) {
+            return size() > mMaxEntries;
+        }
+    };
+
+    private volatile long mTtl = DEFAULT_TTL;
+
+    private volatile int mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    private int mHits;
+
+    private int mRevalidations;
+
+    private int mMisses;
+
+    /**
+     * Get listing of folder, server is asked only if cached listing is missing or out of date
+     *
+     * @param context context of connection
+     * @param fc      connected client
+     * @param path    remote folder
+     * @param lister  called for real listing
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException
+     */
+    FTPFile[] list(FTPContext context, FTPClient fc, String path, Lister lister) throws IOException, FatalFTPException {
+        final Key key = new Key(ServerKey.of(context), path);
+        final long now = System.currentTimeMillis();
+        Listing listing = get(key);
+        if (listing != null && now - listing.time < mTtl) {
+            synchronized (this) {
+                mHits++;
+            }
+            return listing.files.clone();
+        }
+
+        //take stamp before listing, change during listing is found by next revalidation
+        final String stamp = fc.getModificationTime(path);
+        if (listing != null && stamp != null && stamp.equals(listing.stamp)) {
+            synchronized (this) {
+                mRevalidations++;
+                //replace instead of update, listing can be shared by concurrent readers
+                mEntries.put(key, new Listing(listing.files, stamp, now));
+            }
+            return listing.files.clone();
+        }
+
+        FTPFile[] files = lister.list(context, fc, path);
+        synchronized (this) {
+            mMisses++;
+            mEntries.put(key, new Listing(files.clone(), stamp, now));
+        }
+        return files;
+    }
+
+    private synchronized Listing get(Key key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Remove cached listing of folder
+     *
+     * @param server
+     * @param path
+     */
+    public synchronized void invalidate(ServerKey server, String path) {
+        mEntries.remove(new Key(server, path));
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Save cache to file, file is replaced atomically
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        List<Map.Entry<Key, Listing>> entries;
+        synchronized (this) {
+            entries = new ArrayList<Map.Entry<Key, Listing>>(mEntries.entrySet());
+        }
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            //eldest first, so loading restores LRU order
+            for (Map.Entry<Key, Listing> e : entries) {
+                writeKey(out, e.getKey());
+                Listing listing = e.getValue();
+                writeString(out, listing.stamp);
+                out.writeLong(listing.time);
+                out.writeInt(listing.files.length);
+                for (FTPFile f : listing.files) {
+                    writeFile(out, f);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            //old file is still replaced by one move, just not atomically on this file system
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Load cache from file saved by {@link #save(File)}, loaded listings are added to current ones<br/>
+     * Age of listings is kept, so listings older than TTL are revalidated before use.
+     *
+     * @param file
+     * @return count of loaded listings, 0 if file doesn't exist
+     * @throws IOException if file is corrupted
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid listing cache " + file.getAbsolutePath());
+            }
+            final int count = in.readInt();
+            LinkedHashMap<Key, Listing> loaded = new LinkedHashMap<Key, Listing>();
+            for (int i = 0; i < count; i++) {
+                Key key = readKey(in);
+                String stamp = readString(in);
+                long time = in.readLong();
+                FTPFile[] files = new FTPFile[in.readInt()];
+                for (int j = 0; j < files.length; j++) {
+                    files[j] = readFile(in);
+                }
+                loaded.put(key, new Listing(files, stamp, time));
+            }
+            synchronized (this) {
+                mEntries.putAll(loaded);
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    //region serialization
+
+    private static void writeKey(DataOutputStream out, Key key) throws IOException {
+        writeString(out, key.server.getServer());
+        out.writeInt(key.server.getPort());
+        writeString(out, key.server.getUsername());
+        out.writeBoolean(key.server.isFtps());
+        writeString(out, key.path);
+    }
+
+    private static Key readKey(DataInputStream in) throws IOException {
+        String server = readString(in);
+        int port = in.readInt();
+        String username = readString(in);
+        boolean ftps = in.readBoolean();
+        return new Key(new ServerKey(server, port, username, ftps), readString(in));
+    }
+
+    private static void writeFile(DataOutputStream out, FTPFile f) throws IOException {
+        writeString(out, f.getName());
+        out.writeInt(f.getType());
+        out.writeLong(f.getSize());
+        Calendar c = f.getTimestamp();
+        out.writeLong(c != null ? c.getTimeInMillis() : Long.MIN_VALUE);
+    }
+
+    private static FTPFile readFile(DataInputStream in) throws IOException {
+        FTPFile f = new FTPFile();
+        f.setName(readString(in));
+        f.setType(in.readInt());
+        f.setSize(in.readLong());
+        long time = in.readLong();
+        if (time != Long.MIN_VALUE) {
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            c.setTimeInMillis(time);
+            f.setTimestamp(c);
+        }
+        return f;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    //endregion serialization
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * Set time in ms how long is listing used without asking server
+     *
+     * @param ttl
+     */
+    public void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Get count of listings used without asking server
+     *
+     * @return
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * Get count of listings confirmed by MDTM of folder
+     *
+     * @return
+     */
+    public synchronized int getRevalidations() {
+        return mRevalidations;
+    }
+
+    /**
+     * Get count of real listings
+     *
+     * @return
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Real listing of folder, called on cache miss
+     */
+    interface Lister {
+        FTPFile[] list(FTPContext context, FTPClient fc, String path) throws IOException, FatalFTPException;
+    }
+
+    private static class Key {
+        final ServerKey server;
+        final String path;
+
+        Key(ServerKey server, String path) {
+            this.server = server;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return server.equals(k.server) && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + path.hashCode();
+        }
+    }
+
+    private static class Listing {
+        final FTPFile[] files;
+        /**
+         * MDTM of folder when it was listed, null if server doesn't support it for folders
+         */
+        final String stamp;
+        final long time;
+
+        Listing(FTPFile[] files, String stamp, long time) {
+            this.files = files;
+            this.stamp = stamp;
+            this.time = time;
+        }
+    }
+}
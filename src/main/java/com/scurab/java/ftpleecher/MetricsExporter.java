@@ -0,0 +1,17 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.Map;
+
+/**
+ * Exporter SPI for metrics of {@link FTPLeechMaster}, see {@link LeechMetrics#setExporter(MetricsExporter, long)}<br/>
+ * It's called periodically from thread of execution engine, it shouldn't block for long.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Export one snapshot
+     *
+     * @param metrics flat metrics, key is dot separated name like "latency.connect.p99Ms", value is current value
+     */
+    void export(Map<String, Number> metrics);
+}
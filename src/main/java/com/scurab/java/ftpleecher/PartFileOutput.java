@@ -0,0 +1,84 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link PartOutput} writing part into its own file, files are merged together by {@link DownloadTask}<br/>
+ * Data are written on position, so part file can be shared with hedged duplicate, see {@link HedgeRace}
+ */
+public class PartFileOutput implements PartOutput {
+
+    private final FileChannel mChannel;
+
+    /**
+     * Position in file for next write
+     */
+    private long mPosition;
+
+    /**
+     * Force data to disk on commit, see {@link #setSync(boolean)}
+     */
+    private boolean mSync;
+
+    public PartFileOutput(File file, boolean append) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (!append) {
+            raf.setLength(0);
+        }
+        //closing of channel closes file too
+        mChannel = raf.getChannel();
+        mPosition = raf.length();
+    }
+
+    /**
+     * Open existing part file for writing from particular position, rest of file is kept<br/>
+     * File isn't created, missing file means that part was already merged and deleted.
+     *
+     * @param file
+     * @param position
+     * @throws IOException if file doesn't exist
+     */
+    public PartFileOutput(File file, long position) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        mPosition = position;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, len);
+        while (bb.hasRemaining()) {
+            mPosition += mChannel.write(bb, mPosition);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (mSync) {
+            mChannel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Force data to disk on every commit, data must be on disk before offset is journaled by {@link ResumeJournal}<br/>
+     * Without sync resume is based on file length.
+     *
+     * @param sync
+     */
+    public void setSync(boolean sync) {
+        mSync = sync;
+    }
+}
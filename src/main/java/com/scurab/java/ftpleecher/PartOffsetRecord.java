@@ -0,0 +1,94 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Small binary file keeping committed length of every part for {@link FTPSettings#directPlacement}<br/>
+ * One long value per part, value of part is on position <code>part * 8</code>
+ */
+public class PartOffsetRecord {
+
+    private static final int RECORD_SIZE = 8;
+
+    private final File mFile;
+
+    public PartOffsetRecord(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Get committed length of part
+     *
+     * @param part
+     * @return 0 if there is nothing committed yet
+     * @throws IOException
+     */
+    public long getCommitted(int part) throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long pos = (long) part * RECORD_SIZE;
+            if (raf.length() < pos + RECORD_SIZE) {
+                return 0;
+            }
+            raf.seek(pos);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Save committed length of part
+     *
+     * @param part
+     * @param value
+     * @throws IOException
+     */
+    public void setCommitted(int part, long value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) part * RECORD_SIZE);
+            raf.writeLong(value);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Create empty record if it doesn't exist, nothing is committed
+     *
+     * @throws IOException
+     */
+    public void create() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.close();
+    }
+
+    /**
+     * Returns true if record file exists
+     *
+     * @return
+     */
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Delete record file, should be called when whole file is downloaded
+     *
+     * @return
+     */
+    public boolean delete() {
+        return mFile.delete();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+}
@@ -0,0 +1,27 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Local destination for data of one particular part
+ */
+public interface PartOutput extends Closeable {
+
+    /**
+     * Write next chunk of downloaded data
+     *
+     * @param buffer
+     * @param offset
+     * @param len
+     * @throws IOException
+     */
+    void write(byte[] buffer, int offset, int len) throws IOException;
+
+    /**
+     * Make already written data persistent, after this call they are taken as downloaded for resume
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException;
+}
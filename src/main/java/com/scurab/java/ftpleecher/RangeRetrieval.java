@@ -0,0 +1,164 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Retrieval of one range of remote file<br/>
+ * Uses <code>RANG</code> if it's advertised by server, otherwise <code>REST</code> and <code>ABOR</code> at the end of range,
+ * so control connection can be used again after the transfer.
+ */
+public class RangeRetrieval {
+
+    /**
+     * Feature name of ranged retrieval (draft-bryan-ftp-range)
+     */
+    private static final String FEATURE_RANG = "RANG";
+
+    /**
+     * Positive reply for RANG
+     */
+    private static final int RANG_OK = 350;
+
+    /**
+     * Max number of replies read while waiting for NOOP reply after ABOR
+     */
+    private static final int MAX_DRAIN_REPLIES = 4;
+
+    private final FTPClient mClient;
+
+    private final InputStream mInputStream;
+
+    /**
+     * true if server sends only requested range and finishes it itself
+     */
+    private final boolean mRanged;
+
+    /**
+     * true if range ends at the end of remote file
+     */
+    private final boolean mToEnd;
+
+    private RangeRetrieval(FTPClient client, InputStream inputStream, boolean ranged, boolean toEnd) {
+        mClient = client;
+        mInputStream = inputStream;
+        mRanged = ranged;
+        mToEnd = toEnd;
+    }
+
+    /**
+     * Start retrieval of range
+     *
+     * @param client   connected client
+     * @param path     remote file
+     * @param offset   start of range
+     * @param length   length of range
+     * @param fileSize complete size of remote file, 0 if unknown
+     * @return
+     * @throws IOException
+     * @throws FatalFTPException if server refused transfer
+     */
+    public static RangeRetrieval open(FTPClient client, String path, long offset, long length, long fileSize) throws IOException, FatalFTPException {
+        final boolean toEnd = fileSize > 0 && offset + length >= fileSize;
+        boolean ranged = false;
+        if (!toEnd && length > 0 && client.hasFeature(FEATURE_RANG)) {
+            ranged = client.sendCommand(FEATURE_RANG, offset + " " + (offset + length - 1)) == RANG_OK;
+        }
+        client.setRestartOffset(ranged ? 0 : offset);
+        InputStream input = client.retrieveFileStream(path);
+        if (input == null || client.getReplyCode() >= 300) {
+            throw FatalFTPException.fromReply(client);
+        }
+        return new RangeRetrieval(client, input, ranged, toEnd);
+    }
+
+    /**
+     * Download range straight into place in local file, used for repair of already written data
+     *
+     * @param client   connected client, it's usable again if method returns normally
+     * @param path     remote file
+     * @param offset   start of range
+     * @param length   length of range
+     * @param fileSize complete size of remote file, 0 if unknown
+     * @param file     local file, it's not truncated
+     * @param position position of range in local file
+     * @throws IOException
+     * @throws FatalFTPException if server refused transfer
+     */
+    static void retrieve(FTPClient client, String path, long offset, long length, long fileSize, File file, long position) throws IOException, FatalFTPException {
+        RangeRetrieval retrieval = open(client, path, offset, length, fileSize);
+        long remaining = length;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            byte[] buffer = new byte[64 * 1024];
+            while (remaining > 0) {
+                int read = retrieval.mInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                raf.write(buffer, 0, read);
+                remaining -= read;
+            }
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        if (!retrieval.finish(remaining == 0)) {
+            throw new IOException("Connection is not usable after retrieval of " + path);
+        }
+        if (remaining > 0) {
+            throw new IOException("Unexpected end of range:" + path);
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public boolean isRanged() {
+        return mRanged;
+    }
+
+    /**
+     * Finish transfer and leave control connection in idle state
+     *
+     * @param complete true if whole range has been read
+     * @return true if control connection can be used again
+     */
+    public boolean finish(boolean complete) {
+        try {
+            if (complete && (mRanged || mToEnd)) {
+                //server is ending transfer itself, just read final reply
+                mInputStream.close();
+                return mClient.completePendingCommand();
+            }
+            //server is still sending data, close data connection and abort it
+            mInputStream.close();
+            mClient.abor();
+            return drainReplies();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read all pending replies of aborted transfer<br/>
+     * Depends on server and timing it can be 426 + 226, only 226 or 225, so NOOP is used as marker of last reply
+     *
+     * @return true if control connection is synchronized
+     * @throws IOException
+     */
+    private boolean drainReplies() throws IOException {
+        int reply = mClient.sendCommand("NOOP");
+        for (int i = 0; i < MAX_DRAIN_REPLIES && reply != FTPReply.COMMAND_OK; i++) {
+            reply = mClient.getReply();
+        }
+        return reply == FTPReply.COMMAND_OK;
+    }
+}
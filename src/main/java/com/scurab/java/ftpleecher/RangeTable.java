@@ -0,0 +1,81 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe table of ranges of one file separated to parts<br/>
+ * Ranges are ordered by {@link FTPContext#offset}, so order of merging is kept even if any range is split later.
+ */
+public class RangeTable {
+
+    private final List<FTPDownloadThread> mRanges = new ArrayList<FTPDownloadThread>();
+
+    /**
+     * part number for next range created by split
+     */
+    private int mNextPart = 0;
+
+    /**
+     * Add thread into table, keeps order by offset
+     *
+     * @param thread
+     * @param context context of thread
+     */
+    synchronized void add(FTPDownloadThread thread, FTPContext context) {
+        int i = mRanges.size();
+        while (i > 0 && mRanges.get(i - 1).getContext().offset > context.offset) {
+            i--;
+        }
+        mRanges.add(i, thread);
+        mNextPart = Math.max(mNextPart, context.part + 1);
+    }
+
+    /**
+     * Split range of victim, new range is placed right after victim
+     *
+     * @param victim
+     * @param minLength min length of both halves
+     * @return thread for new range or null if range can't be split
+     */
+    synchronized FTPDownloadThread split(FTPDownloadThread victim, long minLength) {
+        final int index = mRanges.indexOf(victim);
+        if (index < 0) {
+            return null;
+        }
+        FTPDownloadThread thread = victim.splitRange(minLength, mNextPart);
+        if (thread != null) {
+            mNextPart++;
+            mRanges.add(index + 1, thread);
+        }
+        return thread;
+    }
+
+    /**
+     * Get range by its order in file
+     *
+     * @param index
+     * @return
+     */
+    public synchronized FTPDownloadThread get(int index) {
+        return mRanges.get(index);
+    }
+
+    /**
+     * Get current count of ranges
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return mRanges.size();
+    }
+
+    /**
+     * Get copy of all ranges ordered by offset
+     *
+     * @return
+     */
+    public synchronized List<FTPDownloadThread> getRanges() {
+        return new ArrayList<FTPDownloadThread>(mRanges);
+    }
+}
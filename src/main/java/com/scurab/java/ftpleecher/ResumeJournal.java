@@ -0,0 +1,871 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of queue, see {@link FTPLeechMaster#setResumeJournal(ResumeJournal)}<br/>
+ * Journal contains tasks, parts, splits, committed offsets with optional checksum of part files and merged parts.
+ * Data of part are forced to disk before its offset is journaled, so resume doesn't depend on length of part file.
+ * Records are flushed and synced in batches by background thread, so crash can lose only last few commits,
+ * part is then resumed from older offset. Torn record at the end of file is cut away when journal is opened.
+ * Journal is compacted to live records when it grows over {@link #getCompactionRatio()} of its live size.
+ * Queue is rebuilt by {@link FTPLeechMaster#restore(ResumeJournal, FTPContext)} without touching server or local files.
+ */
+public class ResumeJournal {
+
+    /**
+     * Default interval of syncing in ms
+     */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    /**
+     * Default ratio of all and live records for compaction
+     */
+    public static final int DEFAULT_COMPACTION_RATIO = 4;
+
+    /**
+     * Checksum value for unknown checksum
+     */
+    public static final long NO_CHECKSUM = -1;
+
+    private static final int MAGIC = 0x464C4A31;//FLJ1
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Min count of records before compaction is considered
+     */
+    private static final int COMPACTION_MIN_RECORDS = 1024;
+
+    //region record types
+    private static final byte TASK = 1;
+    private static final byte PART = 2;
+    private static final byte SPLIT = 3;
+    private static final byte COMMIT = 4;
+    private static final byte TASK_DONE = 5;
+    private static final byte PART_DONE = 6;
+    //endregion
+
+    //region string tags
+    private static final byte STRING_NULL = 0;
+    private static final byte STRING_NEW = 1;
+    private static final byte STRING_REF = 2;
+    //endregion
+
+    private final File mFile;
+
+    private FileOutputStream mFileStream;
+
+    private FileChannel mChannel;
+
+    private DataOutputStream mOut;
+
+    /**
+     * Buffer for one record, it's reused for every record
+     */
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(256);
+
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Live tasks in order of creation
+     */
+    private final LinkedHashMap<Long, TaskState> mTasks = new LinkedHashMap<Long, TaskState>();
+
+    private final HashMap<Long, PartState> mParts = new HashMap<Long, PartState>();
+
+    private long mNextId = 1;
+
+    /**
+     * Strings already written into current file, see {@link #writeString(DataOutputStream, String)}
+     */
+    private HashMap<String, Integer> mStringIds = new HashMap<String, Integer>();
+
+    /**
+     * Strings read by replay, index is id of string
+     */
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+
+    /**
+     * Count of records in file
+     */
+    private int mRecords;
+
+    /**
+     * Flag that there are records which are not synced yet
+     */
+    private boolean mDirty;
+
+    private volatile long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+
+    private volatile int mCompactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    private Thread mSyncThread;
+
+    private boolean mClosed;
+
+    /**
+     * Open journal, existing records are read into memory
+     *
+     * @param file
+     * @throws IOException if file is not a journal
+     */
+    public ResumeJournal(File file) throws IOException {
+        mFile = file;
+        if (file.exists() && file.length() > 0) {
+            long valid = replay();
+            for (int i = 0; i < mStrings.size(); i++) {
+                mStringIds.put(mStrings.get(i), i);
+            }
+            mStrings.clear();
+            if (valid < file.length()) {
+                //torn write of last batch
+                System.err.println(String.format("Journal %s truncated from %s to %s", file.getAbsolutePath(), file.length(), valid));
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+            openOutput(false);
+        } else {
+            openOutput(true);
+        }
+        startSyncThread();
+    }
+
+    //region replay
+
+    /**
+     * Read all valid records, whole file is read at once and parsed in memory
+     *
+     * @return length of valid part of file
+     * @throws IOException
+     */
+    private long replay() throws IOException {
+        ByteBuffer data;
+        FileInputStream fis = new FileInputStream(mFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                //read everything
+            }
+            data.flip();
+        } finally {
+            fis.close();
+        }
+        if (data.remaining() < 4 || data.getInt() != MAGIC) {
+            throw new IOException("Invalid journal " + mFile.getAbsolutePath());
+        }
+        final byte[] array = data.array();
+        while (data.remaining() >= 4) {
+            final int start = data.position();
+            final int length = data.getInt();
+            if (length <= 0 || data.remaining() < length + 4) {
+                return start;
+            }
+            mCrc.reset();
+            mCrc.update(array, start + 4, length);
+            if ((int) mCrc.getValue() != data.getInt(start + 4 + length)) {
+                return start;
+            }
+            try {
+                apply(data);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Invalid journal record at " + start, e);
+            }
+            mRecords++;
+            data.position(start + 4 + length + 4);
+        }
+        return data.position();
+    }
+
+    private void apply(ByteBuffer in) throws IOException {
+        final byte type = in.get();
+        switch (type) {
+            case TASK: {
+                TaskState task = new TaskState(in.getLong(), in.get() != 0);
+                mTasks.put(task.id, task);
+                useId(task.id);
+                break;
+            }
+            case PART:
+                addPart(readPart(in));
+                break;
+            case SPLIT: {
+                PartState victim = mParts.get(in.getLong());
+                final long length = in.getLong();
+                PartState part = readPart(in);
+                if (victim != null) {
+                    victim.context.currentPieceLength = length;
+                }
+                addPart(part);
+                break;
+            }
+            case COMMIT: {
+                PartState part = mParts.get(in.getLong());
+                final long committed = in.getLong();
+                final long checksum = in.getLong();
+                if (part != null) {
+                    part.committed = committed;
+                    part.checksum = checksum;
+                }
+                break;
+            }
+            case TASK_DONE:
+                removeTask(in.getLong());
+                break;
+            case PART_DONE: {
+                PartState part = mParts.get(in.getLong());
+                if (part != null) {
+                    part.finished = true;
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private void addPart(PartState part) {
+        TaskState task = mTasks.get(part.taskId);
+        if (task != null) {
+            task.parts.add(part);
+            mParts.put(part.id, part);
+        }
+        useId(part.id);
+    }
+
+    private void useId(long id) {
+        mNextId = Math.max(mNextId, id + 1);
+    }
+
+    private void removeTask(long id) {
+        TaskState task = mTasks.remove(id);
+        if (task != null) {
+            for (PartState part : task.parts) {
+                mParts.remove(part.id);
+            }
+        }
+    }
+
+    //endregion replay
+
+    //region serialization
+
+    private void writePart(DataOutputStream out, PartState part) throws IOException {
+        final FTPContext c = part.context;
+        out.writeLong(part.taskId);
+        out.writeLong(part.id);
+        writeString(out, c.server);
+        out.writeInt(c.port);
+        writeString(out, c.username);
+        out.writeBoolean(c.ftps);
+        writeString(out, c.remoteFullPath);
+        writeString(out, c.outputDirectory);
+        writeString(out, c.fileName);
+        out.writeLong(c.groupId);
+        out.writeInt(c.part);
+        out.writeInt(c.parts);
+        out.writeLong(c.offset);
+        out.writeLong(c.currentPieceLength);
+        out.writeLong(c.fileSize);
+        out.writeBoolean(c.directPlacement);
+        out.writeBoolean(c.inPlaceMerge);
+    }
+
+    private PartState readPart(ByteBuffer in) throws IOException {
+        final long taskId = in.getLong();
+        final long id = in.getLong();
+        FTPContext c = new FTPContext();
+        c.server = readString(in);
+        c.port = in.getInt();
+        c.username = readString(in);
+        c.ftps = in.get() != 0;
+        c.remoteFullPath = readString(in);
+        c.outputDirectory = readString(in);
+        c.fileName = readString(in);
+        c.groupId = in.getLong();
+        c.part = in.getInt();
+        c.parts = in.getInt();
+        c.offset = in.getLong();
+        c.currentPieceLength = in.getLong();
+        c.fileSize = in.getLong();
+        c.directPlacement = in.get() != 0;
+        c.inPlaceMerge = in.get() != 0;
+        return new PartState(id, taskId, c);
+    }
+
+    /**
+     * Write string, every string is written only once per file and referenced by its index later
+     *
+     * @param out
+     * @param s
+     * @throws IOException
+     */
+    private void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeByte(STRING_NULL);
+            return;
+        }
+        Integer id = mStringIds.get(s);
+        if (id != null) {
+            out.writeByte(STRING_REF);
+            out.writeInt(id);
+        } else {
+            final byte[] bytes = s.getBytes(UTF8);
+            out.writeByte(STRING_NEW);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            mStringIds.put(s, mStringIds.size());
+        }
+    }
+
+    private String readString(ByteBuffer in) throws IOException {
+        final byte tag = in.get();
+        switch (tag) {
+            case STRING_NULL:
+                return null;
+            case STRING_NEW: {
+                final int length = in.getInt();
+                String s = new String(in.array(), in.position(), length, UTF8);
+                in.position(in.position() + length);
+                mStrings.add(s);
+                return s;
+            }
+            case STRING_REF:
+                return mStrings.get(in.getInt());
+            default:
+                throw new IOException("Unknown string tag " + tag);
+        }
+    }
+
+    //endregion serialization
+
+    //region writing
+
+    private void openOutput(boolean create) throws IOException {
+        mFileStream = new FileOutputStream(mFile, !create);
+        mChannel = mFileStream.getChannel();
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileStream, 64 * 1024));
+        if (create) {
+            mOut.writeInt(MAGIC);
+            mRecords = 0;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Start record in {@link #mRecordOut}
+     *
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    private DataOutputStream begin(byte type) throws IOException {
+        if (mClosed) {
+            throw new IOException("Journal is closed");
+        }
+        mRecord.reset();
+        mRecordOut.writeByte(type);
+        return mRecordOut;
+    }
+
+    /**
+     * Append record started by {@link #begin(byte)}, it's synced later by sync thread
+     *
+     * @throws IOException
+     */
+    private void end() throws IOException {
+        mRecordOut.flush();
+        final byte[] data = mRecord.toByteArray();
+        mCrc.reset();
+        mCrc.update(data, 0, data.length);
+        mOut.writeInt(data.length);
+        mOut.write(data);
+        mOut.writeInt((int) mCrc.getValue());
+        mRecords++;
+        mDirty = true;
+    }
+
+    /**
+     * Write all buffered records and force them to disk
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (!mDirty || mClosed) {
+            return;
+        }
+        mOut.flush();
+        mChannel.force(false);
+        mDirty = false;
+    }
+
+    /**
+     * Rewrite journal to live records only, file is replaced atomically
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        sync();
+        File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        DataOutputStream journal = mOut;
+        final int records = mRecords;
+        final HashMap<String, Integer> strings = mStringIds;
+        boolean written = false;
+        try {
+            //reuse record writing for temp file, it has its own strings
+            mOut = out;
+            mRecords = 0;
+            mStringIds = new HashMap<String, Integer>();
+            out.writeInt(MAGIC);
+            for (TaskState task : mTasks.values()) {
+                writeTask(task);
+                for (PartState part : task.parts) {
+                    writePart(begin(PART), part);
+                    end();
+                    if (part.committed > 0) {
+                        writeCommit(part);
+                    }
+                    if (part.finished) {
+                        writePartDone(part);
+                    }
+                }
+            }
+            out.flush();
+            fos.getChannel().force(false);
+            written = true;
+        } finally {
+            mOut = journal;
+            out.close();
+            if (!written) {
+                mRecords = records;
+                mStringIds = strings;
+            }
+        }
+        journal.close();
+        if (!tmp.renameTo(mFile) && !(mFile.delete() && tmp.renameTo(mFile))) {
+            openOutput(false);
+            mRecords = records;
+            mStringIds = strings;
+            throw new IOException("Unable to replace journal " + mFile.getAbsolutePath());
+        }
+        openOutput(false);
+        mDirty = false;
+    }
+
+    private int countLiveRecords() {
+        int result = mTasks.size();
+        for (PartState part : mParts.values()) {
+            result += 1 + (part.committed > 0 ? 1 : 0) + (part.finished ? 1 : 0);
+        }
+        return result;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (mRecords > COMPACTION_MIN_RECORDS && mRecords > mCompactionRatio * countLiveRecords()) {
+            compact();
+        }
+    }
+
+    private void startSyncThread() {
+        mSyncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(mSyncInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (ResumeJournal.this) {
+                        if (mClosed) {
+                            return;
+                        }
+                        try {
+                            sync();
+                            compactIfNeeded();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        });
+        mSyncThread.setName("ResumeJournal");
+        mSyncThread.setDaemon(true);
+        mSyncThread.start();
+    }
+
+    /**
+     * Sync and close journal, it can't be used anymore
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        sync();
+        mClosed = true;
+        mSyncThread.interrupt();
+        mOut.close();
+    }
+
+    //endregion writing
+
+    //region events
+
+    /**
+     * Journal new task, it's ignored if task is already journaled
+     *
+     * @param task
+     */
+    synchronized void onTaskAdded(DownloadTask task) {
+        if (task.getJournalId() > 0) {
+            return;
+        }
+        TaskState state = new TaskState(mNextId++, task.getDeleteAfterMeger());
+        task.setJournalId(state.id);
+        mTasks.put(state.id, state);
+        try {
+            writeTask(state);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeTask(TaskState task) throws IOException {
+        DataOutputStream out = begin(TASK);
+        out.writeLong(task.id);
+        out.writeBoolean(task.deleteAfterMerge);
+        end();
+    }
+
+    /**
+     * Journal new part of already journaled task, hedged duplicates are ignored
+     *
+     * @param thread
+     */
+    synchronized void onPartAdded(FTPDownloadThread thread) {
+        DownloadTask task = thread.getParentTask();
+        if (thread.getJournalId() > 0 || task == null || !mTasks.containsKey(task.getJournalId())) {
+            return;
+        }
+        PartState part = createPart(thread, task);
+        try {
+            writePart(begin(PART), part);
+            end();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Journal split of victim, shortened victim and new part are written as one synced record
+     *
+     * @param victim
+     * @param thread new part created from back half of victim
+     */
+    synchronized void onSplit(FTPDownloadThread victim, FTPDownloadThread thread) {
+        PartState victimState = mParts.get(victim.getJournalId());
+        DownloadTask task = thread.getParentTask();
+        if (victimState == null || task == null) {
+            return;
+        }
+        //length of victim is final now, it's taken under range lock of victim
+        final long length = thread.getContext().offset - victimState.context.offset;
+        victimState.context.currentPieceLength = length;
+        PartState part = createPart(thread, task);
+        try {
+            DataOutputStream out = begin(SPLIT);
+            out.writeLong(victimState.id);
+            out.writeLong(length);
+            writePart(out, part);
+            end();
+            //new part file must not be orphaned after crash
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private PartState createPart(FTPDownloadThread thread, DownloadTask task) {
+        FTPContext context = thread.getContext();
+        //password isn't journaled, so don't keep it here either
+        context.password = null;
+        PartState part = new PartState(mNextId++, task.getJournalId(), context);
+        thread.setJournalId(part.id);
+        mTasks.get(part.taskId).parts.add(part);
+        mParts.put(part.id, part);
+        return part;
+    }
+
+    /**
+     * Journal committed offset of part, data must be already forced to disk
+     *
+     * @param thread
+     * @param committed committed length of part
+     * @param checksum  CRC32 of committed data or {@link #NO_CHECKSUM}
+     */
+    synchronized void onCommit(FTPDownloadThread thread, long committed, long checksum) {
+        PartState part = mParts.get(thread.getJournalId());
+        if (part == null || (part.committed == committed && part.checksum == checksum)) {
+            return;
+        }
+        part.committed = committed;
+        part.checksum = checksum;
+        try {
+            writeCommit(part);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeCommit(PartState part) throws IOException {
+        DataOutputStream out = begin(COMMIT);
+        out.writeLong(part.id);
+        out.writeLong(part.committed);
+        out.writeLong(part.checksum);
+        end();
+    }
+
+    /**
+     * Journal finished part, merged data must be already forced to disk<br/>
+     * Journal is synced immediately, part file can be deleted after merge.
+     *
+     * @param thread
+     */
+    synchronized void onPartFinished(FTPDownloadThread thread) {
+        PartState part = mParts.get(thread.getJournalId());
+        if (part == null || part.finished) {
+            return;
+        }
+        part.finished = true;
+        try {
+            writePartDone(part);
+            //part file can be deleted right after this
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writePartDone(PartState part) throws IOException {
+        DataOutputStream out = begin(PART_DONE);
+        out.writeLong(part.id);
+        end();
+    }
+
+    /**
+     * Remove finished task from journal
+     *
+     * @param task
+     */
+    synchronized void onTaskFinished(DownloadTask task) {
+        if (!mTasks.containsKey(task.getJournalId())) {
+            return;
+        }
+        removeTask(task.getJournalId());
+        try {
+            DataOutputStream out = begin(TASK_DONE);
+            out.writeLong(task.getJournalId());
+            end();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //endregion events
+
+    /**
+     * Get journaled commit of part
+     *
+     * @param thread
+     * @return commit or null if part isn't journaled
+     */
+    synchronized Commit getCommit(FTPDownloadThread thread) {
+        PartState part = mParts.get(thread.getJournalId());
+        return part != null ? new Commit(part.committed, part.checksum) : null;
+    }
+
+    /**
+     * Create tasks for all unfinished journaled tasks<br/>
+     * Connection and settings are taken from template, server, paths and ranges of parts from journal.
+     *
+     * @param template context with password and settings
+     * @return
+     */
+    synchronized List<DownloadTask> createTasks(FTPContext template) {
+        List<DownloadTask> result = new ArrayList<DownloadTask>(mTasks.size());
+        for (TaskState task : mTasks.values()) {
+            if (task.isFinished()) {
+                //crash right before end of task, there is nothing to do
+                continue;
+            }
+            List<FTPDownloadThread> threads = new ArrayList<FTPDownloadThread>(task.parts.size());
+            for (PartState part : task.parts) {
+                FTPContext c = template.clone();
+                final FTPContext s = part.context;
+                c.server = s.server;
+                c.port = s.port;
+                c.username = s.username;
+                c.ftps = s.ftps;
+                c.remoteFullPath = s.remoteFullPath;
+                c.outputDirectory = s.outputDirectory;
+                c.fileName = s.fileName;
+                c.groupId = s.groupId;
+                c.part = s.part;
+                c.parts = s.parts;
+                c.offset = s.offset;
+                c.currentPieceLength = s.currentPieceLength;
+                c.fileSize = s.fileSize;
+                c.directPlacement = s.directPlacement;
+                c.inPlaceMerge = s.inPlaceMerge;
+                //everything what was downloaded is kept
+                c.resume = true;
+                c.localFile = null;
+                FTPDownloadThread thread = new FTPDownloadThread(c);
+                thread.setJournalId(part.id);
+                if (part.finished) {
+                    //already merged, data are in final file
+                    thread.setFtpState(FTPDownloadThread.State.Finished);
+                }
+                threads.add(thread);
+            }
+            DownloadTask dt = new DownloadTask(threads);
+            dt.setDeleteAfterMerge(task.deleteAfterMerge);
+            dt.setJournalId(task.id);
+            result.add(dt);
+        }
+        return result;
+    }
+
+    /**
+     * Get count of unfinished tasks
+     *
+     * @return
+     */
+    public synchronized int getTaskCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * Get count of parts of unfinished tasks
+     *
+     * @return
+     */
+    public synchronized int getPartCount() {
+        return mParts.size();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getSyncInterval() {
+        return mSyncInterval;
+    }
+
+    /**
+     * Set interval of syncing to disk, commits in last interval can be lost by crash
+     *
+     * @param syncInterval interval in ms
+     */
+    public void setSyncInterval(long syncInterval) {
+        mSyncInterval = Math.max(1, syncInterval);
+    }
+
+    public int getCompactionRatio() {
+        return mCompactionRatio;
+    }
+
+    /**
+     * Set ratio of all and live records, journal is compacted when it's exceeded
+     *
+     * @param compactionRatio
+     */
+    public void setCompactionRatio(int compactionRatio) {
+        mCompactionRatio = Math.max(2, compactionRatio);
+    }
+
+    /**
+     * Committed state of part
+     */
+    static class Commit {
+        final long committed;
+        final long checksum;
+
+        Commit(long committed, long checksum) {
+            this.committed = committed;
+            this.checksum = checksum;
+        }
+    }
+
+    private static class TaskState {
+        final long id;
+        final boolean deleteAfterMerge;
+        final List<PartState> parts = new ArrayList<PartState>();
+
+        TaskState(long id, boolean deleteAfterMerge) {
+            this.id = id;
+            this.deleteAfterMerge = deleteAfterMerge;
+        }
+
+        boolean isFinished() {
+            for (PartState part : parts) {
+                if (!part.finished) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class PartState {
+        final long id;
+        final long taskId;
+        /**
+         * range and location of part, there is no password
+         */
+        final FTPContext context;
+        long committed;
+        long checksum = NO_CHECKSUM;
+        /**
+         * part is merged into final file
+         */
+        boolean finished;
+
+        PartState(long id, long taskId, FTPContext context) {
+            this.id = id;
+            this.taskId = taskId;
+            this.context = context;
+        }
+    }
+}
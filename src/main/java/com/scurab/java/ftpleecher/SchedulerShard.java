@@ -0,0 +1,268 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Part of {@link FTPLeechMaster} scheduler for threads of one server<br/>
+ * Every shard has its own lock and connection limit, global counters are shared by all shards.
+ */
+class SchedulerShard {
+
+    /**
+     * Count of accepted sessions in row at reduced limit to raise limit again by one
+     */
+    static final int RECOVER_AFTER = 5;
+
+    private final ServerKey mKey;
+
+    /**
+     * Threads in {@link FTPDownloadThread.State#Created} state waiting for start
+     */
+    private final ArrayDeque<FTPDownloadThread> mReady = new ArrayDeque<FTPDownloadThread>();
+
+    /**
+     * Threads in {@link FTPDownloadThread.State#Downloading} state, candidates for work stealing
+     */
+    private final LinkedHashSet<FTPDownloadThread> mActive = new LinkedHashSet<FTPDownloadThread>();
+
+    /**
+     * Count of threads of this shard in running state
+     */
+    private int mRunning;
+
+    /**
+     * Count of running threads of this shard without session, they wait for retry or for user
+     */
+    private int mWaiting;
+
+    /**
+     * Max count of running threads, 0 means only global limit
+     */
+    private volatile int mLimit;
+
+    /**
+     * Limit set by user, lowered {@link #mLimit} is raised back up to this value, 0 means no limit
+     */
+    private int mConfiguredLimit;
+
+    /**
+     * Incremented on every lowering of limit, refusals of attempts started before are ignored
+     */
+    private int mEpoch;
+
+    /**
+     * Count of accepted sessions since last change of limit
+     */
+    private int mSuccesses;
+
+    /**
+     * Count of threads per state of all shards, index is {@link FTPDownloadThread.State#ordinal()}
+     */
+    private final AtomicInteger[] mStateCounters;
+
+    /**
+     * Count of running threads of all shards
+     */
+    private final AtomicInteger mGlobalRunning;
+
+    /**
+     * Count of ready threads of all shards
+     */
+    private final AtomicInteger mGlobalReady;
+
+    /**
+     * Count of downloading threads of all shards with work stealing enabled, see {@link FTPDownloadThread#isStealingEnabled()}
+     */
+    private final AtomicInteger mGlobalStealable;
+
+    SchedulerShard(ServerKey key, AtomicInteger[] stateCounters, AtomicInteger globalRunning, AtomicInteger globalReady,
+                   AtomicInteger globalStealable) {
+        mKey = key;
+        mStateCounters = stateCounters;
+        mGlobalRunning = globalRunning;
+        mGlobalReady = globalReady;
+        mGlobalStealable = globalStealable;
+    }
+
+    /**
+     * Update counters for new state of thread
+     *
+     * @param thread
+     * @param state
+     * @return true if there is any change for scheduler, free slot or new ready thread
+     */
+    synchronized boolean onTransition(FTPDownloadThread thread, FTPDownloadThread.State state) {
+        FTPDownloadThread.State old = thread.getSchedulerState();
+        if (old == state) {
+            return false;
+        }
+        thread.setSchedulerState(state);
+        if (old != null) {
+            mStateCounters[old.ordinal()].decrementAndGet();
+        }
+        mStateCounters[state.ordinal()].incrementAndGet();
+        if (state == FTPDownloadThread.State.Downloading) {
+            mActive.add(thread);
+            if (thread.isStealingEnabled()) {
+                mGlobalStealable.incrementAndGet();
+            }
+        } else if (old == FTPDownloadThread.State.Downloading) {
+            mActive.remove(thread);
+            if (thread.isStealingEnabled()) {
+                mGlobalStealable.decrementAndGet();
+            }
+        }
+
+        boolean changed = false;
+        if (state == FTPDownloadThread.State.Connecting) {
+            thread.setShardEpoch(mEpoch);
+        } else if (state == FTPDownloadThread.State.Connected) {
+            changed = onAccepted();
+        }
+        if (isWaiting(old) != isWaiting(state)) {
+            mWaiting += isWaiting(state) ? 1 : -1;
+        }
+        final boolean wasRunning = isRunning(old);
+        if (wasRunning != isRunning(state)) {
+            changed |= wasRunning;
+            mRunning += wasRunning ? -1 : 1;
+            mGlobalRunning.addAndGet(wasRunning ? -1 : 1);
+        }
+        if (state == FTPDownloadThread.State.Created) {
+            mReady.add(thread);
+            mGlobalReady.incrementAndGet();
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Take next ready thread and reserve slot for it
+     *
+     * @return thread or null if there is no ready thread or shard is full
+     */
+    synchronized FTPDownloadThread poll() {
+        while (!mReady.isEmpty() && hasFreeSlot()) {
+            FTPDownloadThread thread = mReady.poll();
+            mGlobalReady.decrementAndGet();
+            if (thread.getSchedulerState() != FTPDownloadThread.State.Created) {
+                //already restarted by someone else
+                continue;
+            }
+            //take the slot immediately, state change from thread will come later
+            onTransition(thread, FTPDownloadThread.State.Started);
+            return thread;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if shard limit allows to start another thread
+     *
+     * @return
+     */
+    synchronized boolean hasFreeSlot() {
+        final int limit = mLimit;
+        return limit <= 0 || mRunning < limit;
+    }
+
+    /**
+     * Get copy of downloading threads
+     *
+     * @return
+     */
+    synchronized List<FTPDownloadThread> getActive() {
+        return new ArrayList<FTPDownloadThread>(mActive);
+    }
+
+    synchronized int getRunning() {
+        return mRunning;
+    }
+
+    synchronized int getReady() {
+        return mReady.size();
+    }
+
+    /**
+     * Get count of running threads which have or are opening session
+     *
+     * @return
+     */
+    private int getSessions() {
+        return mRunning - mWaiting;
+    }
+
+    /**
+     * Lower limit after refused connection<br/>
+     * Refusal takes one connection from current limit or from count of sessions if there is no limit.
+     * Refusals of attempts started before last lowering are ignored, they are response to the same overload.
+     *
+     * @param thread refused thread
+     * @return new limit
+     */
+    synchronized int onRefusal(FTPDownloadThread thread) {
+        if (thread.getShardEpoch() != mEpoch) {
+            return mLimit;
+        }
+        final int current = mLimit > 0 ? Math.min(mLimit, getSessions()) : getSessions();
+        mLimit = Math.max(1, current - 1);
+        mEpoch++;
+        mSuccesses = 0;
+        return mLimit;
+    }
+
+    /**
+     * Raise lowered limit by one after {@link #RECOVER_AFTER} accepted sessions in row at the limit
+     *
+     * @return true if limit was raised
+     */
+    private boolean onAccepted() {
+        final int limit = mLimit;
+        final boolean reduced = limit > 0 && (mConfiguredLimit == 0 || limit < mConfiguredLimit);
+        if (!reduced || getSessions() < limit) {
+            //limit is not the bottleneck, there is nothing to verify
+            return false;
+        }
+        if (++mSuccesses < RECOVER_AFTER) {
+            return false;
+        }
+        mSuccesses = 0;
+        mLimit = limit + 1;
+        return true;
+    }
+
+    int getLimit() {
+        return mLimit;
+    }
+
+    synchronized void setLimit(int limit) {
+        mLimit = Math.max(0, limit);
+        mConfiguredLimit = mLimit;
+        mSuccesses = 0;
+    }
+
+    ServerKey getKey() {
+        return mKey;
+    }
+
+    private static boolean isWaiting(FTPDownloadThread.State state) {
+        return state == FTPDownloadThread.State.Error ||
+                state == FTPDownloadThread.State.WaitingForRetry ||
+                state == FTPDownloadThread.State.Paused;
+    }
+
+    static boolean isRunning(FTPDownloadThread.State state) {
+        //Started, Connecting, Connected, Downloading, Error, WaitingForRetry, Paused, ;
+        return  state == FTPDownloadThread.State.Started ||
+                state == FTPDownloadThread.State.Connecting ||
+                state == FTPDownloadThread.State.Connected ||
+                state == FTPDownloadThread.State.Downloading ||
+                state == FTPDownloadThread.State.Error ||
+                state == FTPDownloadThread.State.WaitingForRetry ||
+                state == FTPDownloadThread.State.Paused;
+    }
+}
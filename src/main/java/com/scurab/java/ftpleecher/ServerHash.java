@@ -0,0 +1,141 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash of remote file computed by server<br/>
+ * HASH (draft-bryan-ftpext-hash) is preferred, ranges are requested by RANG before it.
+ * Legacy XCRC, XMD5, XSHA1 and XSHA256 are used otherwise, range is passed as start and end position.
+ * Supported commands are found by FEAT once per server.
+ */
+class ServerHash {
+
+    private static final String FEATURE_HASH = "HASH";
+
+    private static final String FEATURE_RANG = "RANG";
+
+    private static final int RANG_OK = 350;
+
+    private static final int HASH_OK = 213;
+
+    private static final ConcurrentHashMap<ServerKey, Support> SUPPORT = new ConcurrentHashMap<ServerKey, Support>();
+
+    /**
+     * Get hash of range of remote file
+     *
+     * @param context   context of file, {@link FTPContext#remoteFullPath} and {@link FTPContext#fileSize} are used
+     * @param fc        connected client
+     * @param algorithm
+     * @param offset    start of range
+     * @param length    length of range
+     * @return lower case hex hash or null if server can't compute it
+     * @throws IOException
+     */
+    static String get(FTPContext context, FTPClient fc, HashAlgorithm algorithm, long offset, long length) throws IOException {
+        final Support support = getSupport(context, fc);
+        final String path = context.remoteFullPath;
+        final boolean whole = offset == 0 && length == context.fileSize;
+        String result = null;
+        if (support.hash.contains(algorithm.getHashName()) && (whole || support.rang)) {
+            result = hash(fc, algorithm, path, whole ? -1 : offset, length);
+        }
+        if (result == null && support.commands.contains(algorithm.getCommand())) {
+            String args = "\"" + path + "\"" + (whole ? "" : " " + offset + " " + (offset + length));
+            if (FTPReply.isPositiveCompletion(fc.sendCommand(algorithm.getCommand(), args))) {
+                result = parse(fc.getReplyString(), algorithm);
+            }
+        }
+        return result;
+    }
+
+    private static String hash(FTPClient fc, HashAlgorithm algorithm, String path, long offset, long length) throws IOException {
+        //algorithm is selected per session, pooled session can have any
+        if (fc.sendCommand("OPTS", FEATURE_HASH + " " + algorithm.getHashName()) != FTPReply.COMMAND_OK) {
+            return null;
+        }
+        final boolean ranged = offset >= 0;
+        if (ranged && fc.sendCommand(FEATURE_RANG, offset + " " + (offset + length - 1)) != RANG_OK) {
+            return null;
+        }
+        if (fc.sendCommand(FEATURE_HASH, path) == HASH_OK) {
+            return parse(fc.getReplyString(), algorithm);
+        }
+        if (ranged) {
+            //range would be used by next RETR, reset it
+            fc.sendCommand(FEATURE_RANG, "1 0");
+        }
+        return null;
+    }
+
+    /**
+     * Find hash in reply, it's first hex token after reply code<br/>
+     * "213 SHA-256 0-49 169cd222... file" or "250 B98F8D1F"
+     *
+     * @param reply
+     * @param algorithm
+     * @return lower case hex hash or null
+     */
+    static String parse(String reply, HashAlgorithm algorithm) {
+        final String[] tokens = reply.trim().split("\\s+");
+        final int hexLength = algorithm.getHexLength();
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            //leading zeros of CRC can be missing
+            final boolean crc = algorithm.isCombinable();
+            if (isHex(token) && (token.length() == hexLength || crc && token.length() < hexLength)) {
+                while (token.length() < hexLength) {
+                    token = "0" + token;
+                }
+                return token.toLowerCase(Locale.US);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return s.length() > 0;
+    }
+
+    private static Support getSupport(FTPContext context, FTPClient fc) throws IOException {
+        final ServerKey key = ServerKey.of(context);
+        Support support = SUPPORT.get(key);
+        if (support == null) {
+            support = new Support();
+            String[] values = fc.featureValues(FEATURE_HASH);
+            if (values != null) {
+                //"SHA-1;SHA-256*;MD5", * marks currently selected one
+                for (String value : values) {
+                    for (String name : value.split(";")) {
+                        support.hash.add(name.replace("*", "").trim().toUpperCase(Locale.US));
+                    }
+                }
+            }
+            support.rang = fc.hasFeature(FEATURE_RANG);
+            for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+                if (algorithm.getCommand() != null && fc.hasFeature(algorithm.getCommand())) {
+                    support.commands.add(algorithm.getCommand());
+                }
+            }
+            SUPPORT.put(key, support);
+        }
+        return support;
+    }
+
+    private static class Support {
+        final Set<String> hash = new HashSet<String>();
+        final Set<String> commands = new HashSet<String>();
+        boolean rang;
+    }
+}
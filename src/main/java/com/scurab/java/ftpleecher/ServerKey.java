@@ -0,0 +1,70 @@
+package com.scurab.java.ftpleecher;
+
+/**
+ * Identity of ftp server account, used as key for everything shared per server
+ */
+public final class ServerKey {
+
+    private final String mServer;
+
+    private final int mPort;
+
+    private final String mUsername;
+
+    private final boolean mFtps;
+
+    public ServerKey(String server, int port, String username, boolean ftps) {
+        mServer = server;
+        mPort = port;
+        mUsername = username;
+        mFtps = ftps;
+    }
+
+    public static ServerKey of(FTPContext context) {
+        return new ServerKey(context.server, context.port, context.username, context.ftps);
+    }
+
+    public String getServer() {
+        return mServer;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public String getUsername() {
+        return mUsername;
+    }
+
+    public boolean isFtps() {
+        return mFtps;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServerKey)) {
+            return false;
+        }
+        ServerKey k = (ServerKey) o;
+        return mPort == k.mPort && mFtps == k.mFtps
+                && (mServer == null ? k.mServer == null : mServer.equals(k.mServer))
+                && (mUsername == null ? k.mUsername == null : mUsername.equals(k.mUsername));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mServer != null ? mServer.hashCode() : 0;
+        result = 31 * result + mPort;
+        result = 31 * result + (mUsername != null ? mUsername.hashCode() : 0);
+        result = 31 * result + (mFtps ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s://%s@%s:%s/", mFtps ? "ftps" : "ftp", mUsername, mServer, mPort);
+    }
+}
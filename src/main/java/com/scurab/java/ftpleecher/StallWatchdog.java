@@ -0,0 +1,287 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional watchdog of downloading parts, see {@link FTPLeechMaster#setStallWatchdog(StallWatchdog)}<br/>
+ * Throughput of every part is sampled and compared with median of its peers,
+ * last known median is used if there are no peers anymore.
+ * Part staying below the floor for whole grace period is preempted and put back to queue,
+ * it's resumed later from committed offset on new connection.
+ */
+public class StallWatchdog {
+
+    /**
+     * Reason of preemption
+     */
+    public enum Reason {
+        /**
+         * Throughput is below {@link #getFloorRatio()} of median of other parts
+         */
+        SlowerThanPeers,
+        /**
+         * Nothing has been downloaded for whole grace period
+         */
+        NoProgress
+    }
+
+    /**
+     * Default sampling interval in ms
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Default grace period in ms
+     */
+    public static final long DEFAULT_GRACE_PERIOD = 10000;
+
+    /**
+     * Default floor relative to median
+     */
+    public static final double DEFAULT_FLOOR_RATIO = 0.1;
+
+    private volatile double mFloorRatio;
+
+    private volatile long mGracePeriod;
+
+    private volatile long mInterval = DEFAULT_INTERVAL;
+
+    private long mLastCheck;
+
+    /**
+     * Last known median of throughput, used when there is only one downloading part
+     */
+    private double mReferenceSpeed;
+
+    /**
+     * Samples of currently watched parts
+     */
+    private final HashMap<FTPDownloadThread, Sample> mSamples = new HashMap<FTPDownloadThread, Sample>();
+
+    /**
+     * Count of preemptions, index is {@link Reason#ordinal()}
+     */
+    private final AtomicInteger[] mPreemptions;
+
+    public StallWatchdog() {
+        this(DEFAULT_FLOOR_RATIO, DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * @param floorRatio  part is slow if its throughput is below floorRatio * median of peers
+     * @param gracePeriod time in ms how long part can be slow before preemption
+     */
+    public StallWatchdog(double floorRatio, long gracePeriod) {
+        if (floorRatio < 0 || floorRatio >= 1) {
+            throw new IllegalArgumentException("Invalid floorRatio:" + floorRatio);
+        }
+        mFloorRatio = floorRatio;
+        mGracePeriod = gracePeriod;
+        Reason[] reasons = Reason.values();
+        mPreemptions = new AtomicInteger[reasons.length];
+        for (int i = 0; i < reasons.length; i++) {
+            mPreemptions[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Sample downloading parts and find stalled ones<br/>
+     * Sampling is done at most once per interval, so it can be called any time scheduler wakes up.
+     *
+     * @param active downloading parts
+     * @param now    current time in ms
+     * @return stalled parts with reason of preemption, never null
+     */
+    synchronized List<Stall> check(Collection<FTPDownloadThread> active, long now) {
+        if (now - mLastCheck < mInterval) {
+            return new ArrayList<Stall>();
+        }
+        mLastCheck = now;
+
+        //forget parts which are not downloading anymore
+        Iterator<FTPDownloadThread> it = mSamples.keySet().iterator();
+        while (it.hasNext()) {
+            if (!active.contains(it.next())) {
+                it.remove();
+            }
+        }
+
+        List<Sample> measured = new ArrayList<Sample>();
+        for (FTPDownloadThread t : active) {
+            if (t.isHedge()) {
+                //hedge is already the cure
+                continue;
+            }
+            Sample s = mSamples.get(t);
+            final long downloaded = t.getDownloaded();
+            if (s == null) {
+                s = new Sample(t, downloaded, now);
+                mSamples.put(t, s);
+                continue;
+            }
+            s.update(downloaded, now);
+            measured.add(s);
+        }
+
+        if (measured.size() > 1) {
+            mReferenceSpeed = median(measured);
+        }
+        final double floor = mReferenceSpeed * mFloorRatio;
+        List<Stall> result = new ArrayList<Stall>();
+        for (Sample s : measured) {
+            final boolean stalled = s.speed == 0 || s.speed < floor;
+            if (!stalled) {
+                s.slowSince = 0;
+                continue;
+            }
+            if (s.slowSince == 0) {
+                s.slowSince = now;
+                s.slowSinceDownloaded = s.downloaded;
+            } else if (now - s.slowSince >= mGracePeriod) {
+                Reason reason = s.downloaded == s.slowSinceDownloaded ? Reason.NoProgress : Reason.SlowerThanPeers;
+                result.add(new Stall(s.thread, reason, s.speed, floor));
+                mSamples.remove(s.thread);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count preemption of stalled part
+     *
+     * @param stall
+     */
+    void onPreempted(Stall stall) {
+        mPreemptions[stall.reason.ordinal()].incrementAndGet();
+    }
+
+    private static double median(List<Sample> samples) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        double[] speeds = new double[samples.size()];
+        for (int i = 0; i < speeds.length; i++) {
+            speeds[i] = samples.get(i).speed;
+        }
+        Arrays.sort(speeds);
+        final int mid = speeds.length / 2;
+        return speeds.length % 2 == 1 ? speeds[mid] : (speeds[mid - 1] + speeds[mid]) / 2;
+    }
+
+    /**
+     * Get count of all preemptions
+     *
+     * @return
+     */
+    public int getPreemptions() {
+        int result = 0;
+        for (AtomicInteger i : mPreemptions) {
+            result += i.get();
+        }
+        return result;
+    }
+
+    /**
+     * Get count of preemptions for particular reason
+     *
+     * @param reason
+     * @return
+     */
+    public int getPreemptions(Reason reason) {
+        return mPreemptions[reason.ordinal()].get();
+    }
+
+    public double getFloorRatio() {
+        return mFloorRatio;
+    }
+
+    public void setFloorRatio(double floorRatio) {
+        if (floorRatio < 0 || floorRatio >= 1) {
+            throw new IllegalArgumentException("Invalid floorRatio:" + floorRatio);
+        }
+        mFloorRatio = floorRatio;
+    }
+
+    public long getGracePeriod() {
+        return mGracePeriod;
+    }
+
+    public void setGracePeriod(long gracePeriod) {
+        mGracePeriod = gracePeriod;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Throughput sample of one part
+     */
+    private static class Sample {
+        final FTPDownloadThread thread;
+        long downloaded;
+        long time;
+        /**
+         * bytes per second in last interval
+         */
+        double speed;
+        /**
+         * time when part started to be slow, 0 if it isn't slow
+         */
+        long slowSince;
+        long slowSinceDownloaded;
+
+        Sample(FTPDownloadThread thread, long downloaded, long time) {
+            this.thread = thread;
+            this.downloaded = downloaded;
+            this.time = time;
+        }
+
+        void update(long downloaded, long time) {
+            final long dt = time - this.time;
+            if (dt > 0) {
+                speed = Math.max(0, downloaded - this.downloaded) * 1000d / dt;
+            }
+            this.downloaded = downloaded;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Stalled part found by {@link #check(Collection, long)}
+     */
+    public static class Stall {
+        public final FTPDownloadThread thread;
+        public final Reason reason;
+        /**
+         * throughput of part in bytes per second
+         */
+        public final double speed;
+        /**
+         * floor in bytes per second
+         */
+        public final double floor;
+
+        Stall(FTPDownloadThread thread, Reason reason, double speed, double floor) {
+            this.thread = thread;
+            this.reason = reason;
+            this.speed = speed;
+            this.floor = floor;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s speed:%.0f floor:%.0f", reason, speed, floor);
+        }
+    }
+}
@@ -11,6 +11,6 @@ public class StateHelper {
      * @param state
      */
     public static boolean isActive(FTPDownloadThread.State state){
-        return !(state == State.Downloaded || state == State.Finished || state == State.Merging || state == State.Started || state == State.Created);
+        return !(state == State.Downloaded || state == State.Finished || state == State.Merging || state == State.Started || state == State.Created || state == State.Cancelled);
     }
 }
@@ -0,0 +1,71 @@
+package com.scurab.java.ftpleecher;
+
+/**
+ * Token bucket for bandwidth shaping<br/>
+ * Bucket can go to debt, so caller doesn't wait under lock, it just sleeps for returned time.
+ */
+public class TokenBucket {
+
+    private static final double NANOS = 1000000000d;
+
+    /**
+     * bytes per second, 0 means unlimited
+     */
+    private long mRate;
+
+    /**
+     * max count of tokens
+     */
+    private long mBurst;
+
+    private double mTokens;
+
+    private long mLastRefill;
+
+    /**
+     * @param rate  bytes per second, 0 means unlimited
+     * @param burst max count of bytes which can be taken at once, 0 for rate
+     */
+    public TokenBucket(long rate, long burst) {
+        setRate(rate, burst);
+    }
+
+    /**
+     * Take bytes from bucket
+     *
+     * @param bytes already transferred bytes
+     * @param now   current time in ns
+     * @return time in ns how long caller should wait
+     */
+    public synchronized long consume(long bytes, long now) {
+        if (mRate <= 0) {
+            return 0;
+        }
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / NANOS);
+        mLastRefill = now;
+        mTokens -= bytes;
+        return mTokens >= 0 ? 0 : (long) (-mTokens * NANOS / mRate);
+    }
+
+    /**
+     * Change rate, can be called anytime
+     *
+     * @param rate  bytes per second, 0 means unlimited
+     * @param burst max count of bytes which can be taken at once, 0 for rate
+     */
+    public synchronized void setRate(long rate, long burst) {
+        mRate = Math.max(0, rate);
+        mBurst = burst > 0 ? burst : mRate;
+        //don't give more than burst after change, keep debt
+        mTokens = Math.min(mTokens, mBurst);
+        mLastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    public synchronized boolean isUnlimited() {
+        return mRate <= 0;
+    }
+}
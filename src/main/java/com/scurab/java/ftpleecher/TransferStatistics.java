@@ -0,0 +1,214 @@
+package com.scurab.java.ftpleecher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of transferred and remaining data, global, per server and per {@link DownloadTask}<br/>
+ * Download threads push changes into striped counters while copying, so snapshot is O(1)
+ * and doesn't touch threads at all. Speed is sampled from transferred bytes, at most once per {@link #SAMPLE_INTERVAL}.
+ */
+public class TransferStatistics {
+
+    /**
+     * Min time between two samples of speed in ms
+     */
+    static final long SAMPLE_INTERVAL = 1000;
+
+    private final Counter mGlobal = new Counter();
+
+    private final ConcurrentHashMap<ServerKey, Counter> mServers = new ConcurrentHashMap<ServerKey, Counter>();
+
+    private final ConcurrentHashMap<DownloadTask, Counter> mTasks = new ConcurrentHashMap<DownloadTask, Counter>();
+
+    /**
+     * Create slot for one thread, counters are resolved once, so there is no lookup by updates
+     *
+     * @param server
+     * @param task   can be null
+     * @return
+     */
+    Slot createSlot(ServerKey server, DownloadTask task) {
+        return new Slot(mGlobal, getCounter(mServers, server), task != null ? getCounter(mTasks, task) : null);
+    }
+
+    private static <K> Counter getCounter(ConcurrentHashMap<K, Counter> counters, K key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get totals of all threads
+     *
+     * @return
+     */
+    public FTPLeechMaster.Statistics getGlobal() {
+        return mGlobal.snapshot();
+    }
+
+    /**
+     * Get totals of one server
+     *
+     * @param server
+     * @return totals or null if there is no thread for this server
+     */
+    public FTPLeechMaster.Statistics getServer(ServerKey server) {
+        Counter counter = mServers.get(server);
+        return counter != null ? counter.snapshot() : null;
+    }
+
+    /**
+     * Get totals of one task
+     *
+     * @param task
+     * @return totals or null if task isn't enqueued
+     */
+    public FTPLeechMaster.Statistics getTask(DownloadTask task) {
+        Counter counter = mTasks.get(task);
+        return counter != null ? counter.snapshot() : null;
+    }
+
+    /**
+     * Get totals of all servers
+     *
+     * @return
+     */
+    public Map<ServerKey, FTPLeechMaster.Statistics> getServers() {
+        return snapshot(mServers);
+    }
+
+    /**
+     * Get totals of all tasks
+     *
+     * @return
+     */
+    public Map<DownloadTask, FTPLeechMaster.Statistics> getTasks() {
+        return snapshot(mTasks);
+    }
+
+    private static <K> Map<K, FTPLeechMaster.Statistics> snapshot(ConcurrentHashMap<K, Counter> counters) {
+        Map<K, FTPLeechMaster.Statistics> result = new HashMap<K, FTPLeechMaster.Statistics>();
+        for (Map.Entry<K, Counter> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Forget totals of task, global and server totals are not affected
+     *
+     * @param task
+     */
+    public void removeTask(DownloadTask task) {
+        mTasks.remove(task);
+    }
+
+    /**
+     * Counters of one level
+     */
+    private static class Counter {
+        /**
+         * Transferred bytes incl. hedged duplicates
+         */
+        final LongAdder bytes = new LongAdder();
+        final LongAdder length = new LongAdder();
+        final LongAdder remaining = new LongAdder();
+
+        private long mSampleTime = System.currentTimeMillis();
+        private long mSampleBytes;
+        private long mSpeed;
+
+        FTPLeechMaster.Statistics snapshot() {
+            FTPLeechMaster.Statistics s = new FTPLeechMaster.Statistics();
+            s.length = length.sum();
+            s.remaining = Math.max(0, remaining.sum());
+            s.transferred = bytes.sum();
+            s.speed = sampleSpeed(s.transferred);
+            s.currentSpeed = (int) Math.min(Integer.MAX_VALUE, s.speed);
+            s.eta = s.speed == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, s.remaining / s.speed);
+            return s;
+        }
+
+        private synchronized long sampleSpeed(long transferred) {
+            final long now = System.currentTimeMillis();
+            final long elapsed = now - mSampleTime;
+            if (elapsed >= SAMPLE_INTERVAL) {
+                mSpeed = (transferred - mSampleBytes) * 1000 / elapsed;
+                mSampleBytes = transferred;
+                mSampleTime = now;
+            }
+            return mSpeed;
+        }
+    }
+
+    /**
+     * Contribution of one thread to counters<br/>
+     * Thread reports its current length and remaining length, only difference to last report is added.
+     * It's not thread safe, it must be called under lock of thread.
+     */
+    static class Slot {
+        private final Counter mGlobal;
+        private final Counter mServer;
+        private final Counter mTask;
+
+        private long mLength;
+        private long mRemaining;
+
+        private Slot(Counter global, Counter server, Counter task) {
+            mGlobal = global;
+            mServer = server;
+            mTask = task;
+        }
+
+        /**
+         * Add transferred data
+         *
+         * @param bytes
+         */
+        void onBytes(long bytes) {
+            mGlobal.bytes.add(bytes);
+            mServer.bytes.add(bytes);
+            if (mTask != null) {
+                mTask.bytes.add(bytes);
+            }
+        }
+
+        /**
+         * Report current state of thread
+         *
+         * @param length    length of piece, 0 if it's not counted
+         * @param remaining not downloaded length of piece
+         */
+        void report(long length, long remaining) {
+            add(length - mLength, remaining - mRemaining);
+            mLength = length;
+            mRemaining = remaining;
+        }
+
+        private void add(long length, long remaining) {
+            if (length != 0) {
+                mGlobal.length.add(length);
+                mServer.length.add(length);
+                if (mTask != null) {
+                    mTask.length.add(length);
+                }
+            }
+            if (remaining != 0) {
+                mGlobal.remaining.add(remaining);
+                mServer.remaining.add(remaining);
+                if (mTask != null) {
+                    mTask.remaining.add(remaining);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.scurab.java.ftpleecher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timeline of spans of download parts, one instance for whole process, see {@link FTPFactory#getTracer()}<br/>
+ * Every part has own track, spans are its states (see {@link FTPDownloadThread#setFtpState(FTPDownloadThread.State)})
+ * and sub-phases like connect, login or first byte. Spans are kept in bounded ring buffer, the oldest are overwritten.
+ * It's disabled by default, disabled tracer costs one volatile read per span and no buffer is allocated.
+ * Timeline is exported as Chrome trace JSON, it can be opened by chrome://tracing or Perfetto.
+ */
+public class TransferTracer {
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * Track of thread which isn't attached to any part, ig. crawler
+     */
+    private static final long OTHER_PID = 0;
+
+    private volatile boolean mEnabled;
+
+    /**
+     * Ring of spans, it's allocated when tracer is enabled first time
+     */
+    private volatile AtomicReferenceArray<Span> mBuffer;
+
+    private int mCapacity = DEFAULT_CAPACITY;
+
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * Zero of timeline
+     */
+    private final long mOrigin = System.nanoTime();
+
+    private final ThreadLocal<Track> mCurrentTrack = new ThreadLocal<Track>();
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && mBuffer == null) {
+            mBuffer = new AtomicReferenceArray<Span>(mCapacity);
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * Set max count of kept spans, current spans are dropped
+     *
+     * @param capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive:" + capacity);
+        }
+        mCapacity = capacity;
+        if (mBuffer != null) {
+            mBuffer = new AtomicReferenceArray<Span>(capacity);
+        }
+        mNext.set(0);
+    }
+
+    public synchronized void clear() {
+        if (mBuffer != null) {
+            mBuffer = new AtomicReferenceArray<Span>(mCapacity);
+        }
+        mNext.set(0);
+    }
+
+    //region recording
+
+    /**
+     * Set track for spans recorded by {@link #end(String, long)} in current thread
+     *
+     * @param track track or null
+     */
+    void attach(Track track) {
+        if (track == null) {
+            mCurrentTrack.remove();
+        } else {
+            mCurrentTrack.set(track);
+        }
+    }
+
+    /**
+     * Start of span
+     *
+     * @return start time, 0 if tracer is disabled
+     */
+    long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record span started by {@link #begin()} into track of current thread
+     *
+     * @param name
+     * @param start value of {@link #begin()} or of {@link System#nanoTime()}
+     */
+    void end(String name, long start) {
+        if (start == 0 || !mEnabled) {
+            return;
+        }
+        Track track = mCurrentTrack.get();
+        if (track == null) {
+            final Thread thread = Thread.currentThread();
+            track = new Track(OTHER_PID, thread.getId(), "Other", thread.getName());
+        }
+        record(track, name, "phase", start, System.nanoTime() - start);
+    }
+
+    /**
+     * Record span
+     *
+     * @param track
+     * @param name
+     * @param category
+     * @param start    start in ns of {@link System#nanoTime()}
+     * @param duration duration in ns
+     */
+    void record(Track track, String name, String category, long start, long duration) {
+        if (!mEnabled) {
+            return;
+        }
+        //buffer is set before tracer is enabled
+        final AtomicReferenceArray<Span> buffer = mBuffer;
+        final long index = mNext.getAndIncrement();
+        buffer.set((int) (index % buffer.length()), new Span(track, name, category, start - mOrigin, duration));
+    }
+
+    //endregion recording
+
+    /**
+     * Get kept spans from the oldest one
+     *
+     * @return
+     */
+    public List<Span> getSpans() {
+        final AtomicReferenceArray<Span> buffer = mBuffer;
+        List<Span> result = new ArrayList<Span>();
+        if (buffer == null) {
+            //never enabled
+            return result;
+        }
+        final long next = mNext.get();
+        final int capacity = buffer.length();
+        for (long i = Math.max(0, next - capacity); i < next; i++) {
+            Span span = buffer.get((int) (i % capacity));
+            if (span != null) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write kept spans as Chrome trace JSON
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void exportChromeTrace(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writeChromeTrace(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write kept spans as Chrome trace JSON, file is group of parts (pid), part is thread (tid)
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        final List<Span> spans = getSpans();
+        Map<Long, String> processes = new LinkedHashMap<Long, String>();
+        Map<String, Track> threads = new LinkedHashMap<String, Track>();
+        for (Span span : spans) {
+            processes.put(span.track.pid, span.track.processName);
+            threads.put(span.track.pid + ":" + span.track.tid, span.track);
+        }
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<Long, String> e : processes.entrySet()) {
+            first = writeSeparator(writer, first);
+            writer.write("{\"ph\":\"M\",\"name\":\"process_name\",\"pid\":" + e.getKey() + ",\"args\":{\"name\":" + quote(e.getValue()) + "}}");
+        }
+        for (Track t : threads.values()) {
+            first = writeSeparator(writer, first);
+            writer.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":" + t.pid + ",\"tid\":" + t.tid + ",\"args\":{\"name\":" + quote(t.threadName) + "}}");
+        }
+        for (Span span : spans) {
+            first = writeSeparator(writer, first);
+            writer.write("{\"ph\":\"X\",\"name\":" + quote(span.name) + ",\"cat\":" + quote(span.category)
+                    + ",\"pid\":" + span.track.pid + ",\"tid\":" + span.track.tid
+                    + ",\"ts\":" + toMicros(span.start) + ",\"dur\":" + toMicros(span.duration) + "}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(",\n");
+        }
+        return false;
+    }
+
+    private static String toMicros(long nanos) {
+        return String.valueOf(nanos / 1000) + "." + String.format("%03d", nanos % 1000);
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; value != null && i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Timeline of one part
+     */
+    public static class Track {
+        /**
+         * Group of parts, it's {@link FTPContext#groupId}
+         */
+        public final long pid;
+        public final long tid;
+        public final String processName;
+        public final String threadName;
+
+        public Track(long pid, long tid, String processName, String threadName) {
+            this.pid = pid;
+            this.tid = tid;
+            this.processName = processName;
+            this.threadName = threadName;
+        }
+    }
+
+    public static class Span {
+        public final Track track;
+        public final String name;
+        public final String category;
+        /**
+         * Start in ns from creation of tracer
+         */
+        public final long start;
+        /**
+         * Duration in ns
+         */
+        public final long duration;
+
+        Span(Track track, String name, String category, long start, long duration) {
+            this.track = track;
+            this.name = name;
+            this.category = category;
+            this.start = start;
+            this.duration = duration;
+        }
+    }
+}
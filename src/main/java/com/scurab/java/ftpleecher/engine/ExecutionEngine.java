@@ -0,0 +1,29 @@
+package com.scurab.java.ftpleecher.engine;
+
+/**
+ * Execution SPI for download parts and merging<br/>
+ * Waiting (retry delay, paused part) is always done by {@link #schedule(Runnable, long)} or by not running the task at all,
+ * so engine doesn't need to keep any thread for waiting work.
+ */
+public interface ExecutionEngine {
+
+    /**
+     * Run task as soon as possible
+     *
+     * @param task
+     */
+    void execute(Runnable task);
+
+    /**
+     * Run task after delay
+     *
+     * @param task
+     * @param delayMillis
+     */
+    void schedule(Runnable task, long delayMillis);
+
+    /**
+     * Release all resources of engine, already running tasks are not interrupted
+     */
+    void shutdown();
+}
@@ -0,0 +1,50 @@
+package com.scurab.java.ftpleecher.engine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Help class with shared parts of {@link ExecutionEngine} implementations
+ */
+public class ExecutionEngines {
+
+    private static ThreadPerTaskEngine sDefault;
+
+    /**
+     * Get default engine, starting one new thread per every task
+     *
+     * @return
+     */
+    public static synchronized ExecutionEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new ThreadPerTaskEngine();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Create single daemon thread timer for delayed tasks<br/>
+     * Timer only hands task over to engine, it never runs the task itself
+     *
+     * @param name
+     * @return
+     */
+    static ScheduledExecutorService createTimer(String name) {
+        return Executors.newSingleThreadScheduledExecutor(createThreadFactory(name));
+    }
+
+    static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int mCounter = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName(String.format("%s-%s", name, mCounter++));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package com.scurab.java.ftpleecher.engine;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine with bounded pool of platform threads<br/>
+ * Tasks over the pool size are waiting in pool queue.
+ */
+public class PlatformPoolEngine implements ExecutionEngine {
+
+    private final ExecutorService mExecutor;
+
+    private final ScheduledExecutorService mTimer = ExecutionEngines.createTimer("PlatformPoolTimer");
+
+    /**
+     * @param threads max number of threads
+     */
+    public PlatformPoolEngine(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads:" + threads);
+        }
+        mExecutor = Executors.newFixedThreadPool(threads, ExecutionEngines.createThreadFactory("PlatformPool"));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    @Override
+    public void schedule(final Runnable task, long delayMillis) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        mTimer.shutdown();
+        mExecutor.shutdown();
+    }
+}
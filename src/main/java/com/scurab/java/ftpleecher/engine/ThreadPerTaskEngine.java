@@ -0,0 +1,32 @@
+package com.scurab.java.ftpleecher.engine;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine starting new platform thread for every task, this is original behaviour of download threads
+ */
+public class ThreadPerTaskEngine implements ExecutionEngine {
+
+    private final ScheduledExecutorService mTimer = ExecutionEngines.createTimer("ThreadPerTaskTimer");
+
+    @Override
+    public void execute(Runnable task) {
+        new Thread(task).start();
+    }
+
+    @Override
+    public void schedule(final Runnable task, long delayMillis) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        mTimer.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+package com.scurab.java.ftpleecher.engine;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine running every task in new virtual thread<br/>
+ * Virtual threads are available since JDK 21, project is compiled for 1.8 so executor is created by reflection.
+ * Use {@link #isSupported()} before creating.
+ */
+public class VirtualThreadEngine implements ExecutionEngine {
+
+    private static final String FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+
+    private final ExecutorService mExecutor;
+
+    private final ScheduledExecutorService mTimer = ExecutionEngines.createTimer("VirtualThreadTimer");
+
+    /**
+     * @throws UnsupportedOperationException if current JDK doesn't support virtual threads
+     */
+    public VirtualThreadEngine() {
+        try {
+            Method m = Executors.class.getMethod(FACTORY_METHOD);
+            mExecutor = (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported", e);
+        }
+    }
+
+    /**
+     * Returns true if current JDK supports virtual threads
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod(FACTORY_METHOD);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    @Override
+    public void schedule(final Runnable task, long delayMillis) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        mTimer.shutdown();
+        mExecutor.shutdown();
+    }
+}
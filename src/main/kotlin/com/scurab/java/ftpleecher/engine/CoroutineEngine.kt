@@ -0,0 +1,36 @@
+package com.scurab.java.ftpleecher.engine
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * Engine running tasks as coroutines<br/>
+ * Delayed tasks are suspended by [delay], so waiting retries don't hold any thread.
+ */
+class CoroutineEngine @JvmOverloads constructor(
+        dispatcher: CoroutineDispatcher = Dispatchers.IO
+) : ExecutionEngine {
+
+    private val job = SupervisorJob()
+
+    private val scope = CoroutineScope(dispatcher + job)
+
+    override fun execute(task: Runnable) {
+        scope.launch { task.run() }
+    }
+
+    override fun schedule(task: Runnable, delayMillis: Long) {
+        scope.launch {
+            delay(delayMillis)
+            task.run()
+        }
+    }
+
+    override fun shutdown() {
+        job.cancel()
+    }
+}
@@ -0,0 +1,97 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockChecksumsTest {
+
+    private static final int BLOCK = 16;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private BlockChecksums create() {
+        return new BlockChecksums(new File(mFolder.getRoot(), "part000.blocks"), BLOCK);
+    }
+
+    private static long crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    @Test
+    public void allOnesChecksumIsKept() throws IOException {
+        BlockChecksums blocks = create();
+        blocks.set(0, 0xFFFFFFFFL);
+        blocks.set(2, 0x1234L);
+        blocks.commit();
+
+        BlockChecksums loaded = create();
+        loaded.load();
+        assertTrue(loaded.has(0));
+        assertEquals(0xFFFFFFFFL, loaded.get(0));
+        //gap
+        assertFalse(loaded.has(1));
+        assertEquals(BlockChecksums.UNKNOWN, loaded.get(1));
+        assertEquals(0x1234L, loaded.get(2));
+    }
+
+    @Test
+    public void corruptedBlocksAreSuspected() throws IOException {
+        byte[] data = new byte[BLOCK * 3 + 5];
+        new Random(1).nextBytes(data);
+        BlockChecksums blocks = create();
+        blocks.update(data, 0, data.length);
+        blocks.finish();
+        blocks.commit();
+
+        data[BLOCK + 3] ^= 1;
+        data[data.length - 1] ^= 1;
+        BlockChecksums loaded = create();
+        loaded.load();
+        loaded.startCheck();
+        loaded.update(data, 0, data.length);
+        Map<Integer, Long> suspects = loaded.finishCheck(true);
+        assertEquals(2, suspects.size());
+        assertEquals(crc(data, BLOCK, BLOCK), (long) suspects.get(1));
+        assertEquals(crc(data, BLOCK * 3, 5), (long) suspects.get(3));
+    }
+
+    @Test
+    public void repairSelection() {
+        BlockChecksums blocks = create();
+        blocks.set(0, 0xAAAAL);
+        final long local = 0xBBBBL;
+        //server decides if it knows the range
+        assertFalse(blocks.isCorrupted(0, local, "0000bbbb"));
+        assertTrue(blocks.isCorrupted(0, local, "0000aaaa"));
+        assertTrue(blocks.isCorrupted(1, local, "ffffffff"));
+        //stored checksum doesn't match data
+        assertTrue(blocks.isCorrupted(0, local, null));
+        //block without stored checksum is trusted
+        assertFalse(blocks.isCorrupted(1, local, null));
+    }
+
+    @Test
+    public void fileOfOtherBlockSizeIsIgnored() throws IOException {
+        BlockChecksums blocks = create();
+        blocks.set(0, 1);
+        blocks.commit();
+
+        BlockChecksums other = new BlockChecksums(blocks.getFile(), BLOCK * 2);
+        other.load();
+        assertFalse(other.has(0));
+    }
+}
@@ -0,0 +1,60 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    private static long crc32c(byte[] data, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    @Test
+    public void knownValue() throws Exception {
+        //check value of CRC-32C, RFC 3720
+        assertEquals(0xE3069283L, crc32c("123456789".getBytes("US-ASCII"), 0, 9));
+    }
+
+    @Test
+    public void slicedUpdateMatchesBytewise() {
+        byte[] data = new byte[1027];
+        new Random(1).nextBytes(data);
+        Crc32c crc = new Crc32c();
+        for (byte b : data) {
+            crc.update(b);
+        }
+        assertEquals(crc.getValue(), crc32c(data, 0, data.length));
+    }
+
+    @Test
+    public void combineMatchesChecksumOfConcatenation() {
+        byte[] data = new byte[10000];
+        new Random(2).nextBytes(data);
+        for (int split : new int[]{0, 1, 7, 8, 4096, 9999, 10000}) {
+            long first = crc32c(data, 0, split);
+            long second = crc32c(data, split, data.length - split);
+            assertEquals("split " + split, crc32c(data, 0, data.length),
+                    Crc32c.combine(first, second, data.length - split, Crc32c.POLYNOMIAL));
+        }
+    }
+
+    @Test
+    public void combineWorksForCrc32() {
+        byte[] data = new byte[5000];
+        new Random(3).nextBytes(data);
+        CRC32 whole = new CRC32();
+        whole.update(data, 0, data.length);
+        CRC32 first = new CRC32();
+        first.update(data, 0, 1234);
+        CRC32 second = new CRC32();
+        second.update(data, 1234, data.length - 1234);
+        assertEquals(whole.getValue(), Crc32c.combine(first.getValue(), second.getValue(), data.length - 1234,
+                0xEDB88320));
+    }
+}
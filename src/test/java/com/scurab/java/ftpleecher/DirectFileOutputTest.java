@@ -0,0 +1,71 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectFileOutputTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void prepareRenamesForeignFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "data.bin");
+        FileUtils.writeStringToFile(file, "foreign", "UTF-8");
+        PartOffsetRecord record = new PartOffsetRecord(new File(mFolder.getRoot(), "data.bin.offsets"));
+
+        DirectFileOutput.prepare(file, record);
+
+        assertFalse(file.exists());
+        assertTrue(record.exists());
+        File[] old = mFolder.getRoot().listFiles();
+        int renamed = 0;
+        for (File f : old) {
+            if (f.getName().startsWith("data.bin.old")) {
+                assertEquals("foreign", FileUtils.readFileToString(f, "UTF-8"));
+                renamed++;
+            }
+        }
+        assertEquals(1, renamed);
+    }
+
+    @Test
+    public void prepareKeepsFileOfThisDownload() throws IOException {
+        File file = new File(mFolder.getRoot(), "data.bin");
+        FileUtils.writeStringToFile(file, "partial", "UTF-8");
+        PartOffsetRecord record = new PartOffsetRecord(new File(mFolder.getRoot(), "data.bin.offsets"));
+        record.setCommitted(1, 3);
+
+        DirectFileOutput.prepare(file, record);
+
+        assertEquals("partial", FileUtils.readFileToString(file, "UTF-8"));
+        assertEquals(3, record.getCommitted(1));
+        assertEquals(2, mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void outputIsPreallocatedAndWritesAtOffset() throws IOException {
+        File file = new File(mFolder.getRoot(), "data.bin");
+        PartOffsetRecord record = new PartOffsetRecord(new File(mFolder.getRoot(), "data.bin.offsets"));
+        DirectFileOutput.prepare(file, record);
+
+        DirectFileOutput output = new DirectFileOutput(file, 10, 4, 0, record, 1);
+        output.write("abc".getBytes("UTF-8"), 0, 3);
+        output.close();
+
+        assertEquals(10, file.length());
+        assertEquals(3, record.getCommitted(1));
+        byte[] data = FileUtils.readFileToByteArray(file);
+        assertEquals('a', data[4]);
+        assertEquals('c', data[6]);
+    }
+}
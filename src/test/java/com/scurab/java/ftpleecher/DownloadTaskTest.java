@@ -0,0 +1,71 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadTaskTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FTPDownloadThread createPart(int part, boolean inPlaceMerge) {
+        FTPContext context = new FTPContext();
+        context.fileName = "file.bin";
+        context.outputDirectory = mFolder.getRoot().getAbsolutePath();
+        context.groupId = 1;
+        context.part = part;
+        context.parts = 2;
+        context.offset = part * 3;
+        context.currentPieceLength = 3;
+        context.fileSize = 6;
+        context.inPlaceMerge = inPlaceMerge;
+        context.localFile = new File(mFolder.getRoot(), "file.bin.part00" + part);
+        return new FTPDownloadThread(context);
+    }
+
+    private void failedAppendIsMergedAfterRestart(boolean inPlaceMerge) throws IOException {
+        List<FTPDownloadThread> parts = new ArrayList<FTPDownloadThread>();
+        parts.add(createPart(0, inPlaceMerge));
+        parts.add(createPart(1, inPlaceMerge));
+        FileUtils.writeStringToFile(new File(mFolder.getRoot(), "file.bin.part001"), "def", "UTF-8");
+        for (FTPDownloadThread t : parts) {
+            t.setFtpState(FTPDownloadThread.State.Downloaded);
+        }
+        DownloadTask task = new DownloadTask(parts);
+
+        //part file of first part is missing
+        task.onMergeFiles();
+        assertEquals(FTPDownloadThread.State.Error, parts.get(0).getFtpState());
+        assertEquals(FTPDownloadThread.State.Downloaded, parts.get(1).getFtpState());
+
+        //user restarts part, it's downloaded again
+        FileUtils.writeStringToFile(new File(mFolder.getRoot(), "file.bin.part000"), "abc", "UTF-8");
+        parts.get(0).restart();
+        parts.get(0).setFtpState(FTPDownloadThread.State.Downloaded);
+        task.onMergeFiles();
+
+        assertEquals(FTPDownloadThread.State.Finished, parts.get(0).getFtpState());
+        assertEquals(FTPDownloadThread.State.Finished, parts.get(1).getFtpState());
+        assertEquals("abcdef", FileUtils.readFileToString(new File(mFolder.getRoot(), "file.bin"), "UTF-8"));
+        assertEquals(3, mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void failedAppendIsMergedAfterRestart() throws IOException {
+        failedAppendIsMergedAfterRestart(false);
+    }
+
+    @Test
+    public void failedInPlaceAppendIsMergedAfterRestart() throws IOException {
+        failedAppendIsMergedAfterRestart(true);
+    }
+}
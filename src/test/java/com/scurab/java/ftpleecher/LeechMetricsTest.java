@@ -0,0 +1,91 @@
+package com.scurab.java.ftpleecher;
+
+import com.scurab.java.ftpleecher.engine.ExecutionEngine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class LeechMetricsTest {
+
+    /**
+     * Engine which only collects scheduled tasks
+     */
+    private final List<Runnable> mScheduled = new ArrayList<Runnable>();
+
+    private final ExecutionEngine mEngine = new ExecutionEngine() {
+        @Override
+        public void execute(Runnable task) {
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mScheduled.add(task);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    };
+
+    private FTPLeechMaster mMaster;
+
+    private int mExports;
+
+    private final MetricsExporter mExporter = new MetricsExporter() {
+        @Override
+        public void export(Map<String, Number> metrics) {
+            mExports++;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mMaster = new FTPLeechMaster(mEngine, Clock.SYSTEM);
+    }
+
+    @Test
+    public void sameExporterStartsOneLoop() {
+        LeechMetrics metrics = mMaster.getMetrics();
+        metrics.setExporter(mExporter, 1000);
+        metrics.setExporter(mExporter, 1000);
+        assertEquals(1, mScheduled.size());
+
+        mScheduled.remove(0).run();
+        assertEquals(1, mExports);
+        //loop continues
+        assertEquals(1, mScheduled.size());
+    }
+
+    @Test
+    public void replacedExporterIsNotCalled() {
+        LeechMetrics metrics = mMaster.getMetrics();
+        metrics.setExporter(mExporter, 1000);
+        metrics.setExporter(null, 1000);
+        mScheduled.remove(0).run();
+        assertEquals(0, mExports);
+        assertEquals(0, mScheduled.size());
+    }
+
+    @Test
+    public void tasksOfSamePathHaveOwnSpeed() {
+        ServerKey server = new ServerKey("localhost", 21, "test", false);
+        DownloadTask first = new DownloadTask(Collections.singletonList(new FTPDownloadThread(ResumeJournalTest.createContext(0, 1))));
+        DownloadTask second = new DownloadTask(Collections.singletonList(new FTPDownloadThread(ResumeJournalTest.createContext(0, 1))));
+        TransferStatistics statistics = mMaster.getTransferStatistics();
+        statistics.createSlot(server, first).report(100, 50);
+        statistics.createSlot(server, second).report(100, 50);
+
+        Map<String, Long> speed = mMaster.getMetrics().getBytesPerSecondByTask();
+        assertEquals(2, speed.size());
+
+        statistics.removeTask(first);
+        speed = mMaster.getMetrics().getBytesPerSecondByTask();
+        assertEquals(Collections.singleton(String.valueOf(second.getId())), speed.keySet());
+    }
+}
@@ -0,0 +1,102 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ListingCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FTPContext mContext;
+
+    /**
+     * Client without connection, folders have no MDTM
+     */
+    private final FTPClient mClient = new FTPClient() {
+        @Override
+        public String getModificationTime(String pathname) {
+            return null;
+        }
+    };
+
+    private int mListings;
+
+    private final ListingCache.Lister mLister = new ListingCache.Lister() {
+        @Override
+        public FTPFile[] list(FTPContext context, FTPClient fc, String path) {
+            mListings++;
+            FTPFile f = new FTPFile();
+            f.setName(path.substring(path.lastIndexOf('/') + 1) + ".bin");
+            f.setType(FTPFile.FILE_TYPE);
+            f.setSize(path.length());
+            return new FTPFile[]{f};
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mContext = new FTPContext();
+        mContext.server = "localhost";
+        mContext.port = 21;
+        mContext.username = "test";
+    }
+
+    @Test
+    public void leastRecentlyUsedListingIsEvicted() throws Exception {
+        ListingCache cache = new ListingCache();
+        cache.setMaxEntries(2);
+        cache.list(mContext, mClient, "/a", mLister);
+        cache.list(mContext, mClient, "/b", mLister);
+        //touch a, so b is the eldest one
+        cache.list(mContext, mClient, "/a", mLister);
+        cache.list(mContext, mClient, "/c", mLister);
+        assertEquals(2, cache.size());
+        assertEquals(3, mListings);
+
+        cache.list(mContext, mClient, "/a", mLister);
+        assertEquals(3, mListings);
+        cache.list(mContext, mClient, "/b", mLister);
+        assertEquals(4, mListings);
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws Exception {
+        ListingCache cache = new ListingCache();
+        cache.list(mContext, mClient, "/a", mLister);
+        cache.list(mContext, mClient, "/folder/b", mLister);
+        File file = new File(mFolder.getRoot(), "listings");
+        cache.save(file);
+        //saved again over existing file
+        cache.save(file);
+        assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+
+        ListingCache loaded = new ListingCache();
+        assertEquals(2, loaded.load(file));
+        mListings = 0;
+        FTPFile[] files = loaded.list(mContext, mClient, "/folder/b", mLister);
+        assertEquals(0, mListings);
+        assertEquals(1, files.length);
+        assertEquals("b.bin", files[0].getName());
+        assertEquals("/folder/b".length(), files[0].getSize());
+        assertEquals(1, loaded.getHits());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedFileIsRejected() throws IOException {
+        File file = new File(mFolder.getRoot(), "listings");
+        FileUtils.writeStringToFile(file, "garbage", "UTF-8");
+        new ListingCache().load(file);
+    }
+}
@@ -0,0 +1,55 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PartFileOutputTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void appendKeepsContent() throws IOException {
+        File file = new File(mFolder.getRoot(), "part000");
+        FileUtils.writeStringToFile(file, "abc", "UTF-8");
+
+        PartFileOutput output = new PartFileOutput(file, true);
+        output.write("def".getBytes("UTF-8"), 0, 3);
+        output.close();
+
+        assertEquals("abcdef", FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    @Test
+    public void positionedOutputOverwritesOnlyItsRange() throws IOException {
+        File file = new File(mFolder.getRoot(), "part000");
+        FileUtils.writeStringToFile(file, "abcdef", "UTF-8");
+
+        PartFileOutput output = new PartFileOutput(file, 2);
+        output.write("XY".getBytes("UTF-8"), 0, 2);
+        output.close();
+
+        assertEquals("abXYef", FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    @Test
+    public void positionedOutputDoesNotCreateMissingFile() {
+        File file = new File(mFolder.getRoot(), "part000");
+        try {
+            new PartFileOutput(file, 10).close();
+            fail("Merged and deleted part must not be created again");
+        } catch (IOException e) {
+            //expected
+        }
+        assertFalse(file.exists());
+    }
+}
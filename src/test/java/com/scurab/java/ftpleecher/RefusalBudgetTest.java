@@ -0,0 +1,103 @@
+package com.scurab.java.ftpleecher;
+
+import com.scurab.java.ftpleecher.engine.ExecutionEngine;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPReply;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RefusalBudgetTest {
+
+    private static FTPDownloadThread createThread(int refusalsToStop) {
+        FTPContext context = SchedulerShardTest.createContext();
+        context.refusalsToStop = refusalsToStop;
+        return new FTPDownloadThread(context);
+    }
+
+    @Test
+    public void refusalsInRowStopPart() {
+        FTPDownloadThread thread = createThread(3);
+        FatalFTPException refusal = new FatalFTPException(FTPReply.SERVICE_NOT_AVAILABLE, "421 Too many users");
+
+        thread.onAttemptFailed(refusal);
+        thread.onAttemptFailed(new FTPConnectionClosedException("FTP response 421 received.  Server closed connection."));
+        assertEquals(FTPDownloadThread.State.WaitingForRetry, thread.getFtpState());
+
+        thread.onAttemptFailed(refusal);
+        assertEquals(FTPDownloadThread.State.FatalError, thread.getFtpState());
+    }
+
+    @Test
+    public void droppedConnectionIsNotRefusal() {
+        FTPDownloadThread thread = createThread(2);
+        FatalFTPException refusal = new FatalFTPException(FTPReply.SERVICE_NOT_AVAILABLE, "421 Too many users");
+
+        thread.onAttemptFailed(refusal);
+        //network reset isn't counted as refusal
+        thread.onAttemptFailed(new FTPConnectionClosedException("Connection closed without indication."));
+        assertEquals(FTPDownloadThread.State.WaitingForRetry, thread.getFtpState());
+        assertFalse(AdaptiveConcurrencyController.isConnectionRefusal(new FTPConnectionClosedException("Connection closed without indication.")));
+        assertTrue(AdaptiveConcurrencyController.isConnectionRefusal(new FTPConnectionClosedException("FTP response 421 received.  Server closed connection.")));
+    }
+
+    @Test
+    public void acceptedSessionClearsRefusals() {
+        FTPDownloadThread thread = createThread(2);
+        FatalFTPException refusal = new FatalFTPException(FTPReply.SERVICE_NOT_AVAILABLE, "421 Too many users");
+
+        thread.onAttemptFailed(refusal);
+        thread.setFtpState(FTPDownloadThread.State.Connected);
+        thread.onAttemptFailed(refusal);
+        assertEquals(FTPDownloadThread.State.WaitingForRetry, thread.getFtpState());
+    }
+
+    @Test
+    public void refusalWithOtherSessionsRequeuesPart() {
+        AtomicInteger[] counters = new AtomicInteger[FTPDownloadThread.State.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicInteger();
+        }
+        SchedulerShard shard = new SchedulerShard(new ServerKey("localhost", 21, "test", false), counters,
+                new AtomicInteger(), new AtomicInteger(), new AtomicInteger());
+        FTPContext context = SchedulerShardTest.createContext();
+        context.refusalsToStop = 2;
+        final FatalFTPException refusal = new FatalFTPException(FTPReply.SERVICE_NOT_AVAILABLE, "421 Too many users");
+        FTPDownloadThread thread = new FTPDownloadThread(context) {
+            @Override
+            protected void downloadImpl() {
+                onAttemptFailed(refusal);
+            }
+        };
+        thread.setShard(shard);
+        shard.onTransition(createThread(2), FTPDownloadThread.State.Connected);
+        shard.onTransition(thread, FTPDownloadThread.State.Connecting);
+        final AtomicInteger scheduled = new AtomicInteger();
+        ExecutionEngine engine = new ExecutionEngine() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                scheduled.incrementAndGet();
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+
+        //part doesn't wait for retry in its slot and refusals don't spend its budget
+        for (int i = 0; i < 3; i++) {
+            assertTrue(thread.start(engine));
+            assertEquals(FTPDownloadThread.State.Created, thread.getFtpState());
+        }
+        assertEquals(0, scheduled.get());
+    }
+}
@@ -0,0 +1,229 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeJournalTest {
+
+    private static final long PART = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ResumeJournal mJournal;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    private File getFile() {
+        return new File(mFolder.getRoot(), "queue.journal");
+    }
+
+    private ResumeJournal reopen() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mJournal = new ResumeJournal(getFile());
+        return mJournal;
+    }
+
+    static FTPContext createContext(int part, int parts) {
+        FTPContext c = new FTPContext();
+        c.server = "localhost";
+        c.port = 21;
+        c.username = "test";
+        c.password = "secret";
+        c.remoteFullPath = "/data/file.bin";
+        c.outputDirectory = "/tmp/out";
+        c.fileName = "file.bin";
+        c.groupId = 7;
+        c.part = part;
+        c.parts = parts;
+        c.offset = part * PART;
+        c.currentPieceLength = PART;
+        c.fileSize = parts * PART;
+        return c;
+    }
+
+    /**
+     * Journal new task with parts
+     */
+    private DownloadTask addTask(ResumeJournal journal, int parts) {
+        List<FTPDownloadThread> threads = new ArrayList<FTPDownloadThread>();
+        for (int i = 0; i < parts; i++) {
+            threads.add(new FTPDownloadThread(createContext(i, parts)));
+        }
+        DownloadTask task = new DownloadTask(threads);
+        journal.onTaskAdded(task);
+        for (FTPDownloadThread t : threads) {
+            journal.onPartAdded(t);
+        }
+        return task;
+    }
+
+    @Test
+    public void replayRestoresTasksAndCommits() throws IOException {
+        ResumeJournal journal = reopen();
+        DownloadTask task = addTask(journal, 3);
+        List<FTPDownloadThread> threads = task.getData();
+        journal.onCommit(threads.get(0), PART, 123);
+        journal.onPartFinished(threads.get(0));
+        journal.onCommit(threads.get(1), 400, ResumeJournal.NO_CHECKSUM);
+        //finished task is removed
+        DownloadTask done = addTask(journal, 2);
+        journal.onTaskFinished(done);
+
+        journal = reopen();
+        assertEquals(1, journal.getTaskCount());
+        assertEquals(3, journal.getPartCount());
+        FTPContext template = new FTPContext();
+        template.password = "secret";
+        List<DownloadTask> tasks = journal.createTasks(template);
+        assertEquals(1, tasks.size());
+        List<FTPDownloadThread> restored = tasks.get(0).getData();
+        assertEquals(3, restored.size());
+        assertEquals(FTPDownloadThread.State.Finished, restored.get(0).getFtpState());
+        FTPContext c = restored.get(1).getContext();
+        assertEquals("/data/file.bin", c.remoteFullPath);
+        assertEquals(PART, c.offset);
+        assertEquals("secret", c.password);
+        assertTrue(c.resume);
+        assertEquals(400, journal.getCommit(restored.get(1)).committed);
+        assertEquals(123, journal.getCommit(restored.get(0)).checksum);
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        ResumeJournal journal = reopen();
+        DownloadTask task = addTask(journal, 2);
+        journal.sync();
+        final long valid = getFile().length();
+        journal.onCommit(task.getData().get(0), 500, ResumeJournal.NO_CHECKSUM);
+        journal.close();
+        mJournal = null;
+
+        //half of last record
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+        raf.setLength(valid + (raf.length() - valid) / 2);
+        raf.close();
+
+        journal = reopen();
+        assertEquals(valid, getFile().length());
+        assertEquals(2, journal.getPartCount());
+        FTPDownloadThread restored = journal.createTasks(new FTPContext()).get(0).getData().get(0);
+        assertEquals(0, journal.getCommit(restored).committed);
+    }
+
+    @Test
+    public void crcMismatchTailIsTruncated() throws IOException {
+        ResumeJournal journal = reopen();
+        DownloadTask task = addTask(journal, 2);
+        journal.sync();
+        final long valid = getFile().length();
+        journal.onCommit(task.getData().get(0), 500, ResumeJournal.NO_CHECKSUM);
+        journal.close();
+        mJournal = null;
+
+        //corrupt last byte of committed offset, CRC doesn't match
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+        raf.seek(raf.length() - 4 - 8 - 1);
+        raf.write(0x55);
+        raf.close();
+
+        journal = reopen();
+        assertEquals(valid, getFile().length());
+        FTPDownloadThread restored = journal.createTasks(new FTPContext()).get(0).getData().get(0);
+        assertEquals(0, journal.getCommit(restored).committed);
+
+        //journal continues after valid records
+        DownloadTask next = journal.createTasks(new FTPContext()).get(0);
+        journal.onCommit(next.getData().get(1), 700, ResumeJournal.NO_CHECKSUM);
+        journal = reopen();
+        assertEquals(700, journal.getCommit(journal.createTasks(new FTPContext()).get(0).getData().get(1)).committed);
+    }
+
+    @Test
+    public void compactionKeepsLiveState() throws IOException {
+        ResumeJournal journal = reopen();
+        DownloadTask task = addTask(journal, 2);
+        FTPDownloadThread first = task.getData().get(0);
+        for (int i = 1; i <= 100; i++) {
+            journal.onCommit(first, i, ResumeJournal.NO_CHECKSUM);
+        }
+        for (int i = 0; i < 10; i++) {
+            journal.onTaskFinished(addTask(journal, 2));
+        }
+        journal.onPartFinished(task.getData().get(1));
+        journal.sync();
+        final long before = getFile().length();
+
+        journal.compact();
+        assertTrue(getFile().length() < before);
+        //writing continues into compacted file
+        journal.onCommit(first, 200, 42);
+
+        journal = reopen();
+        assertEquals(1, journal.getTaskCount());
+        List<FTPDownloadThread> restored = journal.createTasks(new FTPContext()).get(0).getData();
+        ResumeJournal.Commit commit = journal.getCommit(restored.get(0));
+        assertEquals(200, commit.committed);
+        assertEquals(42, commit.checksum);
+        assertEquals(FTPDownloadThread.State.Finished, restored.get(1).getFtpState());
+    }
+
+    @Test
+    public void splitRangeIsRestored() throws IOException {
+        ResumeJournal journal = reopen();
+        DownloadTask task = addTask(journal, 2);
+        FTPDownloadThread victim = task.getData().get(0);
+
+        //back half of first part taken by new part
+        FTPContext c = createContext(0, 2);
+        c.offset = 600;
+        c.currentPieceLength = PART - 600;
+        FTPDownloadThread thread = new FTPDownloadThread(c);
+        thread.setParentTask(task);
+        journal.onSplit(victim, thread);
+        journal.onCommit(thread, 100, ResumeJournal.NO_CHECKSUM);
+
+        journal = reopen();
+        assertEquals(3, journal.getPartCount());
+        List<FTPDownloadThread> restored = journal.createTasks(new FTPContext()).get(0).getData();
+        assertEquals(3, restored.size());
+        FTPContext shortened = null;
+        FTPContext split = null;
+        for (FTPDownloadThread t : restored) {
+            FTPContext rc = t.getContext();
+            if (rc.offset == 0) {
+                shortened = rc;
+            } else if (rc.offset == 600) {
+                split = rc;
+                assertEquals(100, journal.getCommit(t).committed);
+            }
+        }
+        assertEquals(600, shortened.currentPieceLength);
+        assertEquals(PART - 600, split.currentPieceLength);
+    }
+
+    @Test
+    public void unknownPartHasNoCommit() throws IOException {
+        ResumeJournal journal = reopen();
+        assertNull(journal.getCommit(new FTPDownloadThread(createContext(0, 1))));
+    }
+}
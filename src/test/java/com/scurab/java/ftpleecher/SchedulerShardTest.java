@@ -0,0 +1,169 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerShardTest {
+
+    private AtomicInteger[] mStateCounters;
+    private AtomicInteger mRunning;
+    private AtomicInteger mReady;
+    private AtomicInteger mStealable;
+    private SchedulerShard mShard;
+
+    @Before
+    public void setUp() {
+        mStateCounters = new AtomicInteger[FTPDownloadThread.State.values().length];
+        for (int i = 0; i < mStateCounters.length; i++) {
+            mStateCounters[i] = new AtomicInteger();
+        }
+        mRunning = new AtomicInteger();
+        mReady = new AtomicInteger();
+        mStealable = new AtomicInteger();
+        mShard = new SchedulerShard(new ServerKey("localhost", 21, "test", false), mStateCounters, mRunning, mReady, mStealable);
+    }
+
+    /**
+     * Context of one part of file on the shard server, shared by scheduler tests
+     */
+    static FTPContext createContext() {
+        FTPContext context = new FTPContext();
+        context.server = "localhost";
+        context.username = "test";
+        context.fileName = "file.bin";
+        context.parts = 2;
+        context.currentPieceLength = 100;
+        return context;
+    }
+
+    static FTPDownloadThread createThread(boolean dynamicSplitting, boolean endgame) {
+        FTPContext context = createContext();
+        context.dynamicSplitting = dynamicSplitting;
+        context.endgame = endgame;
+        return new FTPDownloadThread(context);
+    }
+
+    @Test
+    public void readyThreadTakesSlot() {
+        FTPDownloadThread thread = createThread(false, false);
+        assertTrue(mShard.onTransition(thread, FTPDownloadThread.State.Created));
+        assertEquals(1, mReady.get());
+
+        assertSame(thread, mShard.poll());
+        assertEquals(0, mReady.get());
+        assertEquals(1, mRunning.get());
+        assertEquals(1, mShard.getRunning());
+
+        //finished thread frees slot
+        assertTrue(mShard.onTransition(thread, FTPDownloadThread.State.Downloaded));
+        assertEquals(0, mRunning.get());
+    }
+
+    @Test
+    public void limitBlocksPoll() {
+        mShard.setLimit(1);
+        FTPDownloadThread first = createThread(false, false);
+        FTPDownloadThread second = createThread(false, false);
+        mShard.onTransition(first, FTPDownloadThread.State.Created);
+        mShard.onTransition(second, FTPDownloadThread.State.Created);
+
+        assertSame(first, mShard.poll());
+        assertEquals(null, mShard.poll());
+        assertFalse(mShard.hasFreeSlot());
+    }
+
+    @Test
+    public void onlyStealableDownloadingThreadsAreCounted() {
+        FTPDownloadThread plain = createThread(false, false);
+        FTPDownloadThread split = createThread(true, false);
+        FTPDownloadThread endgame = createThread(false, true);
+
+        mShard.onTransition(plain, FTPDownloadThread.State.Downloading);
+        assertEquals(0, mStealable.get());
+
+        mShard.onTransition(split, FTPDownloadThread.State.Downloading);
+        mShard.onTransition(endgame, FTPDownloadThread.State.Downloading);
+        assertEquals(2, mStealable.get());
+        assertEquals(3, mShard.getActive().size());
+
+        mShard.onTransition(split, FTPDownloadThread.State.WaitingForRetry);
+        mShard.onTransition(endgame, FTPDownloadThread.State.Downloaded);
+        assertEquals(0, mStealable.get());
+        assertEquals(1, mShard.getActive().size());
+    }
+
+    @Test
+    public void concurrentRefusalsLowerLimitOnce() {
+        FTPDownloadThread[] threads = new FTPDownloadThread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = createThread(false, false);
+            mShard.onTransition(threads[i], FTPDownloadThread.State.Connecting);
+        }
+        assertEquals(2, mShard.onRefusal(threads[0]));
+        //same overload, attempts started before lowering
+        assertEquals(2, mShard.onRefusal(threads[1]));
+        assertEquals(2, mShard.onRefusal(threads[2]));
+
+        //new attempt refused again
+        mShard.onTransition(threads[1], FTPDownloadThread.State.WaitingForRetry);
+        mShard.onTransition(threads[1], FTPDownloadThread.State.Connecting);
+        assertEquals(1, mShard.onRefusal(threads[1]));
+    }
+
+    @Test
+    public void limitRecoversAfterAcceptedSessions() {
+        mShard.setLimit(3);
+        FTPDownloadThread[] threads = new FTPDownloadThread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = createThread(false, false);
+            mShard.onTransition(threads[i], FTPDownloadThread.State.Connecting);
+        }
+        assertEquals(2, mShard.onRefusal(threads[0]));
+        mShard.onTransition(threads[0], FTPDownloadThread.State.WaitingForRetry);
+        mShard.onTransition(threads[2], FTPDownloadThread.State.Downloaded);
+
+        //two running at limit 2, every accepted session counts
+        boolean changed = false;
+        for (int i = 0; i < SchedulerShard.RECOVER_AFTER; i++) {
+            FTPDownloadThread t = threads[i % 2];
+            mShard.onTransition(t, FTPDownloadThread.State.Connecting);
+            changed = mShard.onTransition(t, FTPDownloadThread.State.Connected);
+        }
+        assertTrue(changed);
+        assertEquals(3, mShard.getLimit());
+
+        //limit set by user is not exceeded
+        for (int i = 0; i < SchedulerShard.RECOVER_AFTER * 2; i++) {
+            mShard.onTransition(threads[0], FTPDownloadThread.State.Connecting);
+            mShard.onTransition(threads[0], FTPDownloadThread.State.Connected);
+        }
+        assertEquals(3, mShard.getLimit());
+    }
+
+    @Test
+    public void limitIsNotRaisedWhenItIsNotReached() {
+        mShard.setLimit(3);
+        FTPDownloadThread[] threads = new FTPDownloadThread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = createThread(false, false);
+            mShard.onTransition(threads[i], FTPDownloadThread.State.Connecting);
+        }
+        assertEquals(2, mShard.onRefusal(threads[0]));
+        mShard.onTransition(threads[0], FTPDownloadThread.State.Downloaded);
+        mShard.onTransition(threads[1], FTPDownloadThread.State.Downloaded);
+
+        //one running at limit 2, accepted sessions don't prove higher limit
+        for (int i = 0; i < SchedulerShard.RECOVER_AFTER; i++) {
+            mShard.onTransition(threads[2], FTPDownloadThread.State.Connecting);
+            assertFalse(mShard.onTransition(threads[2], FTPDownloadThread.State.Connected));
+        }
+        assertEquals(2, mShard.getLimit());
+    }
+}
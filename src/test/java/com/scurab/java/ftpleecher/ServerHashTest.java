@@ -0,0 +1,43 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServerHashTest {
+
+    private static final String SHA256 = "169cd22282da7f147cb491e559e9dd0b4fb4a3d4d7eb87c0e8b7f92f1aa4a3a0";
+
+    @Test
+    public void hashReply() {
+        assertEquals(SHA256, ServerHash.parse("213 SHA-256 0-49 " + SHA256 + " /data/file.bin", HashAlgorithm.SHA256));
+        assertEquals("b98f8d1f", ServerHash.parse("213 CRC32 0-49 B98F8D1F file name.bin\r\n", HashAlgorithm.CRC32));
+    }
+
+    @Test
+    public void xcrcReply() {
+        assertEquals("b98f8d1f", ServerHash.parse("250 B98F8D1F", HashAlgorithm.CRC32));
+        //leading zeros are not sent by some servers
+        assertEquals("0008d1f0", ServerHash.parse("250 8D1F0", HashAlgorithm.CRC32));
+    }
+
+    @Test
+    public void xmd5Reply() {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e",
+                ServerHash.parse("250 D41D8CD98F00B204E9800998ECF8427E", HashAlgorithm.MD5));
+    }
+
+    @Test
+    public void shortHashIsNotPaddedForDigest() {
+        //only CRC can lose leading zeros, short MD5 is something else
+        assertNull(ServerHash.parse("250 8D1F0", HashAlgorithm.MD5));
+        assertNull(ServerHash.parse("550 File not found", HashAlgorithm.MD5));
+    }
+
+    @Test
+    public void replyCodeIsNotHash() {
+        //"250" itself is hex, but it's reply code
+        assertNull(ServerHash.parse("250", HashAlgorithm.CRC32));
+    }
+}
@@ -0,0 +1,44 @@
+package com.scurab.java.ftpleecher;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class SplitRangeTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void splitRangeIgnoresDataOfPreviousRun() throws Exception {
+        FTPContext context = new FTPContext();
+        context.fileName = "file.bin";
+        context.parts = 2;
+        context.currentPieceLength = 1000;
+        context.dynamicSplitting = true;
+        context.resume = true;
+        FTPDownloadThread victim = new FTPDownloadThread(context);
+        victim.setFtpState(FTPDownloadThread.State.Downloading);
+
+        FTPDownloadThread split = victim.splitRange(100, 5);
+        assertNotNull(split);
+        assertEquals(500, split.getContext().offset);
+
+        //part 5 of previous run had different offset
+        File file = mFolder.newFile("file.bin.part005");
+        FileUtils.writeStringToFile(file, "stale", "UTF-8");
+        assertEquals(0, split.onPreInit(file, false));
+        assertFalse(file.exists());
+
+        //retry of split range resumes its own data
+        FileUtils.writeStringToFile(file, "fresh", "UTF-8");
+        assertEquals(5, split.onPreInit(file, false));
+    }
+}
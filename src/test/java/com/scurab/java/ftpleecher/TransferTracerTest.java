@@ -0,0 +1,37 @@
+package com.scurab.java.ftpleecher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferTracerTest {
+
+    private static final TransferTracer.Track TRACK = new TransferTracer.Track(1, 1, "file.bin", "file.bin 000");
+
+    @Test
+    public void disabledTracerRecordsNothing() {
+        TransferTracer tracer = new TransferTracer();
+        assertEquals(0, tracer.begin());
+        tracer.record(TRACK, "Downloading", "state", System.nanoTime(), 10);
+        assertTrue(tracer.getSpans().isEmpty());
+        tracer.clear();
+        assertTrue(tracer.getSpans().isEmpty());
+    }
+
+    @Test
+    public void capacitySetBeforeEnablingIsUsed() {
+        TransferTracer tracer = new TransferTracer();
+        tracer.setCapacity(2);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 3; i++) {
+            tracer.record(TRACK, "span" + i, "phase", System.nanoTime(), 10);
+        }
+        assertEquals(2, tracer.getSpans().size());
+        assertEquals("span1", tracer.getSpans().get(0).name);
+
+        //disabled tracer keeps recorded spans for export
+        tracer.setEnabled(false);
+        assertEquals(2, tracer.getSpans().size());
+    }
+}
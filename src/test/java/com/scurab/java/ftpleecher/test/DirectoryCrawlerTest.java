@@ -0,0 +1,89 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.DirectoryCrawler;
+import com.scurab.java.ftpleecher.DownloadTask;
+import com.scurab.java.ftpleecher.FTPContext;
+import com.scurab.java.ftpleecher.FTPFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryCrawlerTest {
+
+    private static final int FOLDERS = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private EmbeddedFtpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        File root = mFolder.newFolder("server");
+        for (int i = 0; i < FOLDERS; i++) {
+            FileUtils.writeStringToFile(new File(root, "data/sub" + i + "/file.bin"), "content" + i, "UTF-8");
+        }
+        mServer = new EmbeddedFtpServer(root);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void crawlerKeepsSessionsAndRequeuesRefusedFolders() throws Exception {
+        mServer.setConditions(new NetworkConditions().setMaxSessions(2));
+        FTPContext context = new FTPContext();
+        context.server = mServer.getHost();
+        context.port = mServer.getPort();
+        context.username = "test";
+        context.password = "test";
+        context.retryDelay = 50;
+        context.reuseSessions = false;
+
+        final List<DownloadTask> tasks = Collections.synchronizedList(new ArrayList<DownloadTask>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        FTPFile folder = new FTPFile();
+        folder.setName("data");
+        folder.setType(FTPFile.DIRECTORY_TYPE);
+        DirectoryCrawler crawler = new FTPFactory(context).crawl(folder, "/data", mFolder.newFolder("client").getAbsolutePath(), 4,
+                new DirectoryCrawler.Listener() {
+                    @Override
+                    public void onTaskCreated(DownloadTask task) {
+                        tasks.add(task);
+                    }
+
+                    @Override
+                    public void onError(String path, Exception e) {
+                        errors.add(path);
+                    }
+
+                    @Override
+                    public void onFinished(DirectoryCrawler crawler) {
+                    }
+                });
+        crawler.await();
+
+        assertEquals(errors.toString(), 0, crawler.getErrors().size());
+        assertEquals(FOLDERS, tasks.size());
+        assertEquals(FOLDERS + 1, crawler.getFolders());
+        //one login per crawler thread, not per folder
+        final int accepted = mServer.getSessionCount() - mServer.getRejectedSessions();
+        assertTrue("accepted sessions:" + accepted, accepted <= 4);
+        assertTrue(mServer.getRejectedSessions() > 0);
+    }
+}
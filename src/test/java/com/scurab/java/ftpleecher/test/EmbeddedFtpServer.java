@@ -0,0 +1,738 @@
+package com.scurab.java.ftpleecher.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal read only FTP server running in process on loopback<br/>
+ * It serves local folder to any user, it knows only commands used by {@link com.scurab.java.ftpleecher.FTPFactory}
+ * and {@link com.scurab.java.ftpleecher.FTPDownloadThread} (PASV/EPSV, REST + RETR, ABOR, LIST, MLSD, SIZE, MDTM).
+ * Every connection is shaped by {@link NetworkConditions}, so slow or broken servers can be simulated locally.
+ */
+public class EmbeddedFtpServer {
+
+    /**
+     * Timeout of waiting for data connection in ms
+     */
+    private static final int DATA_ACCEPT_TIMEOUT = 10000;
+
+    /**
+     * Send buffer of data connection, small buffer keeps shaping close to the wire
+     */
+    private static final int DATA_SEND_BUFFER = 64 * 1024;
+
+    private static final int CHUNK = 16 * 1024;
+
+    private final File mRoot;
+
+    private volatile NetworkConditions mConditions = new NetworkConditions();
+
+    private ServerSocket mServerSocket;
+
+    private volatile boolean mRunning;
+
+    private final Set<Session> mSessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+    //region counters
+    private final AtomicInteger mSessionCount = new AtomicInteger();
+    private final AtomicInteger mActiveSessions = new AtomicInteger();
+    private final AtomicInteger mMaxActiveSessions = new AtomicInteger();
+    private final AtomicInteger mRejectedSessions = new AtomicInteger();
+    private final AtomicInteger mRetrievals = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicInteger mStalls = new AtomicInteger();
+    private final AtomicInteger mResets = new AtomicInteger();
+    //endregion counters
+
+    /**
+     * Budgets of current conditions, they are reset by {@link #setConditions(NetworkConditions)}
+     */
+    private final AtomicInteger mStallsTaken = new AtomicInteger();
+    private final AtomicInteger mResetsTaken = new AtomicInteger();
+    private final AtomicInteger mRejectsTaken = new AtomicInteger();
+
+    public EmbeddedFtpServer(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Start listening on random port of loopback
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            throw new IllegalStateException("Server is already running");
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mRunning = true;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "EmbeddedFtpServer:" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stop listening and close all sessions
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        closeQuietly(mServerSocket);
+        for (Session session : mSessions) {
+            session.close();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public String getHost() {
+        return mServerSocket.getInetAddress().getHostAddress();
+    }
+
+    public NetworkConditions getConditions() {
+        return mConditions;
+    }
+
+    /**
+     * Set shaping of next connections and transfers, already running transfers keep their conditions
+     *
+     * @param conditions
+     */
+    public void setConditions(NetworkConditions conditions) {
+        mConditions = conditions != null ? conditions : new NetworkConditions();
+        mStallsTaken.set(0);
+        mResetsTaken.set(0);
+        mRejectsTaken.set(0);
+    }
+
+    /**
+     * Reset all counters
+     */
+    public void resetCounters() {
+        mSessionCount.set(0);
+        mMaxActiveSessions.set(mActiveSessions.get());
+        mRejectedSessions.set(0);
+        mRetrievals.set(0);
+        mBytesSent.set(0);
+        mStalls.set(0);
+        mResets.set(0);
+    }
+
+    /**
+     * Get count of accepted control connections incl. rejected ones
+     *
+     * @return
+     */
+    public int getSessionCount() {
+        return mSessionCount.get();
+    }
+
+    public int getActiveSessions() {
+        return mActiveSessions.get();
+    }
+
+    public int getMaxActiveSessions() {
+        return mMaxActiveSessions.get();
+    }
+
+    /**
+     * Get count of sessions rejected by 421
+     *
+     * @return
+     */
+    public int getRejectedSessions() {
+        return mRejectedSessions.get();
+    }
+
+    /**
+     * Get count of RETR commands
+     *
+     * @return
+     */
+    public int getRetrievals() {
+        return mRetrievals.get();
+    }
+
+    /**
+     * Get count of bytes written into data connections of RETR, listings are not counted
+     *
+     * @return
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public int getStalls() {
+        return mStalls.get();
+    }
+
+    public int getResets() {
+        return mResets.get();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                Socket socket = mServerSocket.accept();
+                Session session = new Session(socket);
+                mSessions.add(session);
+                Thread t = new Thread(session, "EmbeddedFtpServer-session:" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (mRunning) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take one unit of budget
+     *
+     * @param taken  counter of taken units
+     * @param budget
+     * @return true if budget wasn't exhausted
+     */
+    private static boolean take(AtomicInteger taken, int budget) {
+        return budget > 0 && taken.incrementAndGet() <= budget;
+    }
+
+    /**
+     * Sleep, interruption is kept in flag of thread
+     *
+     * @param millis
+     */
+    private static void delay(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {/**/}
+        }
+    }
+
+    /**
+     * Close socket by RST instead of FIN
+     *
+     * @param socket
+     */
+    private static void reset(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {/**/}
+        closeQuietly(socket);
+    }
+
+    private static String formatMdtm(long time) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(new Date(time));
+    }
+
+    /**
+     * One control connection
+     */
+    private class Session implements Runnable {
+
+        private final Socket mControl;
+
+        private Writer mWriter;
+
+        /**
+         * Current folder, always absolute and normalized
+         */
+        private String mCwd = "/";
+
+        private long mRestart;
+
+        private ServerSocket mPassive;
+
+        private volatile Transfer mTransfer;
+
+        Session(Socket control) {
+            mControl = control;
+        }
+
+        @Override
+        public void run() {
+            mSessionCount.incrementAndGet();
+            final int active = mActiveSessions.incrementAndGet();
+            int max;
+            while ((max = mMaxActiveSessions.get()) < active && !mMaxActiveSessions.compareAndSet(max, active)) {
+                //another session changed it
+            }
+            try {
+                mWriter = new OutputStreamWriter(mControl.getOutputStream(), "UTF-8");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(mControl.getInputStream(), "UTF-8"));
+                final NetworkConditions conditions = mConditions;
+                if (take(mRejectsTaken, conditions.rejectSessions)
+                        || (conditions.maxSessions > 0 && active > conditions.maxSessions)) {
+                    mRejectedSessions.incrementAndGet();
+                    reply(421, "Too many connections, try again later");
+                    return;
+                }
+                reply(220, "EmbeddedFtpServer ready");
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!handle(line)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                //client is gone or session was reset
+            } finally {
+                close();
+                mActiveSessions.decrementAndGet();
+                mSessions.remove(this);
+            }
+        }
+
+        void close() {
+            final Transfer transfer = mTransfer;
+            if (transfer != null) {
+                transfer.cancel();
+            }
+            closeQuietly(mPassive);
+            closeQuietly(mControl);
+        }
+
+        /**
+         * Send one line reply, it's delayed by {@link NetworkConditions#rtt}
+         *
+         * @param code
+         * @param text
+         * @throws IOException
+         */
+        void reply(int code, String text) throws IOException {
+            delay(mConditions.rtt);
+            synchronized (this) {
+                mWriter.write(code + " " + text + "\r\n");
+                mWriter.flush();
+            }
+        }
+
+        void replyLines(int code, List<String> lines, String last) throws IOException {
+            delay(mConditions.rtt);
+            StringBuilder sb = new StringBuilder();
+            sb.append(code).append("-").append(lines.get(0)).append("\r\n");
+            for (int i = 1; i < lines.size(); i++) {
+                sb.append(' ').append(lines.get(i)).append("\r\n");
+            }
+            sb.append(code).append(' ').append(last).append("\r\n");
+            synchronized (this) {
+                mWriter.write(sb.toString());
+                mWriter.flush();
+            }
+        }
+
+        /**
+         * Handle one command
+         *
+         * @param line
+         * @return false if session should be closed
+         * @throws IOException
+         */
+        private boolean handle(String line) throws IOException {
+            final int space = line.indexOf(' ');
+            final String cmd = (space < 0 ? line : line.substring(0, space)).trim().toUpperCase(Locale.US);
+            final String arg = space < 0 ? "" : line.substring(space + 1).trim();
+
+            if ("USER".equals(cmd)) {
+                reply(331, "Password required");
+            } else if ("PASS".equals(cmd)) {
+                reply(230, "Logged in");
+            } else if ("SYST".equals(cmd)) {
+                reply(215, "UNIX Type: L8");
+            } else if ("FEAT".equals(cmd)) {
+                List<String> features = new ArrayList<String>();
+                features.add("Features:");
+                features.add("MLST type*;size*;modify*;");
+                features.add("SIZE");
+                features.add("MDTM");
+                features.add("REST STREAM");
+                features.add("UTF8");
+                replyLines(211, features, "End");
+            } else if ("OPTS".equals(cmd) || "TYPE".equals(cmd) || "MODE".equals(cmd) || "STRU".equals(cmd)) {
+                reply(200, cmd + " OK");
+            } else if ("NOOP".equals(cmd)) {
+                reply(200, "NOOP OK");
+            } else if ("PWD".equals(cmd) || "XPWD".equals(cmd)) {
+                reply(257, "\"" + mCwd + "\" is current directory");
+            } else if ("CWD".equals(cmd) || "CDUP".equals(cmd)) {
+                final String path = normalize("CDUP".equals(cmd) ? ".." : arg);
+                if (toFile(path).isDirectory()) {
+                    mCwd = path;
+                    reply(250, "Directory changed to " + path);
+                } else {
+                    reply(550, "No such directory");
+                }
+            } else if ("PASV".equals(cmd) || "EPSV".equals(cmd)) {
+                closeQuietly(mPassive);
+                mPassive = new ServerSocket(0, 1, mControl.getLocalAddress());
+                mPassive.setSoTimeout(DATA_ACCEPT_TIMEOUT);
+                final int port = mPassive.getLocalPort();
+                if ("EPSV".equals(cmd)) {
+                    reply(229, "Entering Extended Passive Mode (|||" + port + "|)");
+                } else {
+                    final String host = mControl.getLocalAddress().getHostAddress().replace('.', ',');
+                    reply(227, String.format("Entering Passive Mode (%s,%s,%s)", host, port >> 8, port & 0xff));
+                }
+            } else if ("SIZE".equals(cmd)) {
+                final File file = toFile(normalize(arg));
+                if (file.isFile()) {
+                    reply(213, String.valueOf(file.length()));
+                } else {
+                    reply(550, "No such file");
+                }
+            } else if ("MDTM".equals(cmd)) {
+                final File file = toFile(normalize(arg));
+                if (file.exists()) {
+                    reply(213, formatMdtm(file.lastModified()));
+                } else {
+                    reply(550, "No such file");
+                }
+            } else if ("REST".equals(cmd)) {
+                try {
+                    mRestart = Long.parseLong(arg);
+                    reply(350, "Restarting at " + mRestart);
+                } catch (NumberFormatException e) {
+                    reply(501, "Invalid offset");
+                }
+            } else if ("RETR".equals(cmd)) {
+                retrieve(normalize(arg));
+            } else if ("LIST".equals(cmd) || "NLST".equals(cmd) || "MLSD".equals(cmd)) {
+                list(cmd, normalize(stripOptions(arg)));
+            } else if ("ABOR".equals(cmd)) {
+                final Transfer transfer = mTransfer;
+                if (transfer != null) {
+                    transfer.cancel();
+                    transfer.await();
+                }
+                reply(226, "ABOR OK");
+            } else if ("QUIT".equals(cmd)) {
+                reply(221, "Bye");
+                return false;
+            } else {
+                reply(502, "Command not implemented");
+            }
+            return true;
+        }
+
+        private void retrieve(String path) throws IOException {
+            final File file = toFile(path);
+            final long offset = mRestart;
+            mRestart = 0;
+            if (!file.isFile()) {
+                reply(550, "No such file");
+                return;
+            }
+            if (mPassive == null) {
+                reply(425, "Use PASV first");
+                return;
+            }
+            FileInputStream input = new FileInputStream(file);
+            if (offset > 0) {
+                input.getChannel().position(offset);
+            }
+            mRetrievals.incrementAndGet();
+            reply(150, "Opening BINARY mode data connection for " + file.getName());
+            startTransfer(input, true);
+        }
+
+        private void list(String cmd, String path) throws IOException {
+            final File folder = toFile(path);
+            if (!folder.exists()) {
+                reply(550, "No such file or directory");
+                return;
+            }
+            if (mPassive == null) {
+                reply(425, "Use PASV first");
+                return;
+            }
+            File[] files = folder.isDirectory() ? folder.listFiles() : new File[]{folder};
+            StringBuilder sb = new StringBuilder();
+            for (File f : files != null ? files : new File[0]) {
+                if ("NLST".equals(cmd)) {
+                    sb.append(f.getName());
+                } else if ("MLSD".equals(cmd)) {
+                    sb.append("type=").append(f.isDirectory() ? "dir" : "file")
+                            .append(";size=").append(f.isDirectory() ? 0 : f.length())
+                            .append(";modify=").append(formatMdtm(f.lastModified()))
+                            .append("; ").append(f.getName());
+                } else {
+                    SimpleDateFormat sdf = new SimpleDateFormat("MMM dd yyyy", Locale.US);
+                    sb.append(f.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--")
+                            .append(" 1 ftp ftp ").append(f.isDirectory() ? 0 : f.length())
+                            .append(' ').append(sdf.format(new Date(f.lastModified())))
+                            .append(' ').append(f.getName());
+                }
+                sb.append("\r\n");
+            }
+            reply(150, "Opening ASCII mode data connection for file list");
+            startTransfer(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), false);
+        }
+
+        private void startTransfer(InputStream source, boolean retrieval) {
+            final Transfer transfer = new Transfer(this, mPassive, source, retrieval, mConditions);
+            mPassive = null;
+            mTransfer = transfer;
+            Thread t = new Thread(transfer, "EmbeddedFtpServer-transfer:" + mControl.getPort());
+            t.setDaemon(true);
+            transfer.mThread = t;
+            t.start();
+        }
+
+        private void onTransferFinished(Transfer transfer) {
+            if (mTransfer == transfer) {
+                mTransfer = null;
+            }
+        }
+
+        /**
+         * Drop whole session without FIN
+         */
+        private void resetSession() {
+            reset(mControl);
+        }
+
+        private String stripOptions(String arg) {
+            //ignore ls options like -a
+            while (arg.startsWith("-")) {
+                final int space = arg.indexOf(' ');
+                arg = space < 0 ? "" : arg.substring(space + 1).trim();
+            }
+            return arg;
+        }
+
+        /**
+         * Resolve path against current folder
+         *
+         * @param path
+         * @return absolute path without . and ..
+         */
+        private String normalize(String path) {
+            final String full = path.startsWith("/") ? path : mCwd + "/" + path;
+            List<String> segments = new ArrayList<String>();
+            for (String s : full.split("/")) {
+                if (s.length() == 0 || ".".equals(s)) {
+                    continue;
+                }
+                if ("..".equals(s)) {
+                    if (!segments.isEmpty()) {
+                        segments.remove(segments.size() - 1);
+                    }
+                } else {
+                    segments.add(s);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String s : segments) {
+                sb.append('/').append(s);
+            }
+            return sb.length() == 0 ? "/" : sb.toString();
+        }
+
+        private File toFile(String path) {
+            return new File(mRoot, path.substring(1));
+        }
+    }
+
+    /**
+     * One data transfer, it runs in own thread so control connection can receive ABOR
+     */
+    private class Transfer implements Runnable {
+
+        private final Session mSession;
+        private final ServerSocket mPassive;
+        private final InputStream mSource;
+        /**
+         * True for RETR, only retrievals are counted and can be stalled or reset
+         */
+        private final boolean mRetrieval;
+        private final NetworkConditions mConditions;
+
+        private volatile Socket mData;
+        private volatile boolean mCancelled;
+        private volatile Thread mThread;
+
+        Transfer(Session session, ServerSocket passive, InputStream source, boolean retrieval, NetworkConditions conditions) {
+            mSession = session;
+            mPassive = passive;
+            mSource = source;
+            mRetrieval = retrieval;
+            mConditions = conditions;
+        }
+
+        @Override
+        public void run() {
+            boolean complete = false;
+            try {
+                complete = send();
+            } catch (IOException e) {
+                //client closed data connection
+            } finally {
+                closeQuietly(mSource);
+                closeQuietly(mData);
+                closeQuietly(mPassive);
+                mSession.onTransferFinished(this);
+            }
+            if (!mSession.mControl.isClosed()) {
+                try {
+                    //interruption by ABOR mustn't skip final reply
+                    Thread.interrupted();
+                    if (complete) {
+                        mSession.reply(226, "Transfer complete");
+                    } else {
+                        mSession.reply(426, "Connection closed; transfer aborted");
+                    }
+                } catch (IOException e) {/**/}
+            }
+        }
+
+        /**
+         * Copy source into data connection
+         *
+         * @return true if everything was sent, false if transfer was cancelled or reset
+         * @throws IOException
+         */
+        private boolean send() throws IOException {
+            final NetworkConditions c = mConditions;
+            final Socket data = mPassive.accept();
+            mData = data;
+            if (mCancelled) {
+                return false;
+            }
+            data.setSendBufferSize(DATA_SEND_BUFFER);
+            delay(c.rtt);
+
+            //budget is taken only by transfers which reach point of failure
+            boolean stall = mRetrieval && c.stalls > 0;
+            boolean reset = mRetrieval && c.resets > 0;
+            final OutputStream out = data.getOutputStream();
+            final byte[] buffer = new byte[CHUNK];
+            final long start = System.nanoTime();
+            long sent = 0;
+            while (!mCancelled && !Thread.currentThread().isInterrupted()) {
+                if (reset && sent >= c.resetAfter) {
+                    reset = false;
+                    if (take(mResetsTaken, c.resets)) {
+                        mResets.incrementAndGet();
+                        reset(data);
+                        mSession.resetSession();
+                        return false;
+                    }
+                }
+                if (stall && sent >= c.stallAfter) {
+                    stall = false;
+                    if (take(mStallsTaken, c.stalls)) {
+                        mStalls.incrementAndGet();
+                        try {
+                            Thread.sleep(c.stallMillis > 0 ? c.stallMillis : Long.MAX_VALUE);
+                        } catch (InterruptedException e) {
+                            return false;
+                        }
+                    }
+                }
+                int len = buffer.length;
+                //stop exactly at point of failure
+                if (stall) {
+                    len = (int) Math.min(len, c.stallAfter - sent);
+                }
+                if (reset) {
+                    len = (int) Math.min(len, c.resetAfter - sent);
+                }
+                final int read = mSource.read(buffer, 0, len);
+                if (read == -1) {
+                    out.flush();
+                    return true;
+                }
+                out.write(buffer, 0, read);
+                sent += read;
+                if (mRetrieval) {
+                    mBytesSent.addAndGet(read);
+                }
+                if (c.bandwidth > 0) {
+                    final long ahead = sent * 1000000000L / c.bandwidth - (System.nanoTime() - start);
+                    if (ahead > 1000000) {
+                        delay(ahead / 1000000);
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Stop transfer, waiting or sleeping thread is woken up
+         */
+        void cancel() {
+            mCancelled = true;
+            closeQuietly(mPassive);
+            closeQuietly(mData);
+            final Thread thread = mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Wait for final reply of transfer
+         */
+        void await() {
+            final Thread thread = mThread;
+            if (thread != null && thread != Thread.currentThread()) {
+                try {
+                    thread.join(DATA_ACCEPT_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.FTPContext;
+import com.scurab.java.ftpleecher.FTPFactory;
+import com.scurab.java.ftpleecher.FatalFTPException;
+import com.scurab.java.ftpleecher.ServerKey;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FTPFactoryTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private EmbeddedFtpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new EmbeddedFtpServer(mFolder.newFolder("server"));
+        mServer.start();
+        FTPFactory.getSessionPool().clear();
+    }
+
+    @After
+    public void tearDown() {
+        FTPFactory.getSessionPool().clear();
+        mServer.stop();
+    }
+
+    @Test
+    public void failedListingReleasesPooledSession() throws Exception {
+        FTPContext context = new FTPContext();
+        context.server = mServer.getHost();
+        context.port = mServer.getPort();
+        context.username = "test";
+        context.password = "test";
+        context.reuseSessions = true;
+        FTPFile file = new FTPFile();
+        file.setName("missing");
+
+        try {
+            new FTPFactory(context).createTask(file, "/missing", mFolder.newFolder("client").getAbsolutePath());
+            fail("Missing file must not be listed");
+        } catch (FatalFTPException e) {
+            //expected
+        }
+
+        assertEquals(0, FTPFactory.getSessionPool().getActiveCount(ServerKey.of(context)));
+    }
+}
@@ -0,0 +1,89 @@
+package com.scurab.java.ftpleecher.test;
+
+/**
+ * Shaping of connections of {@link EmbeddedFtpServer}<br/>
+ * Every value is disabled by 0, conditions can be replaced while server is running,
+ * see {@link EmbeddedFtpServer#setConditions(NetworkConditions)}.
+ */
+public class NetworkConditions {
+
+    /**
+     * Max speed of one data connection in bytes per second
+     */
+    public long bandwidth = 0;
+
+    /**
+     * Added round trip time in ms.<br/>
+     * Every reply of control connection and first byte of every data connection is delayed by it.
+     */
+    public long rtt = 0;
+
+    /**
+     * Count of transfers which stall, they stop sending after {@link #stallAfter} bytes
+     */
+    public int stalls = 0;
+
+    public long stallAfter = 0;
+
+    /**
+     * Duration of stall in ms, 0 to stall until client aborts transfer
+     */
+    public long stallMillis = 0;
+
+    /**
+     * Count of transfers which are reset after {@link #resetAfter} bytes.<br/>
+     * Reset drops data and control connection without FIN, client sees broken session.
+     */
+    public int resets = 0;
+
+    public long resetAfter = 0;
+
+    /**
+     * Max count of concurrent sessions, another session is rejected by 421
+     */
+    public int maxSessions = 0;
+
+    /**
+     * Count of first sessions which are rejected by 421 regardless of {@link #maxSessions}
+     */
+    public int rejectSessions = 0;
+
+    public NetworkConditions setBandwidth(long bytesPerSec) {
+        bandwidth = bytesPerSec;
+        return this;
+    }
+
+    public NetworkConditions setRtt(long millis) {
+        rtt = millis;
+        return this;
+    }
+
+    public NetworkConditions setStalls(int count, long after, long millis) {
+        stalls = count;
+        stallAfter = after;
+        stallMillis = millis;
+        return this;
+    }
+
+    public NetworkConditions setResets(int count, long after) {
+        resets = count;
+        resetAfter = after;
+        return this;
+    }
+
+    public NetworkConditions setMaxSessions(int value) {
+        maxSessions = value;
+        return this;
+    }
+
+    public NetworkConditions setRejectSessions(int count) {
+        rejectSessions = count;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bandwidth:%s rtt:%s stalls:%s@%s/%sms resets:%s@%s maxSessions:%s rejectSessions:%s",
+                bandwidth, rtt, stalls, stallAfter, stallMillis, resets, resetAfter, maxSessions, rejectSessions);
+    }
+}
@@ -0,0 +1,434 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.FTPContext;
+import com.scurab.java.ftpleecher.FTPDownloadThread;
+import com.scurab.java.ftpleecher.FTPLeechMaster;
+import com.scurab.java.ftpleecher.FTPSettings;
+import com.scurab.java.ftpleecher.ServerKey;
+import com.scurab.java.ftpleecher.StallWatchdog;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replay of generated workload in virtual time to compare scheduling and retry policies<br/>
+ * Real {@link FTPLeechMaster}, {@link FTPDownloadThread} state machine and {@link com.scurab.java.ftpleecher.DownloadTask}
+ * are driven by {@link SimulationEngine} against {@link SimulatedServer}s, nothing is downloaded or written.
+ * Same seed gives same result, so policies can be compared on makespan and tail latency of tasks.
+ * Merge is modelled only as serial cost per task, see {@link SimulatedDownloadTask}, tasks don't compete for disk.
+ * Arguments: [parts] [hours of arrivals] [seed] [verbose]
+ */
+public class SchedulerSimulation {
+
+    /**
+     * Virtual time limit of one run in ms, the rest of queue is reported as unfinished
+     */
+    private static final long TIME_LIMIT = 14L * 24 * 3600 * 1000;
+
+    private static final long MIN_FILE = 100 * 1024;
+
+    private static final long MAX_FILE = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * Default merge speed in bytes per second, ig. local disk
+     */
+    public static final long MERGE_BANDWIDTH = 100000000;
+
+    /**
+     * Scheduling and retry settings under test, every value is applied before queue is enqueued
+     */
+    public static class Policy {
+        public final String name;
+        public int workingThreads = 4;
+        public long pieceLength = new FTPSettings().globalPieceLength;
+        public long retryDelay = FTPDownloadThread.DEFAULT_WAIT;
+        public int fatalErrorsToStop = FTPDownloadThread.DEFAULT_FATAL_ERRORS;
+        /**
+         * Max count of connections per server, 0 for global limit only
+         */
+        public int serverConnections = 0;
+        public boolean dynamicSplitting = false;
+        public boolean endgame = false;
+        public boolean watchdog = false;
+        /**
+         * Merge speed of one task in bytes per second, 0 for immediate merge
+         */
+        public long mergeBandwidth = MERGE_BANDWIDTH;
+
+        public Policy(String name) {
+            this.name = name;
+        }
+
+        public Policy setWorkingThreads(int value) {
+            workingThreads = value;
+            return this;
+        }
+
+        public Policy setPieceLength(long value) {
+            pieceLength = value;
+            return this;
+        }
+
+        public Policy setRetry(long delay, int fatalErrorsToStop) {
+            retryDelay = delay;
+            this.fatalErrorsToStop = fatalErrorsToStop;
+            return this;
+        }
+
+        public Policy setServerConnections(int value) {
+            serverConnections = value;
+            return this;
+        }
+
+        public Policy setStealing(boolean dynamicSplitting, boolean endgame) {
+            this.dynamicSplitting = dynamicSplitting;
+            this.endgame = endgame;
+            return this;
+        }
+
+        public Policy setWatchdog(boolean value) {
+            watchdog = value;
+            return this;
+        }
+
+        public Policy setMergeBandwidth(long bytesPerSec) {
+            mergeBandwidth = bytesPerSec;
+            return this;
+        }
+    }
+
+    /**
+     * Remote file of workload
+     */
+    public static class RemoteFile {
+        public final int server;
+        public final long size;
+        /**
+         * Time of enqueue in virtual ms
+         */
+        public final long arrival;
+
+        public RemoteFile(int server, long size, long arrival) {
+            this.server = server;
+            this.size = size;
+            this.arrival = arrival;
+        }
+    }
+
+    public static class Result {
+        public final Policy policy;
+        public int tasks;
+        public int unfinished;
+        public int parts;
+        public int failedParts;
+        public long makespan;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+        public long attempts;
+        public long failures;
+        public long refusals;
+        public long wastedBytes;
+        public long events;
+        public long wallMillis;
+        /**
+         * Connection limits of servers in master at the end, 0 if there is no limit
+         */
+        public int[] limits;
+
+        Result(Policy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Get result without wall time, it's same for same seed
+         *
+         * @return
+         */
+        String getDigest() {
+            return String.format("%s %s %s %s %s %s %s %s %s %s %s %s %s", tasks, unfinished, parts, failedParts, makespan,
+                    p50, p90, p99, max, attempts, failures, refusals, wastedBytes) + " " + events;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s makespan:%9s p50:%8s p90:%8s p99:%8s max:%8s unfinished:%3s parts:%6s failed:%3s attempts:%6s errors:%5s refused:%5s wasted:%7sMB limits:%s events:%8s wall:%5sms",
+                    policy.name, seconds(makespan), seconds(p50), seconds(p90), seconds(p99), seconds(max), unfinished, parts,
+                    failedParts, attempts, failures, refusals, wastedBytes / (1024 * 1024), Arrays.toString(limits), events, wallMillis);
+        }
+
+        private static String seconds(long millis) {
+            return (millis / 1000) + "s";
+        }
+    }
+
+    /**
+     * Create servers of default workload, they have to be created for every run, they keep sessions and counters
+     *
+     * @return
+     */
+    public static List<SimulatedServer> createServers() {
+        List<SimulatedServer> result = new ArrayList<SimulatedServer>();
+        result.add(new SimulatedServer("fast", 50000000).setConnectionBandwidth(10000000).setLatency(50, 100)
+                .setMaxSessions(8).setFailures(0.02, 0));
+        result.add(new SimulatedServer("slow", 5000000).setConnectionBandwidth(1000000).setLatency(200, 400)
+                .setMaxSessions(4).setFailures(0.05, 0).setSlowTransfers(0.05, 0.05));
+        result.add(new SimulatedServer("flaky", 20000000).setConnectionBandwidth(4000000).setLatency(100, 300)
+                .setMaxSessions(6).setFailures(0.15, 0.01).setSlowTransfers(0.1, 0.05));
+        result.add(new SimulatedServer("capped", 30000000).setConnectionBandwidth(5000000).setLatency(80, 150)
+                .setMaxSessions(2).setFailures(0.01, 0));
+        return result;
+    }
+
+    /**
+     * Create default policies
+     *
+     * @return
+     */
+    public static List<Policy> createPolicies() {
+        List<Policy> result = new ArrayList<Policy>();
+        result.add(new Policy("default"));
+        result.add(new Policy("threads8").setWorkingThreads(8));
+        result.add(new Policy("threads16").setWorkingThreads(16));
+        result.add(new Policy("capped").setWorkingThreads(16).setServerConnections(4));
+        result.add(new Policy("piece5M").setWorkingThreads(16).setPieceLength(5000000));
+        result.add(new Policy("piece50M").setWorkingThreads(16).setPieceLength(50000000));
+        result.add(new Policy("retry2s").setWorkingThreads(16).setRetry(2000, FTPDownloadThread.DEFAULT_FATAL_ERRORS));
+        result.add(new Policy("retry60s").setWorkingThreads(16).setRetry(60000, 10));
+        result.add(new Policy("stealing").setWorkingThreads(16).setStealing(true, true));
+        result.add(new Policy("watchdog").setWorkingThreads(16).setStealing(true, true).setWatchdog(true));
+        result.add(new Policy("noMerge").setWorkingThreads(16).setMergeBandwidth(0));
+        return result;
+    }
+
+    /**
+     * Generate files with log uniform size and arrivals spread uniformly over time
+     *
+     * @param parts       count of parts of default piece length, workload is generated until it's reached
+     * @param servers     count of servers
+     * @param arrivalSpan time of arrivals in ms, 0 for everything at start
+     * @param seed
+     * @return files ordered by arrival
+     */
+    public static List<RemoteFile> createWorkload(int parts, int servers, long arrivalSpan, long seed) {
+        final Random random = new Random(seed);
+        final long pieceLength = new FTPSettings().globalPieceLength;
+        final double min = Math.log(MIN_FILE);
+        final double max = Math.log(MAX_FILE);
+        List<RemoteFile> result = new ArrayList<RemoteFile>();
+        int count = 0;
+        while (count < parts) {
+            final long size = (long) Math.exp(min + random.nextDouble() * (max - min));
+            final long arrival = arrivalSpan > 0 ? (long) (random.nextDouble() * arrivalSpan) : 0;
+            result.add(new RemoteFile(random.nextInt(servers), size, arrival));
+            count += (int) Math.ceil(size / (double) pieceLength);
+        }
+        Collections.sort(result, new Comparator<RemoteFile>() {
+            @Override
+            public int compare(RemoteFile o1, RemoteFile o2) {
+                return o1.arrival < o2.arrival ? -1 : (o1.arrival == o2.arrival ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Run workload with policy against servers of {@link #createServers()}
+     *
+     * @param policy
+     * @param workload see {@link #createWorkload(int, int, long, long)}
+     * @param seed     seed of failures
+     * @return
+     */
+    public static Result run(Policy policy, List<RemoteFile> workload, long seed) {
+        return run(policy, workload, createServers(), seed);
+    }
+
+    /**
+     * Run workload with policy
+     *
+     * @param policy
+     * @param workload see {@link #createWorkload(int, int, long, long)}
+     * @param servers  new servers, {@link RemoteFile#server} is index in this list
+     * @param seed     seed of failures
+     * @return
+     */
+    public static Result run(Policy policy, List<RemoteFile> workload, List<SimulatedServer> servers, long seed) {
+        final long start = System.currentTimeMillis();
+        final Result result = new Result(policy);
+        final SimulationEngine engine = new SimulationEngine();
+        final Random random = new Random(seed);
+        final FTPLeechMaster master = new FTPLeechMaster(engine, engine);
+        master.setWorkingThreads(policy.workingThreads);
+        if (policy.watchdog) {
+            master.setStallWatchdog(new StallWatchdog());
+        }
+
+        FTPContext template = new FTPContext();
+        template.globalPieceLength = policy.pieceLength;
+        template.retryDelay = policy.retryDelay;
+        template.fatalErrorsToStop = policy.fatalErrorsToStop;
+        template.dynamicSplitting = policy.dynamicSplitting;
+        template.endgame = policy.endgame;
+        template.outputDirectory = "sim";
+        for (SimulatedServer server : servers) {
+            FTPContext context = template.clone();
+            server.configure(context);
+            master.setServerConnections(ServerKey.of(context), policy.serverConnections);
+        }
+
+        final List<SimulatedDownloadTask> tasks = new ArrayList<SimulatedDownloadTask>(workload.size());
+        long group = 0;
+        for (RemoteFile file : workload) {
+            final SimulatedServer server = servers.get(file.server);
+            FTPContext context = template.clone();
+            server.configure(context);
+            context.groupId = ++group;
+            context.remoteFullPath = "/" + server.name + "/" + group + ".bin";
+            final SimulatedDownloadTask task = createTask(context, file.size, server, engine, random, policy.mergeBandwidth);
+            tasks.add(task);
+            engine.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    task.onEnqueued();
+                    master.enqueue(task);
+                }
+            }, file.arrival);
+        }
+
+        engine.run(TIME_LIMIT);
+        result.limits = new int[servers.size()];
+        for (int i = 0; i < result.limits.length; i++) {
+            FTPContext context = template.clone();
+            servers.get(i).configure(context);
+            result.limits[i] = master.getServerConnections(ServerKey.of(context));
+        }
+        master.shutdown();
+        engine.shutdown();
+
+        List<Long> latencies = new ArrayList<Long>(tasks.size());
+        long useful = 0;
+        for (SimulatedDownloadTask task : tasks) {
+            result.tasks++;
+            final long latency = task.getLatency();
+            if (latency < 0) {
+                result.unfinished++;
+            } else {
+                latencies.add(latency);
+                result.makespan = Math.max(result.makespan, task.getFinished());
+            }
+            for (FTPDownloadThread t : task.getData()) {
+                result.parts++;
+                if (t.getFtpState() == FTPDownloadThread.State.FatalError) {
+                    result.failedParts++;
+                }
+                useful += Math.min(t.getDownloaded(), t.getContext().currentPieceLength);
+            }
+        }
+        for (int i = 0, n = master.size(); i < n; i++) {
+            result.attempts += ((SimulatedDownloadThread) master.getItem(i)).getAttempts();
+        }
+        long transferred = 0;
+        for (SimulatedServer server : servers) {
+            result.failures += server.getFailures() + server.getFatalErrors();
+            result.refusals += server.getRefusals();
+            transferred += server.getTransferred();
+        }
+        result.wastedBytes = transferred - useful;
+
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        result.p50 = percentile(sorted, 0.5);
+        result.p90 = percentile(sorted, 0.9);
+        result.p99 = percentile(sorted, 0.99);
+        result.max = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+        result.events = engine.getExecuted();
+        result.wallMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Create task for file same way as {@link com.scurab.java.ftpleecher.FTPFactory} does
+     *
+     * @param config context with server, group and remote path
+     * @param size
+     * @return
+     */
+    private static SimulatedDownloadTask createTask(FTPContext config, long size, SimulatedServer server,
+                                                    SimulationEngine engine, Random random, long mergeBandwidth) {
+        List<FTPDownloadThread> result = new ArrayList<FTPDownloadThread>();
+        final int parts = (int) Math.ceil((size / (double) config.globalPieceLength));
+        config.parts = parts;
+        config.fileSize = size;
+        config.fileName = config.groupId + ".bin";
+        if (parts > 1) {
+            for (int i = 0; i < parts; i++) {
+                FTPContext fc = config.clone();
+                fc.part = i;
+                fc.offset = (long) i * config.globalPieceLength;
+                fc.currentPieceLength = Math.min(config.globalPieceLength, size - fc.offset);
+                result.add(new SimulatedDownloadThread(fc, server, engine, random));
+            }
+        } else {
+            config.currentPieceLength = size;
+            result.add(new SimulatedDownloadThread(config, server, engine, random));
+        }
+        return new SimulatedDownloadTask(result, engine, mergeBandwidth);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args) {
+        final int parts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final long hours = args.length > 1 ? Long.parseLong(args[1]) : 24;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        final boolean verbose = args.length > 3 && "verbose".equals(args[3]);
+
+        final List<RemoteFile> workload = createWorkload(parts, createServers().size(), hours * 3600 * 1000, seed);
+        long size = 0;
+        for (RemoteFile file : workload) {
+            size += file.size;
+        }
+        final PrintStream out = System.out;
+        final PrintStream err = System.err;
+        out.println(String.format("Workload: files:%s size:%sGB arrivals:%sh seed:%s", workload.size(),
+                size / (1024 * 1024 * 1024), hours, seed));
+        out.println(String.format("Merge: serial per task at %sMB/s, tasks don't compete for disk", MERGE_BANDWIDTH / 1000000));
+
+        List<Result> results = new ArrayList<Result>();
+        try {
+            if (!verbose) {
+                //every part logs its progress and errors
+                PrintStream silent = new PrintStream(new NullOutputStream());
+                System.setOut(silent);
+                System.setErr(silent);
+            }
+            for (Policy policy : createPolicies()) {
+                final Result result = run(policy, workload, seed);
+                results.add(result);
+                out.println(result);
+            }
+            //same seed must give same result
+            final Result again = run(results.get(0).policy, workload, seed);
+            out.println("Deterministic: " + again.getDigest().equals(results.get(0).getDigest()));
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.scurab.java.ftpleecher.test;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerSimulationTest {
+
+    private static final long SEED = 42;
+
+    private static List<SimulatedServer> createServer(int rejectSessions) {
+        return Collections.singletonList(new SimulatedServer("single", 20000000).setConnectionBandwidth(5000000)
+                .setLatency(50, 100).setRejectSessions(rejectSessions));
+    }
+
+    @Test
+    public void sameSeedGivesSameResult() {
+        List<SchedulerSimulation.RemoteFile> workload = SchedulerSimulation.createWorkload(2000, 4, 3600 * 1000, SEED);
+        SchedulerSimulation.Policy policy = new SchedulerSimulation.Policy("default").setWorkingThreads(8);
+
+        SchedulerSimulation.Result first = SchedulerSimulation.run(policy, workload, SEED);
+        SchedulerSimulation.Result second = SchedulerSimulation.run(policy, workload, SEED);
+
+        assertEquals(first.getDigest(), second.getDigest());
+        assertTrue(first.makespan > 0);
+    }
+
+    @Test
+    public void limitRecoversAfterTransientRefusals() {
+        List<SchedulerSimulation.RemoteFile> workload = SchedulerSimulation.createWorkload(200, 1, 0, SEED);
+        SchedulerSimulation.Policy policy = new SchedulerSimulation.Policy("reject").setWorkingThreads(4);
+
+        SchedulerSimulation.Result result = SchedulerSimulation.run(policy, workload, createServer(3), SEED);
+
+        assertEquals(result.toString(), 3, result.refusals);
+        assertEquals(result.toString(), 0, result.unfinished);
+        assertEquals(result.toString(), 0, result.failedParts);
+        //burst of refusals lowered limit, accepted sessions raised it back to working threads
+        assertTrue(result.toString(), result.limits[0] >= policy.workingThreads);
+    }
+
+    @Test
+    public void mergeCostDelaysTasks() {
+        List<SchedulerSimulation.RemoteFile> workload = SchedulerSimulation.createWorkload(200, 1, 0, SEED);
+        SchedulerSimulation.Policy immediate = new SchedulerSimulation.Policy("noMerge").setMergeBandwidth(0);
+        SchedulerSimulation.Policy slow = new SchedulerSimulation.Policy("slowMerge").setMergeBandwidth(1000000);
+
+        SchedulerSimulation.Result withoutMerge = SchedulerSimulation.run(immediate, workload, createServer(0), SEED);
+        SchedulerSimulation.Result withMerge = SchedulerSimulation.run(slow, workload, createServer(0), SEED);
+
+        assertEquals(0, withMerge.unfinished);
+        assertTrue(withMerge + " vs " + withoutMerge, withMerge.makespan > withoutMerge.makespan);
+    }
+}
@@ -0,0 +1,93 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.DownloadTask;
+import com.scurab.java.ftpleecher.FTPDownloadThread;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Task of {@link SchedulerSimulation}, merge of downloaded part takes its length / merge bandwidth of virtual time<br/>
+ * Parts of one task are merged one by one like in merge loop of {@link DownloadTask}, but in order of download
+ * and tasks don't share disk. Time of enqueue and finish is taken from virtual clock for latency of task.
+ */
+public class SimulatedDownloadTask extends DownloadTask {
+
+    private final SimulationEngine mEngine;
+
+    /**
+     * Merge speed in bytes per second, 0 for immediate merge
+     */
+    private final long mMergeBandwidth;
+
+    /**
+     * Virtual time when merge of already taken parts ends
+     */
+    private long mMergedUntil;
+
+    private long mEnqueued;
+
+    private long mFinished = -1;
+
+    /**
+     * Downloaded parts waiting for merge
+     */
+    private final List<FTPDownloadThread> mDownloaded = new ArrayList<FTPDownloadThread>();
+
+    private int mFinishedParts;
+
+    public SimulatedDownloadTask(Collection<FTPDownloadThread> data, SimulationEngine engine, long mergeBandwidth) {
+        super(data);
+        mEngine = engine;
+        mMergeBandwidth = mergeBandwidth;
+    }
+
+    @Override
+    public void onMergeFiles() {
+        //there is no file, order of merging doesn't matter
+        while (!mDownloaded.isEmpty()) {
+            final SimulatedDownloadThread thread = (SimulatedDownloadThread) mDownloaded.remove(0);
+            if (mMergeBandwidth <= 0) {
+                thread.onMerged();
+                continue;
+            }
+            final long now = mEngine.currentTimeMillis();
+            mMergedUntil = Math.max(now, mMergedUntil) + thread.getContext().currentPieceLength * 1000 / mMergeBandwidth;
+            mEngine.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    thread.onMerged();
+                }
+            }, mMergedUntil - now);
+        }
+    }
+
+    @Override
+    public void onStatusChange(FTPDownloadThread source, FTPDownloadThread.State state) {
+        //every part is counted once, scanning of all parts would be quadratic for big files
+        if (state == FTPDownloadThread.State.Downloaded) {
+            mDownloaded.add(source);
+        } else if (state == FTPDownloadThread.State.Finished && ++mFinishedParts == getData().size()) {
+            mFinished = mEngine.currentTimeMillis();
+        }
+        super.onStatusChange(source, state);
+    }
+
+    void onEnqueued() {
+        mEnqueued = mEngine.currentTimeMillis();
+    }
+
+    /**
+     * Get time from enqueue to finish of last part
+     *
+     * @return latency in ms, -1 if task isn't finished
+     */
+    public long getLatency() {
+        return mFinished < 0 ? -1 : mFinished - mEnqueued;
+    }
+
+    public long getFinished() {
+        return mFinished;
+    }
+}
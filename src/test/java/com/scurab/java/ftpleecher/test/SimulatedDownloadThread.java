@@ -0,0 +1,179 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.Clock;
+import com.scurab.java.ftpleecher.FTPContext;
+import com.scurab.java.ftpleecher.FTPDownloadThread;
+import com.scurab.java.ftpleecher.FatalFTPException;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Download part transferring nothing, time of every phase is taken from {@link SimulatedServer}<br/>
+ * Attempt doesn't block, every phase is continuation of attempt scheduled by {@link #continueAfter(long)},
+ * so state machine of {@link FTPDownloadThread} incl. retries, preemption, splitting and hedging is the real one.
+ */
+public class SimulatedDownloadThread extends FTPDownloadThread {
+
+    /**
+     * Max step of transfer in ms, speed of transfer is updated after every step
+     */
+    static final long STEP = 1000;
+
+    private final SimulatedServer mServer;
+
+    private final Clock mClock;
+
+    private final Random mRandom;
+
+    private boolean mSession;
+
+    private boolean mTransfer;
+
+    /**
+     * Current attempt is slow, see {@link SimulatedServer#slowRate}
+     */
+    private boolean mSlow;
+
+    /**
+     * Bytes of current attempt when it breaks, -1 if it doesn't
+     */
+    private long mFailAt;
+
+    private long mAttemptBytes;
+
+    private long mLastStep;
+
+    /**
+     * Speed since last step in bytes per second, share of server is updated at every step
+     */
+    private long mStepSpeed;
+
+    private int mAttempts;
+
+    public SimulatedDownloadThread(FTPContext config, SimulatedServer server, Clock clock, Random random) {
+        super(config);
+        mServer = server;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    @Override
+    protected void downloadImpl() {
+        final State state = getFtpState();
+        if (state == State.Started) {
+            connect();
+        } else if (state == State.Connecting) {
+            request();
+        } else if (state == State.Connected) {
+            mTransfer = true;
+            mServer.onTransferStarted();
+            mAttemptBytes = 0;
+            mLastStep = mClock.currentTimeMillis();
+            mStepSpeed = 0;
+            onTransferStarted();
+            step();
+        } else if (state == State.Downloading) {
+            step();
+        }
+    }
+
+    private void connect() {
+        mAttempts++;
+        //like real part, attempt is connecting before server replies
+        setFtpState(State.Connecting);
+        if (!mServer.openSession()) {
+            onAttemptFailed(new FatalFTPException(FTPReply.SERVICE_NOT_AVAILABLE, "Too many connections"));
+            return;
+        }
+        mSession = true;
+        continueAfter(mServer.connectMillis);
+    }
+
+    private void request() {
+        setFtpState(State.Connected);
+        if (mServer.fatalRate > 0 && mRandom.nextDouble() < mServer.fatalRate) {
+            close();
+            mServer.onFailure(true);
+            onAttemptFailed(new FatalFTPException(FTPReply.FILE_UNAVAILABLE, "Simulated fatal error"));
+            return;
+        }
+        final long remaining = getContext().currentPieceLength - getDownloaded();
+        mFailAt = mServer.failureRate > 0 && mRandom.nextDouble() < mServer.failureRate
+                ? (long) (mRandom.nextDouble() * remaining) : -1;
+        mSlow = mServer.slowRate > 0 && mRandom.nextDouble() < mServer.slowRate;
+        continueAfter(mServer.firstByteMillis);
+    }
+
+    /**
+     * Count data transferred since last step and plan next one
+     */
+    private void step() {
+        final long now = mClock.currentTimeMillis();
+        long bytes = mStepSpeed * (now - mLastStep) / 1000;
+        mLastStep = now;
+        final boolean broken = mFailAt >= 0 && mAttemptBytes + bytes >= mFailAt;
+        if (broken) {
+            bytes = mFailAt - mAttemptBytes;
+        }
+        mAttemptBytes += bytes;
+        mServer.onTransferred(bytes);
+        final long speed = mServer.getSpeed(mSlow);
+        mStepSpeed = speed;
+        final boolean stop = onTransferred(bytes, (int) Math.min(Integer.MAX_VALUE, speed));
+        if (stop) {
+            close();
+            onTransferStopped();
+            return;
+        }
+        if (broken) {
+            close();
+            mServer.onFailure(false);
+            onAttemptFailed(new IOException("Simulated connection reset"));
+            return;
+        }
+        long left = getContext().currentPieceLength - getDownloaded();
+        if (mFailAt >= 0) {
+            left = Math.min(left, mFailAt - mAttemptBytes);
+        }
+        //round up, step must transfer at least one byte
+        final long millis = (left * 1000 + speed - 1) / speed;
+        continueAfter(Math.max(1, Math.min(STEP, millis)));
+    }
+
+    /**
+     * Release transfer and session of current attempt
+     */
+    private void close() {
+        if (mTransfer) {
+            mTransfer = false;
+            mServer.onTransferStopped();
+        }
+        if (mSession) {
+            mSession = false;
+            mServer.closeSession();
+        }
+    }
+
+    /**
+     * Merge of simulated part is done, see {@link SimulatedDownloadTask#onMergeFiles()}
+     */
+    void onMerged() {
+        setFtpState(State.Finished);
+    }
+
+    @Override
+    protected FTPDownloadThread createSplitThread(FTPContext context) {
+        return new SimulatedDownloadThread(context, mServer, mClock, mRandom);
+    }
+
+    /**
+     * Get count of attempts incl. refused ones
+     *
+     * @return
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
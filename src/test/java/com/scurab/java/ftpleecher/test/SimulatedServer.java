@@ -0,0 +1,201 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.FTPContext;
+
+/**
+ * Model of FTP server for {@link SchedulerSimulation}<br/>
+ * Bandwidth of server is shared fairly by running transfers, every transfer can be limited by its connection too.
+ * Failures are drawn per attempt, see {@link SimulatedDownloadThread}. Every value is disabled by 0.
+ */
+public class SimulatedServer {
+
+    public final String name;
+
+    /**
+     * Total bandwidth of server in bytes per second
+     */
+    public long bandwidth;
+
+    /**
+     * Max speed of one transfer in bytes per second
+     */
+    public long connectionBandwidth = 0;
+
+    /**
+     * Time of connect and login in ms
+     */
+    public long connectMillis = 0;
+
+    /**
+     * Time from RETR to first byte in ms
+     */
+    public long firstByteMillis = 0;
+
+    /**
+     * Max count of concurrent sessions, another session is refused by 421
+     */
+    public int maxSessions = 0;
+
+    /**
+     * Count of first sessions refused by 421 regardless of {@link #maxSessions}, ig. transient overload
+     */
+    public int rejectSessions = 0;
+
+    /**
+     * Probability that transfer breaks somewhere in range, it's retried
+     */
+    public double failureRate = 0;
+
+    /**
+     * Probability that attempt is rejected by fatal reply, ig. 550
+     */
+    public double fatalRate = 0;
+
+    /**
+     * Probability that transfer is slow, speed of slow transfer is multiplied by {@link #slowFactor}
+     */
+    public double slowRate = 0;
+
+    public double slowFactor = 0.05;
+
+    private int mSessions;
+
+    private int mTransfers;
+
+    //region counters
+    private long mRefusals;
+    private long mFailures;
+    private long mFatalErrors;
+    private long mTransferred;
+    //endregion counters
+
+    public SimulatedServer(String name, long bandwidth) {
+        this.name = name;
+        this.bandwidth = bandwidth;
+    }
+
+    public SimulatedServer setConnectionBandwidth(long bytesPerSec) {
+        connectionBandwidth = bytesPerSec;
+        return this;
+    }
+
+    public SimulatedServer setLatency(long connectMillis, long firstByteMillis) {
+        this.connectMillis = connectMillis;
+        this.firstByteMillis = firstByteMillis;
+        return this;
+    }
+
+    public SimulatedServer setMaxSessions(int value) {
+        maxSessions = value;
+        return this;
+    }
+
+    public SimulatedServer setRejectSessions(int value) {
+        rejectSessions = value;
+        return this;
+    }
+
+    public SimulatedServer setFailures(double failureRate, double fatalRate) {
+        this.failureRate = failureRate;
+        this.fatalRate = fatalRate;
+        return this;
+    }
+
+    public SimulatedServer setSlowTransfers(double rate, double factor) {
+        slowRate = rate;
+        slowFactor = factor;
+        return this;
+    }
+
+    /**
+     * Fill connection of this server into context
+     *
+     * @param context
+     */
+    public void configure(FTPContext context) {
+        context.server = name;
+        context.port = 21;
+        context.username = "sim";
+        context.password = "sim";
+    }
+
+    /**
+     * Open session
+     *
+     * @return false if session is refused
+     */
+    boolean openSession() {
+        if (mRefusals < rejectSessions || (maxSessions > 0 && mSessions >= maxSessions)) {
+            mRefusals++;
+            return false;
+        }
+        mSessions++;
+        return true;
+    }
+
+    void closeSession() {
+        mSessions--;
+    }
+
+    void onTransferStarted() {
+        mTransfers++;
+    }
+
+    void onTransferStopped() {
+        mTransfers--;
+    }
+
+    void onTransferred(long bytes) {
+        mTransferred += bytes;
+    }
+
+    void onFailure(boolean fatal) {
+        if (fatal) {
+            mFatalErrors++;
+        } else {
+            mFailures++;
+        }
+    }
+
+    /**
+     * Get current speed of one running transfer
+     *
+     * @param slow true if transfer is slow
+     * @return speed in bytes per second
+     */
+    long getSpeed(boolean slow) {
+        long speed = bandwidth / Math.max(1, mTransfers);
+        if (connectionBandwidth > 0) {
+            speed = Math.min(speed, connectionBandwidth);
+        }
+        if (slow) {
+            speed = (long) (speed * slowFactor);
+        }
+        return Math.max(1, speed);
+    }
+
+    public int getSessions() {
+        return mSessions;
+    }
+
+    public long getRefusals() {
+        return mRefusals;
+    }
+
+    public long getFailures() {
+        return mFailures;
+    }
+
+    public long getFatalErrors() {
+        return mFatalErrors;
+    }
+
+    /**
+     * Get transferred bytes incl. data downloaded twice
+     *
+     * @return
+     */
+    public long getTransferred() {
+        return mTransferred;
+    }
+}
@@ -0,0 +1,102 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.Clock;
+import com.scurab.java.ftpleecher.engine.ExecutionEngine;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete event engine running in virtual time<br/>
+ * Tasks are executed one by one in thread calling {@link #run(long)}, time jumps to the next task,
+ * so nothing is waiting really. Tasks with same time run in order of scheduling, so every run is deterministic.
+ * It isn't thread safe, tasks must be scheduled only from tasks or before {@link #run(long)}.
+ */
+public class SimulationEngine implements ExecutionEngine, Clock {
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+
+    private long mNow;
+
+    private long mSequence;
+
+    private long mExecuted;
+
+    @Override
+    public void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mEvents.add(new Event(mNow + Math.max(0, delayMillis), mSequence++, task));
+    }
+
+    @Override
+    public void shutdown() {
+        mEvents.clear();
+    }
+
+    /**
+     * Get virtual time
+     *
+     * @return time in ms from start of simulation
+     */
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    /**
+     * Run tasks until there is nothing to do or until time limit
+     *
+     * @param until time limit in virtual ms
+     * @return true if there is no pending task
+     */
+    public boolean run(long until) {
+        Event event;
+        while ((event = mEvents.peek()) != null) {
+            if (event.time > until) {
+                mNow = until;
+                return false;
+            }
+            mEvents.poll();
+            mNow = event.time;
+            mExecuted++;
+            event.task.run();
+        }
+        return true;
+    }
+
+    /**
+     * Get count of executed tasks
+     *
+     * @return
+     */
+    public long getExecuted() {
+        return mExecuted;
+    }
+
+    public int getPending() {
+        return mEvents.size();
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+
+        Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.scurab.java.ftpleecher.test;
+
+import com.scurab.java.ftpleecher.DownloadTask;
+import com.scurab.java.ftpleecher.FTPContext;
+import com.scurab.java.ftpleecher.FTPDownloadThread;
+import com.scurab.java.ftpleecher.FTPFactory;
+import com.scurab.java.ftpleecher.FTPLeechMaster;
+import com.scurab.java.ftpleecher.ServerKey;
+import com.scurab.java.ftpleecher.StallWatchdog;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End to end throughput checks of {@link FTPFactory} and {@link FTPLeechMaster} against {@link EmbeddedFtpServer}<br/>
+ * Every scenario downloads same folder under different {@link NetworkConditions}, checks content
+ * and compares wall time and wasted bytes (sent by server above size of files) with its budget.
+ * Budgets are about 2x of measured values on loopback, they include {@link FTPDownloadThread#DEFAULT_WAIT}
+ * only for scenarios where parts really wait for retry.
+ */
+public class ThroughputRegressionTest {
+
+    private static final String FOLDER = "data";
+
+    private static final long PIECE_LENGTH = 1000000;
+
+    private static final long BIG_FILE = 8 * PIECE_LENGTH + 1;
+
+    private static final long SMALL_FILE = 123457;
+
+    /**
+     * Max time of one scenario when it's considered as hanging in ms
+     */
+    private static final long HARD_TIMEOUT = 120000;
+
+    /**
+     * Wasted bytes of transfers at full speed, ABOR at end of range lets server send a bit more than range,
+     * up to socket buffers of both sides on loopback
+     */
+    private static final long FULL_SPEED_WASTE = 3 * 1024 * 1024;
+
+    /**
+     * Working threads of master, see {@link FTPLeechMaster#setWorkingThreads(int)}
+     */
+    private static final int WORKING_THREADS = 4;
+
+    private static File sWork;
+
+    private static File sRoot;
+
+    private static File sOutput;
+
+    /**
+     * One measured download
+     */
+    public static class Scenario {
+        public final String name;
+        public final NetworkConditions conditions;
+        /**
+         * Budget of wall time in ms
+         */
+        public final long maxMillis;
+        /**
+         * Budget of bytes sent by server above size of files
+         */
+        public final long maxWastedBytes;
+
+        /**
+         * Preempt stalled parts by {@link StallWatchdog}
+         */
+        public boolean watchdog;
+
+        public Scenario(String name, NetworkConditions conditions, long maxMillis, long maxWastedBytes) {
+            this.name = name;
+            this.conditions = conditions;
+            this.maxMillis = maxMillis;
+            this.maxWastedBytes = maxWastedBytes;
+        }
+
+        /**
+         * Update context before tasks are created
+         *
+         * @param context
+         */
+        protected void configure(FTPContext context) {
+        }
+    }
+
+    public static class Result {
+        public final Scenario scenario;
+        public boolean passed;
+        public long millis;
+        public long wastedBytes;
+        public int sessions;
+        public int rejectedSessions;
+        public int retrievals;
+        public int stalls;
+        public int resets;
+        /**
+         * Connection limit of server in master at the end, 0 if there is no limit
+         */
+        public int limit;
+        public String failure;
+
+        Result(Scenario scenario) {
+            this.scenario = scenario;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %-4s %6sms/%-6s wasted:%9s/%-9s sessions:%3s rejected:%3s RETR:%3s stalls:%s resets:%s limit:%s%s",
+                    scenario.name, passed ? "OK" : "FAIL", millis, scenario.maxMillis, wastedBytes, scenario.maxWastedBytes,
+                    sessions, rejectedSessions, retrievals, stalls, resets, limit, failure != null ? " " + failure : "");
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        sWork = new File(System.getProperty("java.io.tmpdir"), "ftpleecher-regression");
+        sRoot = new File(sWork, "server");
+        sOutput = new File(sWork, "client");
+        createData(sRoot);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        FileUtils.deleteDirectory(sWork);
+    }
+
+    private static Result run(Scenario scenario) throws Exception {
+        System.out.println("Scenario " + scenario.name + ": " + scenario.conditions);
+        Result result = run(scenario, sRoot, sOutput);
+        System.out.println(result);
+        assertTrue(result.toString(), result.passed);
+        return result;
+    }
+
+    @Test
+    public void baseline() throws Exception {
+        run(new Scenario("baseline", new NetworkConditions(), 2000, FULL_SPEED_WASTE));
+    }
+
+    @Test
+    public void rtt() throws Exception {
+        run(new Scenario("rtt", new NetworkConditions().setRtt(50), 4000, 3 * 1024 * 1024));
+    }
+
+    @Test
+    public void bandwidth() throws Exception {
+        run(new Scenario("bandwidth", new NetworkConditions().setBandwidth(1000000), 5000, 512 * 1024));
+    }
+
+    @Test
+    public void stall() throws Exception {
+        //stalled part is timed out by data timeout and retried
+        Result result = run(new Scenario("stall", new NetworkConditions().setBandwidth(2000000).setStalls(1, 300000, 0),
+                FTPDownloadThread.DEFAULT_WAIT + 5000, 512 * 1024));
+        assertEquals(1, result.stalls);
+    }
+
+    @Test
+    public void watchdog() throws Exception {
+        //short stall mustn't end in retry
+        Scenario scenario = new Scenario("watchdog", new NetworkConditions().setBandwidth(2000000).setStalls(1, 300000, 1500),
+                3500, 1024 * 1024);
+        scenario.watchdog = true;
+        run(scenario);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        //resumed parts download again only data which weren't written
+        Result result = run(new Scenario("reset", new NetworkConditions().setBandwidth(2000000).setResets(2, 400000),
+                FTPDownloadThread.DEFAULT_WAIT + 3000, 512 * 1024));
+        assertEquals(2, result.resets);
+    }
+
+    @Test
+    public void maxSessions() throws Exception {
+        final int cap = 2;
+        //refused parts are requeued behind lowered limit, budget is below retry delay of part waiting for retry
+        Result result = run(new Scenario("maxSessions", new NetworkConditions().setMaxSessions(cap),
+                2000, FULL_SPEED_WASTE));
+        //concurrent refusals lower limit only once per try, requeued part can be refused once more before limit settles
+        assertTrue(result.toString(), result.rejectedSessions > 0 && result.rejectedSessions <= 2 * WORKING_THREADS);
+        //limit ends near what server allows, session closed by finished part can be still open on server
+        //and raised limit can be probed once above before next refusal
+        assertTrue(result.toString(), result.limit >= cap - 1 && result.limit <= cap + 1);
+    }
+
+    @Test
+    public void reject421() throws Exception {
+        Result result = run(new Scenario("reject421", new NetworkConditions().setRejectSessions(3),
+                2000, FULL_SPEED_WASTE));
+        assertEquals(3, result.rejectedSessions);
+        //three transient refusals of one burst lower the limit only once
+        assertTrue(result.toString(), result.limit == 0 || result.limit >= WORKING_THREADS - 1);
+    }
+
+    /**
+     * Create served folder
+     *
+     * @param root
+     * @throws IOException
+     */
+    public static void createData(File root) throws IOException {
+        Random random = new Random(42);
+        writeRandom(new File(root, FOLDER + "/big.bin"), BIG_FILE, random);
+        writeRandom(new File(root, FOLDER + "/sub/small.bin"), SMALL_FILE, random);
+    }
+
+    private static void writeRandom(File file, long length, Random random) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            for (long written = 0; written < length; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Run one scenario
+     *
+     * @param scenario
+     * @param root     served folder, see {@link #createData(File)}
+     * @param output   local folder, it's cleaned before download
+     * @return
+     * @throws Exception
+     */
+    public static Result run(Scenario scenario, File root, File output) throws Exception {
+        Result result = new Result(scenario);
+        FileUtils.deleteDirectory(output);
+        output.mkdirs();
+
+        EmbeddedFtpServer server = new EmbeddedFtpServer(root);
+        server.start();
+        FTPLeechMaster master = new FTPLeechMaster();
+        master.setWorkingThreads(WORKING_THREADS);
+        try {
+            FTPContext context = new FTPContext();
+            context.server = server.getHost();
+            context.port = server.getPort();
+            context.username = "test";
+            context.password = "test";
+            context.globalPieceLength = PIECE_LENGTH;
+            scenario.configure(context);
+
+            //listing isn't measured, conditions are for downloading only
+            FTPFile folder = new FTPFile();
+            folder.setName(FOLDER);
+            folder.setType(FTPFile.DIRECTORY_TYPE);
+            List<DownloadTask> tasks = new FTPFactory(context).createTask(folder, "/" + FOLDER, output.getAbsolutePath());
+            for (DownloadTask task : tasks) {
+                task.setDeleteAfterMerge(true);
+            }
+            FTPFactory.getSessionPool().clear();
+            server.resetCounters();
+            server.setConditions(scenario.conditions);
+
+            if (scenario.watchdog) {
+                StallWatchdog watchdog = new StallWatchdog(0.1, 1000);
+                watchdog.setInterval(250);
+                master.setStallWatchdog(watchdog);
+            }
+            final long start = System.currentTimeMillis();
+            master.enqueue(tasks);
+            while (!isDone(tasks) && System.currentTimeMillis() - start < HARD_TIMEOUT) {
+                Thread.sleep(20);
+            }
+            result.millis = System.currentTimeMillis() - start;
+            result.wastedBytes = server.getBytesSent() - BIG_FILE - SMALL_FILE;
+            result.sessions = server.getSessionCount();
+            result.rejectedSessions = server.getRejectedSessions();
+            result.retrievals = server.getRetrievals();
+            result.stalls = server.getStalls();
+            result.resets = server.getResets();
+            result.limit = master.getServerConnections(ServerKey.of(context));
+
+            if (!isDone(tasks)) {
+                result.failure = "not finished";
+            } else if (!isSame(root, output)) {
+                result.failure = "content differs";
+            } else if (result.millis > scenario.maxMillis) {
+                result.failure = "too slow";
+            } else if (result.wastedBytes > scenario.maxWastedBytes) {
+                result.failure = "too much wasted data";
+            }
+            result.passed = result.failure == null;
+        } finally {
+            master.shutdown();
+            server.stop();
+            FTPFactory.getSessionPool().clear();
+        }
+        return result;
+    }
+
+    private static boolean isDone(List<DownloadTask> tasks) {
+        for (DownloadTask task : tasks) {
+            for (FTPDownloadThread t : task.getData()) {
+                final FTPDownloadThread.State state = t.getFtpState();
+                if (state != FTPDownloadThread.State.Finished && state != FTPDownloadThread.State.Cancelled) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSame(File root, File output) throws IOException, InterruptedException {
+        final String[] files = {"big.bin", "sub/small.bin"};
+        for (String name : files) {
+            final File expected = new File(root, FOLDER + "/" + name);
+            final File actual = new File(output, FOLDER + "/" + name);
+            //last merge closes file right after state change
+            for (int i = 0; i < 50 && actual.length() != expected.length(); i++) {
+                Thread.sleep(20);
+            }
+            if (!FileUtils.contentEquals(expected, actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}